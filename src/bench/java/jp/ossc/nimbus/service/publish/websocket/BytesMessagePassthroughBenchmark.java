@@ -0,0 +1,131 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * {@link DefaultJMSMessageDispatcherService}のBytesMessageのパススルーによる、配信メッセージ1件あたりのメモリ割り当て量を比較するベンチマーク。
+ * <p>
+ * 1回の操作は、本文を読み込んだ配信メッセージ1件を、recipients件のメッセージ送信対象に送信するByteBufferにするまでとする。<br>
+ * パススルー前は、本文を文字列に変換し、メッセージ送信対象毎にバイト配列にエンコードする。
+ * パススルー後は、本文を1度だけバイト配列に読み込み、メッセージ送信対象毎に読み取り専用の複製を作成する。<br>
+ * {@link #main(String[])}では{@link GCProfiler}を有効にし、gc.alloc.rate.normで1件あたりの割り当てバイト数を出力する。<br>
+ * benchプロファイルで、以下のように実行する。<br>
+ * <pre>
+ * mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=jp.ossc.nimbus.service.publish.websocket.BytesMessagePassthroughBenchmark
+ * </pre>
+ *
+ * @author M.Ishida
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BytesMessagePassthroughBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"256", "4096", "65536"})
+    public int bodySize;
+
+    @Param({"1", "16"})
+    public int recipients;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+    }
+
+    /**
+     * パススルー前の、本文を文字列に変換して、メッセージ送信対象毎にエンコードする処理。
+     *
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    public void stringConversion(Blackhole blackhole) {
+        final byte[] read = new byte[body.length];
+        System.arraycopy(body, 0, read, 0, read.length);
+        final String text = new String(read, UTF8);
+        for (int i = 0; i < recipients; i++) {
+            blackhole.consume(ByteBuffer.wrap(text.getBytes(UTF8)));
+        }
+    }
+
+    /**
+     * パススルー後の、本文を1度だけ読み込み、メッセージ送信対象毎に読み取り専用の複製を作成する処理。
+     *
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    public void passthrough(Blackhole blackhole) {
+        final byte[] read = new byte[body.length];
+        System.arraycopy(body, 0, read, 0, read.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(read, 0, read.length).asReadOnlyBuffer();
+        for (int i = 0; i < recipients; i++) {
+            blackhole.consume(buffer.duplicate());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new OptionsBuilder()
+            .include(BytesMessagePassthroughBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * {@link MessageSendParameterPool}と、以前の同期化したリストによる{@link MessageSendParameter}の再利用のスループットを比較するベンチマーク。
+ * <p>
+ * 1回の操作は、取得と返却の組とする。{@link #main(String[])}で、8、16、32スレッドで測定する。<br>
+ * benchプロファイルで、以下のように実行する。<br>
+ * <pre>
+ * mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=jp.ossc.nimbus.service.publish.websocket.MessageSendParameterPoolBenchmark
+ * </pre>
+ *
+ * @author M.Ishida
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageSendParameterPoolBenchmark {
+
+    private static final int CAPACITY = 1024;
+
+    private static final int[] THREADS = {8, 16, 32};
+
+    private List recycleList;
+    private MessageSendParameterPool pool;
+
+    @Setup
+    public void setup() {
+        recycleList = Collections.synchronizedList(new ArrayList());
+        pool = new MessageSendParameterPool(CAPACITY);
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            recycleList.add(new MessageSendParameter());
+            pool.recycle(new MessageSendParameter());
+        }
+    }
+
+    /**
+     * 以前のAbstractJMSMessageDispatcherServiceと同じ、同期化したリストでの取得と返却。
+     *
+     * @return 取得したMessageSendParameter
+     */
+    @Benchmark
+    public Object synchronizedList() {
+        MessageSendParameter obj = null;
+        if (recycleList.isEmpty()) {
+            obj = new MessageSendParameter();
+        } else {
+            synchronized (recycleList) {
+                if (recycleList.isEmpty()) {
+                    obj = new MessageSendParameter();
+                } else {
+                    obj = (MessageSendParameter) recycleList.remove(0);
+                }
+            }
+        }
+        if (recycleList.size() < CAPACITY) {
+            obj.clear();
+            synchronized (recycleList) {
+                recycleList.add(obj);
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * MessageSendParameterPoolでの取得と返却。
+     *
+     * @return 取得したMessageSendParameter
+     */
+    @Benchmark
+    public Object pool() {
+        final MessageSendParameter obj = pool.get();
+        pool.recycle(obj);
+        return obj;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < THREADS.length; i++) {
+            final Options options = new OptionsBuilder()
+                .include(MessageSendParameterPoolBenchmark.class.getName())
+                .threads(THREADS[i])
+                .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -33,18 +33,33 @@ package jp.ossc.nimbus.service.publish.websocket;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
+import javax.jms.QueueReceiver;
+import javax.jms.Session;
+import javax.jms.TopicSubscriber;
 
 import jp.ossc.nimbus.core.ServiceBase;
 import jp.ossc.nimbus.core.ServiceManagerFactory;
 import jp.ossc.nimbus.core.ServiceName;
+import jp.ossc.nimbus.daemon.Daemon;
+import jp.ossc.nimbus.daemon.DaemonControl;
+import jp.ossc.nimbus.daemon.DaemonRunnable;
 import jp.ossc.nimbus.service.jms.JMSMessageConsumerFactory;
+import jp.ossc.nimbus.service.jms.JMSMessageConsumerFactoryService;
 import jp.ossc.nimbus.service.queue.DistributedQueueHandlerContainerService;
 import jp.ossc.nimbus.service.queue.DistributedQueueSelector;
 import jp.ossc.nimbus.service.queue.QueueHandler;
@@ -54,6 +69,17 @@ import jp.ossc.nimbus.service.websocket.ExceptionHandlerMappingService;
 /**
  * JMSメッセージを受信するためのメッセージディスパッチャーサービス抽象クラス。
  * <p>
+ * メッセージ送信対象毎に購読しているキーオブジェクトを保持し、{@link #replaceKeys(Object[], MessageSender)}では差分のみを登録、削除する。<br>
+ * キーオブジェクトはequalsで比較する。<br>
+ * 購読しているキーオブジェクトの集合は{@link #addMessageSender(MessageSender)}で生成し、{@link #removeMessageSender(MessageSender)}で削除する。削除と並行して追加されたキーオブジェクトは、追加した側で削除する。<br>
+ * backpressureHighWatermarkを指定した場合、メッセージ配信を受信するためのキューとメッセージを送信するためのキューの処理待ち件数の合計が上限を超えるとJMSのConnectionを停止し、backpressureLowWatermarkを下回ると再開する。<br>
+ * MessageListenerのスレッドからはConnectionを停止できないため、停止と再開は監視スレッドで行う。停止または再開に失敗した場合、監視スレッドはbackpressureCheckIntervalの間待機してから再試行する。<br>
+ * Connection.stop()はConnection単位で作用するため、JMSMessageConsumerFactoryのJMSSessionFactoryが保持するConnectionを共有している全てのMessageConsumer（他のサービスのものを含む）の受信も停止する点に注意すること。<br>
+ * consumerSessionCountに2以上を指定した場合、JMSMessageConsumerFactory毎にその数のSessionとMessageConsumerを生成して並列に受信する。<br>
+ * 各MessageConsumerは、partitionPropertyNameで指定したプロパティの値でメッセージを分割するメッセージセレクタで受信するため、送信側は同じキーのメッセージに同じ分割番号（0〜consumerSessionCount-1の整数）を設定する必要がある。<br>
+ * 分割番号は、Message.setIntProperty(String, int)で数値型のプロパティとして設定すること。文字列型のプロパティとして設定した場合、JMSプロバイダによってはどのMessageConsumerでも受信されない。<br>
+ * 永続サブスクリプションは購読名毎に1つのMessageConsumerしか生成できないため、永続サブスクリプションのJMSMessageConsumerFactoryには2以上を指定できない。また、JMSSessionFactoryはgetSession()の呼び出し毎に新しいSessionを生成する設定である必要がある。<br>
+ * 同じ分割番号のメッセージは同じSessionで順番に受信されるため、キー毎の順序は保たれる。<br>
  *
  * @author M.Ishida
  */
@@ -68,16 +94,36 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
     protected ServiceName[] jmsMessageConsumerFactoryServiceNames;
 
     protected boolean isStartReceiveOnStart = true;
+    protected int consumerSessionCount = DEFAULT_CONSUMER_SESSION_COUNT;
+    protected String partitionPropertyName;
     protected int messageSendParameterRecycleListSize = DEFAULT_MESSAGE_SEND_PARAMETER_RECYCLE_LIST_SIZE;
+    protected int backpressureHighWatermark = DEFAULT_BACKPRESSURE_HIGH_WATERMARK;
+    protected int backpressureLowWatermark = DEFAULT_BACKPRESSURE_LOW_WATERMARK;
+    protected long backpressureCheckInterval = DEFAULT_BACKPRESSURE_CHECK_INTERVAL;
+    protected String backpressureErrorMessageId;
 
     protected QueueHandlerContainer messageListenerQueueHandlerContainer;
     protected DistributedQueueHandlerContainerService messageSendQueueHandlerContainer;
     protected DistributedQueueSelector messageSendDistributedQueueSelector;
     protected JMSMessageConsumerFactory[] jmsMessageConsumerFactory;
+    protected List consumers;
+    protected List consumerSessions;
 
-    protected List messageSendParameterRecycleList;
+    protected MessageSendParameterPool messageSendParameterPool;
+    protected final ConcurrentMap senderKeysMap = new ConcurrentHashMap();
 
-    protected long messageReceiveCount;
+    protected final AtomicLong messageReceiveCount = new AtomicLong();
+
+    protected final AtomicInteger pendingCount = new AtomicInteger();
+    protected final Object backpressureLock = new Object();
+    protected final Object receiveLock = new Object();
+    protected Daemon backpressureDaemon;
+    protected volatile boolean isReceiving;
+    protected volatile boolean isBackpressurePaused;
+    protected volatile long backpressurePauseStartTime;
+    protected volatile long backpressurePauseCount;
+    protected volatile long backpressurePauseTotalTime;
+    protected volatile long backpressurePauseMaxTime;
 
     public ServiceName getMessageListenerQueueHandlerContainerServiceName() {
         return messageListenerQueueHandlerContainerServiceName;
@@ -135,17 +181,102 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
         isStartReceiveOnStart = isStart;
     }
 
+    public int getConsumerSessionCount() {
+        return consumerSessionCount;
+    }
+
+    public void setConsumerSessionCount(int count) {
+        consumerSessionCount = count;
+    }
+
+    public String getPartitionPropertyName() {
+        return partitionPropertyName;
+    }
+
+    public void setPartitionPropertyName(String name) {
+        partitionPropertyName = name;
+    }
+
+    public int getConsumerCount() {
+        final List list = consumers;
+        return list == null ? 0 : list.size();
+    }
+
     public long getMessageReceiveCount() {
-        return messageReceiveCount;
+        return messageReceiveCount.get();
     }
 
-    protected void preCreateService() throws Exception {
-        super.preCreateService();
-        messageSendParameterRecycleList = Collections.synchronizedList(new ArrayList());
+    public int getBackpressureHighWatermark() {
+        return backpressureHighWatermark;
     }
-    
+
+    public void setBackpressureHighWatermark(int watermark) {
+        backpressureHighWatermark = watermark;
+    }
+
+    public int getBackpressureLowWatermark() {
+        return backpressureLowWatermark;
+    }
+
+    public void setBackpressureLowWatermark(int watermark) {
+        backpressureLowWatermark = watermark;
+    }
+
+    public long getBackpressureCheckInterval() {
+        return backpressureCheckInterval;
+    }
+
+    public void setBackpressureCheckInterval(long interval) {
+        backpressureCheckInterval = interval;
+    }
+
+    public String getBackpressureErrorMessageId() {
+        return backpressureErrorMessageId;
+    }
+
+    public void setBackpressureErrorMessageId(String id) {
+        backpressureErrorMessageId = id;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public boolean isBackpressurePaused() {
+        return isBackpressurePaused;
+    }
+
+    public long getBackpressurePauseCount() {
+        return backpressurePauseCount;
+    }
+
+    public long getBackpressurePauseTotalTime() {
+        final long start = backpressurePauseStartTime;
+        return backpressurePauseTotalTime + (isBackpressurePaused && start > 0 ? System.currentTimeMillis() - start : 0);
+    }
+
+    public long getBackpressurePauseMaxTime() {
+        return backpressurePauseMaxTime;
+    }
+
+    public long getBackpressurePauseAverageTime() {
+        final long count = backpressurePauseCount;
+        return count == 0 ? 0 : backpressurePauseTotalTime / count;
+    }
+
+    public int getMessageSendParameterPoolSize() {
+        final MessageSendParameterPool pool = messageSendParameterPool;
+        return pool == null ? 0 : pool.size();
+    }
+
     protected void preStartService() throws Exception {
         super.preStartService();
+        resetPendingCount();
+        if (messageSendParameterRecycleListSize > 0) {
+            messageSendParameterPool = new MessageSendParameterPool(messageSendParameterRecycleListSize);
+        } else {
+            messageSendParameterPool = null;
+        }
         if (messageListenerQueueHandlerContainerServiceName != null) {
             messageListenerQueueHandlerContainer = (QueueHandlerContainer) ServiceManagerFactory
                     .getServiceObject(messageListenerQueueHandlerContainerServiceName);
@@ -189,9 +320,33 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
                     .getServiceObject(jmsMessageConsumerFactoryServiceNames[i]);
         }
         
+        if (backpressureHighWatermark > 0) {
+            if (backpressureLowWatermark < 0) {
+                backpressureLowWatermark = backpressureHighWatermark / 2;
+            }
+            if (backpressureLowWatermark >= backpressureHighWatermark) {
+                throw new IllegalArgumentException("BackpressureLowWatermark must be less than BackpressureHighWatermark.");
+            }
+            backpressureDaemon = new Daemon(new BackpressureMonitor());
+            backpressureDaemon.setName("Nimbus WebSocket BackpressureMonitorDaemon " + getServiceNameObject());
+            backpressureDaemon.start();
+        }
+        
+        if (consumerSessionCount > 1 && partitionPropertyName == null) {
+            throw new IllegalArgumentException("PartitionPropertyName must be specified when ConsumerSessionCount is greater than 1.");
+        }
+        
+        isReceiving = isStartReceiveOnStart;
+        consumers = new ArrayList();
+        consumerSessions = new ArrayList();
         for (int i = 0; i < jmsMessageConsumerFactory.length; i++) {
-            final MessageConsumer consumer = jmsMessageConsumerFactory[i].createConsumer();
-            consumer.setMessageListener(this);
+            if (consumerSessionCount > 1) {
+                createPartitionedConsumers(jmsMessageConsumerFactory[i]);
+            } else {
+                final MessageConsumer consumer = jmsMessageConsumerFactory[i].createConsumer();
+                consumer.setMessageListener(this);
+                consumers.add(consumer);
+            }
             if (isStartReceiveOnStart) {
                 final Connection con = jmsMessageConsumerFactory[i].getSessionFactory().getConnection();
                 con.start();
@@ -199,14 +354,106 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
         }
     }
     
+    /**
+     * 指定されたJMSMessageConsumerFactoryから、consumerSessionCount個のSessionとMessageConsumerを生成する。
+     * <p>
+     * 宛先と元のメッセージセレクタは、JMSMessageConsumerFactoryの設定で生成したMessageConsumerから取得し、分割番号の条件を追加したメッセージセレクタでMessageConsumerを生成し直す。<br>
+     * 永続サブスクリプションのJMSMessageConsumerFactoryの場合と、JMSSessionFactoryが生成済みのSessionを返した場合は、IllegalArgumentExceptionをthrowする。<br>
+     *
+     * @param factory JMSMessageConsumerFactory
+     * @throws Exception 生成に失敗した場合
+     */
+    protected void createPartitionedConsumers(JMSMessageConsumerFactory factory) throws Exception {
+        if (factory instanceof JMSMessageConsumerFactoryService && ((JMSMessageConsumerFactoryService) factory).isDurable()) {
+            throw new IllegalArgumentException(
+                    "ConsumerSessionCount must be 1 when JMSMessageConsumerFactory creates durable subscribers. factory="
+                            + factory);
+        }
+        final Session baseSession = factory.getSessionFactory().getSession();
+        final MessageConsumer baseConsumer = factory.createConsumer(baseSession);
+        Destination destination = null;
+        if (baseConsumer instanceof TopicSubscriber) {
+            destination = ((TopicSubscriber) baseConsumer).getTopic();
+        } else if (baseConsumer instanceof QueueReceiver) {
+            destination = ((QueueReceiver) baseConsumer).getQueue();
+        }
+        final String baseSelector = baseConsumer.getMessageSelector();
+        baseConsumer.close();
+        if (destination == null) {
+            baseSession.close();
+            throw new IllegalArgumentException("Destination of MessageConsumer can not be resolved. consumer="
+                    + baseConsumer);
+        }
+        for (int i = 0; i < consumerSessionCount; i++) {
+            final Session session = i == 0 ? baseSession : factory.getSessionFactory().getSession();
+            for (int j = 0, jmax = consumerSessions.size(); j < jmax; j++) {
+                if (consumerSessions.get(j) == session) {
+                    throw new IllegalArgumentException(
+                            "JMSSessionFactory must create a new Session on each getSession() when ConsumerSessionCount is greater than 1. factory="
+                                    + factory);
+                }
+            }
+            consumerSessions.add(session);
+            final MessageConsumer consumer = factory.createConsumer(session, destination,
+                    createPartitionSelector(baseSelector, i));
+            consumer.setMessageListener(this);
+            consumers.add(consumer);
+        }
+    }
+
+    /**
+     * 指定された分割番号のメッセージを受信するメッセージセレクタを生成する。
+     * <p>
+     * 最後の分割番号は、プロパティが存在しないメッセージと範囲外の分割番号のメッセージも受信する。<br>
+     * 分割番号は数値型のプロパティとして比較するため、文字列型のプロパティはどの分割番号とも一致せず、JMSプロバイダによっては最後の分割番号でも受信されない。<br>
+     *
+     * @param baseSelector JMSMessageConsumerFactoryに設定されたメッセージセレクタ
+     * @param partition 分割番号
+     * @return メッセージセレクタ
+     */
+    protected String createPartitionSelector(String baseSelector, int partition) {
+        final StringBuilder buf = new StringBuilder();
+        if (baseSelector != null && baseSelector.trim().length() != 0) {
+            buf.append('(').append(baseSelector).append(") AND ");
+        }
+        if (partition < consumerSessionCount - 1) {
+            buf.append(partitionPropertyName).append(" = ").append(partition);
+        } else {
+            buf.append('(').append(partitionPropertyName).append(" IS NULL OR NOT (").append(partitionPropertyName)
+                    .append(" BETWEEN 0 AND ").append(partition - 1).append("))");
+        }
+        return buf.toString();
+    }
+
     protected void postStopService() throws Exception {
         stopReceive();
+        if (consumerSessions != null && !consumerSessions.isEmpty()) {
+            for (int i = 0; i < consumers.size(); i++) {
+                try {
+                    ((MessageConsumer) consumers.get(i)).close();
+                } catch (Exception e) {
+                }
+            }
+            for (int i = 0; i < consumerSessions.size(); i++) {
+                try {
+                    ((Session) consumerSessions.get(i)).close();
+                } catch (Exception e) {
+                }
+            }
+        }
+        consumers = null;
+        consumerSessions = null;
+        if (backpressureDaemon != null) {
+            backpressureDaemon.stop();
+            backpressureDaemon = null;
+        }
         if (messageListenerQueueHandlerContainer != null) {
             messageListenerQueueHandlerContainer.stop();
         }
         if (messageSendQueueHandlerContainer != null) {
             messageSendQueueHandlerContainer.stop();
         }
+        resetPendingCount();
         super.postStopService();
     }
     
@@ -217,44 +464,291 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
     }
     
     public void startReceive() throws Exception {
+        synchronized (receiveLock) {
+            isReceiving = true;
+            if (!isBackpressurePaused) {
+                startConnections();
+            }
+        }
+    }
+
+    public void stopReceive() throws Exception {
+        synchronized (receiveLock) {
+            isReceiving = false;
+            stopConnections();
+        }
+    }
+
+    /**
+     * JMSのConnectionを開始する。
+     *
+     * @throws Exception 開始に失敗した場合
+     */
+    protected void startConnections() throws Exception {
         for (int i = 0; i < jmsMessageConsumerFactory.length; i++) {
             final Connection con = jmsMessageConsumerFactory[i].getSessionFactory().getConnection();
             con.start();
         }
     }
 
-    public void stopReceive() throws Exception {
+    /**
+     * JMSのConnectionを停止する。
+     *
+     * @throws Exception 停止に失敗した場合
+     */
+    protected void stopConnections() throws Exception {
         for (int i = 0; i < jmsMessageConsumerFactory.length; i++) {
             final Connection con = jmsMessageConsumerFactory[i].getSessionFactory().getConnection();
             con.stop();
         }
     }
 
+    /**
+     * 処理待ち件数を加算し、上限を超えた場合は監視スレッドに通知する。
+     *
+     * @param delta 加算する件数
+     */
+    protected void incrementPendingCount(int delta) {
+        final int count = pendingCount.addAndGet(delta);
+        if (backpressureDaemon != null && !isBackpressurePaused && count >= backpressureHighWatermark) {
+            synchronized (backpressureLock) {
+                backpressureLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 処理待ち件数と、バックプレッシャーによる受信の停止状態を初期化する。
+     * <p>
+     * サービスの停止時にキューに残っていた件数を、再開後に持ち越さないために、開始時と停止時に呼び出す。<br>
+     */
+    protected void resetPendingCount() {
+        synchronized (receiveLock) {
+            pendingCount.set(0);
+            isBackpressurePaused = false;
+            backpressurePauseStartTime = 0;
+        }
+    }
+
+    /**
+     * 処理待ち件数を減算し、停止中に下限を下回った場合は監視スレッドに通知する。
+     * <p>
+     * 初期化後に、初期化前にキューに格納された件数の処理が完了した場合は、負にならないように0に戻す。<br>
+     */
+    protected void decrementPendingCount() {
+        int count = pendingCount.decrementAndGet();
+        if (count < 0 && pendingCount.compareAndSet(count, 0)) {
+            count = 0;
+        }
+        if (isBackpressurePaused && count <= backpressureLowWatermark) {
+            synchronized (backpressureLock) {
+                backpressureLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 処理待ち件数と上限、下限を比較し、JMSのConnectionを停止または再開する。
+     * <p>
+     * Connectionの停止はMessageListenerの処理の完了を待つため、MessageListenerのスレッドが通知に使用するbackpressureLockとは別のロックで排他する。<br>
+     * 停止または再開に失敗した場合は状態を変更せずにfalseを返す。<br>
+     *
+     * @return 停止または再開に失敗した場合false
+     */
+    protected boolean checkBackpressure() {
+        synchronized (receiveLock) {
+            final int count = pendingCount.get();
+            try {
+                if (!isBackpressurePaused && count >= backpressureHighWatermark) {
+                    if (isReceiving) {
+                        stopConnections();
+                    }
+                    isBackpressurePaused = true;
+                    backpressurePauseStartTime = System.currentTimeMillis();
+                    backpressurePauseCount++;
+                } else if (isBackpressurePaused && count <= backpressureLowWatermark) {
+                    if (isReceiving) {
+                        startConnections();
+                    }
+                    isBackpressurePaused = false;
+                    final long time = System.currentTimeMillis() - backpressurePauseStartTime;
+                    backpressurePauseStartTime = 0;
+                    backpressurePauseTotalTime += time;
+                    if (time > backpressurePauseMaxTime) {
+                        backpressurePauseMaxTime = time;
+                    }
+                }
+            } catch (Exception e) {
+                if (backpressureErrorMessageId != null) {
+                    getLogger().write(backpressureErrorMessageId, new Integer(count), e);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void onMessage(Message msg) {
-        messageReceiveCount++;
+        messageReceiveCount.incrementAndGet();
         onMessageProcess((Object) msg);
     }
     
     public void addMessageSender(MessageSender sender) {
+        final Object id = sender.getSession().getId();
+        if (!senderKeysMap.containsKey(id)) {
+            senderKeysMap.putIfAbsent(id, new SenderKeys());
+        }
         addMessageSenderProcess(sender);
     }
 
     public void removeMessageSender(MessageSender sender) {
-        removeMessageSenderProcess(sender);
-        if (messageSendDistributedQueueSelector instanceof SessionIdMessageSendDistributedQueueSelectorService) {
-            ((SessionIdMessageSendDistributedQueueSelectorService) messageSendDistributedQueueSelector).remove(sender
-                    .getSession().getId());
+        final Object id = sender.getSession().getId();
+        final SenderKeys senderKeys = (SenderKeys) senderKeysMap.get(id);
+        if (senderKeys != null) {
+            senderKeys.isClosed = true;
+        }
+        try {
+            removeMessageSenderProcess(sender);
+        } finally {
+            if (senderKeys != null) {
+                senderKeysMap.remove(id, senderKeys);
+            }
+            if (messageSendDistributedQueueSelector instanceof SessionIdMessageSendDistributedQueueSelectorService) {
+                ((SessionIdMessageSendDistributedQueueSelectorService) messageSendDistributedQueueSelector).remove(sender
+                        .getSession().getId());
+            }
         }
     }
 
     public void addKey(Object key, MessageSender sender) {
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        validateKey(key);
+        senderKeys.keys.add(key);
         addKeyProcess(key, sender);
+        if (senderKeys.isClosed) {
+            removeKeyProcess(key, sender);
+        }
     }
 
     public void removeKey(Object key, MessageSender sender) {
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        senderKeys.keys.remove(key);
         removeKeyProcess(key, sender);
     }
 
+    public void addKeys(Object[] keys, MessageSender sender) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            validateKey(keys[i]);
+        }
+        final List addKeys = new ArrayList(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (senderKeys.keys.add(keys[i])) {
+                addKeys.add(keys[i]);
+            }
+        }
+        if (!addKeys.isEmpty()) {
+            final Object[] array = addKeys.toArray();
+            addKeysProcess(array, sender);
+            if (senderKeys.isClosed) {
+                removeKeysProcess(array, sender);
+            }
+        }
+    }
+
+    public void removeKeys(Object[] keys, MessageSender sender) {
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        final List removeKeys = new ArrayList(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (senderKeys.keys.remove(keys[i])) {
+                removeKeys.add(keys[i]);
+            }
+        }
+        if (!removeKeys.isEmpty()) {
+            removeKeysProcess(removeKeys.toArray(), sender);
+        }
+    }
+
+    public void replaceKeys(Object[] keys, MessageSender sender) {
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        synchronized (senderKeys) {
+            final Set newKeys = new LinkedHashSet();
+            if (keys != null) {
+                for (int i = 0; i < keys.length; i++) {
+                    validateKey(keys[i]);
+                    newKeys.add(keys[i]);
+                }
+            }
+            final List removeKeys = new ArrayList();
+            final Iterator itr = senderKeys.keys.iterator();
+            while (itr.hasNext()) {
+                Object key = itr.next();
+                if (!newKeys.remove(key)) {
+                    removeKeys.add(key);
+                }
+            }
+            removeKeys(removeKeys.toArray(), sender);
+            addKeys(newKeys.toArray(), sender);
+        }
+    }
+
+    /**
+     * メッセージ送信対象が購読しているキーオブジェクトの集合を取得する。
+     * <p>
+     * 削除後のメッセージ送信対象に対して集合を生成し直さないよう、{@link #addMessageSender(MessageSender)}で生成した集合のみを返す。<br>
+     *
+     * @param sender メッセージ送信対象
+     * @return キーオブジェクトの集合。登録されていない、または削除された場合はnull
+     */
+    protected SenderKeys getSenderKeys(MessageSender sender) {
+        return (SenderKeys) senderKeysMap.get(sender.getSession().getId());
+    }
+
+    /**
+     * メッセージ送信対象が削除されたかどうかを判定する。
+     * <p>
+     *
+     * @param sender メッセージ送信対象
+     * @return 登録されていない、または削除された場合true
+     */
+    protected boolean isClosed(MessageSender sender) {
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        return senderKeys == null || senderKeys.isClosed;
+    }
+
+    /**
+     * キーオブジェクトをサポートしているかどうかを検証する。
+     * <p>
+     * {@link #addKey(Object, MessageSender)}、{@link #addKeys(Object[], MessageSender)}で、購読しているキーオブジェクトの集合を変更する前に呼び出す。<br>
+     * デフォルトの実装では何もしない。サポートしない形式のキーオブジェクトがある場合は、オーバーライドして例外を投げる。<br>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @exception IllegalArgumentException サポートしない形式のキーオブジェクトの場合
+     */
+    protected void validateKey(Object key) throws IllegalArgumentException {
+    }
+
     /**
      * メッセージ送信対象を追加する
      *
@@ -285,6 +779,36 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
      */
     public abstract void removeKeyProcess(Object key, MessageSender sender);
 
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を追加する
+     * <p>
+     * デフォルトの実装では、キーオブジェクト毎に{@link #addKeyProcess(Object, MessageSender)}を呼び出す。<br>
+     * 一括で登録できる場合は、オーバーライドする。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     */
+    public void addKeysProcess(Object[] keys, MessageSender sender) {
+        for (int i = 0; i < keys.length; i++) {
+            addKeyProcess(keys[i], sender);
+        }
+    }
+
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を削除する
+     * <p>
+     * デフォルトの実装では、キーオブジェクト毎に{@link #removeKeyProcess(Object, MessageSender)}を呼び出す。<br>
+     * 一括で削除できる場合は、オーバーライドする。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     */
+    public void removeKeysProcess(Object[] keys, MessageSender sender) {
+        for (int i = 0; i < keys.length; i++) {
+            removeKeyProcess(keys[i], sender);
+        }
+    }
+
     /**
      * 配信メッセージの受信処理
      *
@@ -298,7 +822,13 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
                     sendMessageSenders(senders, message);
                 }
             } else {
-                messageListenerQueueHandlerContainer.push(message);
+                incrementPendingCount(1);
+                try {
+                    messageListenerQueueHandlerContainer.push(message);
+                } catch (RuntimeException e) {
+                    decrementPendingCount();
+                    throw e;
+                }
             }
         }
     }
@@ -322,7 +852,19 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
             if (messageSendQueueHandlerContainer == null) {
                 sendMessage(sender, message);
             } else {
-                messageSendQueueHandlerContainer.push(getSendParamObject(sender, message));
+                if (isClosed(sender)) {
+                    // 削除済みのメッセージ送信対象は、キューの割り当てを作り直さないようにキューに格納しない
+                    continue;
+                }
+                final MessageSendParameter param = getSendParamObject(sender, message);
+                incrementPendingCount(1);
+                try {
+                    messageSendQueueHandlerContainer.push(param);
+                } catch (RuntimeException e) {
+                    completeSendParamObject(param, -1);
+                    recycleSendParamObject(param);
+                    throw e;
+                }
             }
         }
     }
@@ -337,6 +879,76 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
         sender.sendMessage(message);
     }
 
+    /**
+     * 処理待ち件数を監視し、JMSのConnectionを停止、再開するDaemonRunnableクラス。
+     *
+     * @author M.Ishida
+     */
+    protected class BackpressureMonitor implements DaemonRunnable {
+
+        protected boolean isBackoff;
+
+        public boolean onStart() {
+            return true;
+        }
+
+        public boolean onStop() {
+            return true;
+        }
+
+        public boolean onSuspend() {
+            return true;
+        }
+
+        public boolean onResume() {
+            return true;
+        }
+
+        public Object provide(DaemonControl ctrl) throws Throwable {
+            if (isBackoff) {
+                isBackoff = false;
+                backoff();
+                return null;
+            }
+            synchronized (backpressureLock) {
+                final int count = pendingCount.get();
+                if ((!isBackpressurePaused && count < backpressureHighWatermark)
+                        || (isBackpressurePaused && count > backpressureLowWatermark)) {
+                    try {
+                        backpressureLock.wait(backpressureCheckInterval);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+            return null;
+        }
+
+        public void consume(Object paramObj, DaemonControl ctrl) throws Throwable {
+            isBackoff = !checkBackpressure();
+        }
+
+        public void garbage() {
+        }
+
+        /**
+         * 停止または再開に失敗した後、処理待ち件数の通知に関わらずbackpressureCheckIntervalの間待機する。
+         */
+        protected void backoff() {
+            synchronized (backpressureLock) {
+                final long end = System.currentTimeMillis() + backpressureCheckInterval;
+                long wait = backpressureCheckInterval;
+                while (wait > 0) {
+                    try {
+                        backpressureLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    wait = end - System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
     /**
      * メッセージ配信を受信するためのQueueHandlerクラス。
      *
@@ -347,9 +959,13 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
             if (message == null) {
                 return;
             }
-            Set<MessageSender> senders = getMessageSendTarget(message);
-            if (senders != null && senders.size() != 0) {
-                sendMessageSenders(senders, message);
+            try {
+                Set<MessageSender> senders = getMessageSendTarget(message);
+                if (senders != null && senders.size() != 0) {
+                    sendMessageSenders(senders, message);
+                }
+            } finally {
+                decrementPendingCount();
             }
         }
 
@@ -372,45 +988,78 @@ public abstract class AbstractJMSMessageDispatcherService extends ServiceBase im
                 return;
             }
             MessageSendParameter param = (MessageSendParameter) obj;
+            final long start = System.nanoTime();
             sendMessage(param.getSender(), param.getMessage());
+            completeSendParamObject(param, System.nanoTime() - start);
             recycleSendParamObject(param);
         }
 
         public boolean handleError(Object obj, Throwable th) throws Throwable {
             MessageSendParameter param = (MessageSendParameter) obj;
-            return param.getSender().getSession().isOpen();
+            if (param.getSender().getSession().isOpen()) {
+                return true;
+            }
+            completeSendParamObject(param, -1);
+            return false;
         }
 
         public void handleRetryOver(Object obj, Throwable th) throws Throwable {
             MessageSendParameter param = (MessageSendParameter) obj;
+            completeSendParamObject(param, -1);
             recycleSendParamObject(param);
         }
     }
 
-    protected MessageSendParameter getSendParamObject(MessageSender sender, Object message) {
-        MessageSendParameter obj = null;
-        if(messageSendParameterRecycleList.isEmpty()){
-            obj = new MessageSendParameter();
-        }else{
-            synchronized(messageSendParameterRecycleList){
-                if(messageSendParameterRecycleList.isEmpty()){
-                    obj = new MessageSendParameter();
-                }else{
-                    obj = (MessageSendParameter) messageSendParameterRecycleList.remove(0);
-                }
-            }
+    /**
+     * メッセージ送信対象が購読しているキーオブジェクトの集合。
+     *
+     * @author m-ishida
+     */
+    protected static class SenderKeys {
+
+        /**
+         * 購読しているキーオブジェクトの集合。
+         */
+        protected final Set keys = Collections.synchronizedSet(new HashSet());
+
+        /**
+         * メッセージ送信対象が削除された場合true。削除と並行して追加されたキーオブジェクトを削除するために使用する。
+         */
+        protected volatile boolean isClosed;
+    }
+
+    /**
+     * メッセージを送信するためのQueueHandlerContainerでの処理の完了を、処理待ち件数に反映し、DistributedQueueSelectorに通知する。
+     * <p>
+     * 同じパラメータオブジェクトに対して複数回呼び出された場合、2回目以降は何もしない。<br>
+     *
+     * @param param パラメータオブジェクト
+     * @param processTime 送信処理時間[ns]。送信に失敗した場合は-1
+     */
+    protected void completeSendParamObject(MessageSendParameter param, long processTime) {
+        if (param.isCompleted()) {
+            return;
+        }
+        param.setCompleted(true);
+        decrementPendingCount();
+        if (messageSendDistributedQueueSelector instanceof SessionIdMessageSendDistributedQueueSelectorService) {
+            ((SessionIdMessageSendDistributedQueueSelectorService) messageSendDistributedQueueSelector).complete(param,
+                    processTime);
         }
+    }
+
+    protected MessageSendParameter getSendParamObject(MessageSender sender, Object message) {
+        final MessageSendParameterPool pool = messageSendParameterPool;
+        MessageSendParameter obj = pool == null ? new MessageSendParameter() : pool.get();
         obj.setSender(sender);
         obj.setMessage(message);
         return obj;
     }
 
     protected void recycleSendParamObject(MessageSendParameter param) {
-        if (messageSendParameterRecycleList.size() < messageSendParameterRecycleListSize) {
-            param.clear();
-            synchronized(messageSendParameterRecycleList){
-                messageSendParameterRecycleList.add(param);
-            }
+        final MessageSendParameterPool pool = messageSendParameterPool;
+        if (pool != null) {
+            pool.recycle(param);
         }
     }
 }
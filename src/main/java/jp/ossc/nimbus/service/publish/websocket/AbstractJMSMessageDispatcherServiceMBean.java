@@ -55,6 +55,30 @@ public interface AbstractJMSMessageDispatcherServiceMBean extends ServiceBaseMBe
      */
     public static final String DEFAULT_SEND_ERROR_MESSAGE_ID = "WS___00006";
 
+    /**
+     * JMSのConnectionを停止する処理待ち件数の上限のデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_BACKPRESSURE_HIGH_WATERMARK = -1;
+
+    /**
+     * JMSのConnectionを再開する処理待ち件数の下限のデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_BACKPRESSURE_LOW_WATERMARK = -1;
+
+    /**
+     * 処理待ち件数を監視する間隔[ms]のデフォルト値。
+     * <p>
+     */
+    public static final long DEFAULT_BACKPRESSURE_CHECK_INTERVAL = 100l;
+
+    /**
+     * JMSMessageConsumerFactory毎に生成するSessionの数のデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_CONSUMER_SESSION_COUNT = 1;
+
     /**
      * メッセージ配信を受信するためのQueueHandlerContainerのサービス名を取得する。
      *
@@ -147,6 +171,48 @@ public interface AbstractJMSMessageDispatcherServiceMBean extends ServiceBaseMBe
      */
     public void setStartReceiveOnStart(boolean isStart);
 
+    /**
+     * JMSMessageConsumerFactory毎に生成するSessionとMessageConsumerの数を取得する。
+     *
+     * @return Sessionの数
+     */
+    public int getConsumerSessionCount();
+
+    /**
+     * JMSMessageConsumerFactory毎に生成するSessionとMessageConsumerの数を設定する。
+     * <p>
+     * 2以上を指定した場合、partitionPropertyNameの指定が必須となる。<br>
+     * 永続サブスクリプションのJMSMessageConsumerFactoryには2以上を指定できない。また、JMSSessionFactoryはgetSession()の呼び出し毎に新しいSessionを生成する必要がある。<br>
+     * デフォルトは{@link #DEFAULT_CONSUMER_SESSION_COUNT}。<br>
+     *
+     * @param count Sessionの数
+     */
+    public void setConsumerSessionCount(int count);
+
+    /**
+     * メッセージを分割するJMSメッセージのプロパティ名を取得する。
+     *
+     * @return プロパティ名
+     */
+    public String getPartitionPropertyName();
+
+    /**
+     * メッセージを分割するJMSメッセージのプロパティ名を設定する。
+     * <p>
+     * プロパティの値は、0からconsumerSessionCount-1までの整数で、同じキーのメッセージには同じ値を設定する必要がある。<br>
+     * プロパティはMessage.setIntProperty(String, int)で数値型として設定すること。文字列型で設定した場合、JMSプロバイダによってはどのSessionでも受信されない。<br>
+     *
+     * @param name プロパティ名
+     */
+    public void setPartitionPropertyName(String name);
+
+    /**
+     * 受信しているMessageConsumerの数を取得する。
+     *
+     * @return MessageConsumerの数
+     */
+    public int getConsumerCount();
+
     /**
      * メッセージの受信件数を取得する。
      *
@@ -179,9 +245,121 @@ public interface AbstractJMSMessageDispatcherServiceMBean extends ServiceBaseMBe
 
     /**
      * メッセージを送信するためのQueueHandlerContainerへのパラメータオブジェクトを再利用するためのリストサイズを設定する。
-     * デフォルトは {@link #DEFAULT_MESSAGE_SEND_PARAMETER_RECYCLE_LIST_SIZE} 。
+     * 0以下の場合は再利用しない。デフォルトは {@link #DEFAULT_MESSAGE_SEND_PARAMETER_RECYCLE_LIST_SIZE} 。
      *
      * @param size リストサイズ
      */
     public void setMessageSendParameterRecycleListSize(int size);
+
+    /**
+     * メッセージを送信するためのQueueHandlerContainerへのパラメータオブジェクトのうち、再利用のために保持している数を取得する。
+     *
+     * @return 保持している数
+     */
+    public int getMessageSendParameterPoolSize();
+
+    /**
+     * JMSのConnectionを停止する処理待ち件数の上限を取得する。
+     *
+     * @return 上限
+     */
+    public int getBackpressureHighWatermark();
+
+    /**
+     * JMSのConnectionを停止する処理待ち件数の上限を設定する。
+     * <p>
+     * メッセージ配信を受信するためのキューとメッセージを送信するためのキューの処理待ち件数の合計がこの値以上になると、JMSのConnectionを停止する。<br>
+     * Connection.stop()は、同じConnectionを共有している全てのMessageConsumerの受信を停止する。<br>
+     * 0以下の場合は停止しない。デフォルトは{@link #DEFAULT_BACKPRESSURE_HIGH_WATERMARK}。<br>
+     *
+     * @param watermark 上限
+     */
+    public void setBackpressureHighWatermark(int watermark);
+
+    /**
+     * JMSのConnectionを再開する処理待ち件数の下限を取得する。
+     *
+     * @return 下限
+     */
+    public int getBackpressureLowWatermark();
+
+    /**
+     * JMSのConnectionを再開する処理待ち件数の下限を設定する。
+     * <p>
+     * 停止中に処理待ち件数がこの値以下になると、JMSのConnectionを再開する。<br>
+     * 負の場合は上限の半分とする。デフォルトは{@link #DEFAULT_BACKPRESSURE_LOW_WATERMARK}。<br>
+     *
+     * @param watermark 下限
+     */
+    public void setBackpressureLowWatermark(int watermark);
+
+    /**
+     * 処理待ち件数を監視する間隔[ms]を取得する。
+     *
+     * @return 間隔[ms]
+     */
+    public long getBackpressureCheckInterval();
+
+    /**
+     * 処理待ち件数を監視する間隔[ms]を設定する。デフォルトは{@link #DEFAULT_BACKPRESSURE_CHECK_INTERVAL}。
+     *
+     * @param interval 間隔[ms]
+     */
+    public void setBackpressureCheckInterval(long interval);
+
+    /**
+     * JMSのConnectionの停止、再開に失敗した場合に出力するログのメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getBackpressureErrorMessageId();
+
+    /**
+     * JMSのConnectionの停止、再開に失敗した場合に出力するログのメッセージIDを設定する。
+     *
+     * @param id メッセージID
+     */
+    public void setBackpressureErrorMessageId(String id);
+
+    /**
+     * メッセージ配信を受信するためのキューとメッセージを送信するためのキューの処理待ち件数の合計を取得する。
+     *
+     * @return 処理待ち件数
+     */
+    public int getPendingCount();
+
+    /**
+     * 処理待ち件数の上限を超えたために、JMSのConnectionを停止しているかどうかを判定する。
+     *
+     * @return 停止している場合true
+     */
+    public boolean isBackpressurePaused();
+
+    /**
+     * 処理待ち件数の上限を超えたために、JMSのConnectionを停止した回数を取得する。
+     *
+     * @return 回数
+     */
+    public long getBackpressurePauseCount();
+
+    /**
+     * 処理待ち件数の上限を超えたために、JMSのConnectionを停止していた時間[ms]の合計を取得する。
+     *
+     * @return 時間[ms]
+     */
+    public long getBackpressurePauseTotalTime();
+
+    /**
+     * 処理待ち件数の上限を超えたために、JMSのConnectionを停止していた時間[ms]の最大値を取得する。
+     *
+     * @return 時間[ms]
+     */
+    public long getBackpressurePauseMaxTime();
+
+    /**
+     * 処理待ち件数の上限を超えたために、JMSのConnectionを停止していた時間[ms]の平均値を取得する。
+     *
+     * @return 時間[ms]
+     */
+    public long getBackpressurePauseAverageTime();
 }
@@ -31,10 +31,21 @@
  */
 package jp.ossc.nimbus.service.publish.websocket;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.collections.map.HashedMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jp.ossc.nimbus.core.ServiceBase;
 import jp.ossc.nimbus.core.ServiceManagerFactory;
@@ -49,19 +60,50 @@ import jp.ossc.nimbus.service.websocket.SessionProperties;
 /**
  * メッセージディスパッチャーサービス抽象クラス。 受信した配信メッセージを配信が必要なメッセージ送信対象に送信する。
  * <p>
+ * sharedSubscriptionがtrueの場合、MessageReceiverには本サービスの1つのMessageListenerだけを登録し、キーを購読しているメッセージ送信対象への配信は本サービスで行う。<br>
+ * lastValueCacheSize、replayBufferSizeを指定した場合も、配信メッセージ毎に1度だけ処理するため、sharedSubscriptionに関わらず本サービスで配信する。<br>
+ * 本サービスで配信する場合、購読はサブジェクト、またはサブジェクトとキーの組毎の参照カウントで管理し、最初の購読時にMessageReceiverへ登録し、最後の購読解除時にMessageReceiverから削除する。<br>
+ * 参照カウントは組毎の購読に対してCASで更新し、MessageReceiverへの登録、削除はマップ全体のロックを保持せずに行う。<br>
+ * MessageReceiverは1つのMessageListenerに同じ配信メッセージを1度だけ配信するため、受信した配信メッセージに一致する購読のメッセージ送信対象を集合として1度だけ求め、メッセージ送信対象毎に1度だけ送信する。<br>
+ * lastValueCacheSizeを指定した場合、サブジェクトとキー毎に最後に受信した配信メッセージを{@link LastValueCache}に保持し、キーの追加時に購読者へ即座に送信する。<br>
+ * サブジェクト毎のロックは、キャッシュや再送バッファのスナップショットの取得と、受信した配信メッセージへの受信番号の採番の順序付けにのみ使用する。<br>
+ * 購読の登録、スナップショットやライブの配信メッセージの送信はロックの外で行い、スナップショットの送信中に届いたライブの配信メッセージはメッセージ送信対象毎に保留して、スナップショットより前に採番されたものを破棄する。<br>
+ * replayBufferSizeを指定した場合、配信メッセージにサブジェクト毎の通番を付与した{@link SequencedMessage}を送信し、サブジェクト毎の{@link ReplayBuffer}に保持する。<br>
+ * 通番の採番とキャッシュへの格納は、配信メッセージを受信した際に1度だけ行う。<br>
+ * replayBufferIdleTimeの間配信メッセージの追加がないサブジェクトの{@link ReplayBuffer}は、格納領域を解放する。<br>
+ * {@link #resumeKey(Object, long, MessageSender)}で再接続したメッセージ送信対象には、最後に受信した通番より後の配信メッセージを再送する。<br>
+ * 再送できない場合は、キャッシュされた配信メッセージを送信する。<br>
+ * 完全一致の購読とパターンの購読など、複数の購読に一致する同じ配信メッセージも、メッセージ送信対象の集合で重複を除くため、メッセージ送信対象毎に1度だけ送信する。<br>
+ * メッセージ送信対象とMessageListenerの対応はConcurrentMapで管理し、購読の追加、削除はセッション毎の購読キーの集合に対してロックなしで行う。<br>
+ * {@link #addKeys(Object[], MessageSender)}、{@link #removeKeys(Object[], MessageSender)}は、メッセージ送信対象の検索を1度だけ行い、サブジェクト毎にまとめて{@link #addKeysProcess(Object[], MessageListener)}、{@link #removeKeysProcess(Object[], MessageListener)}を呼び出す。<br>
  *
  * @author M.Ishida
  */
-public abstract class AbstractPublishMessageDispatcherService extends ServiceBase implements MessageDispatcher, AbstractPublishMessageDispatcherServiceMBean {
+public abstract class AbstractPublishMessageDispatcherService extends ServiceBase implements ReplayableMessageDispatcher, AbstractPublishMessageDispatcherServiceMBean {
 
     private static final long serialVersionUID = -9042584038972690681L;
     
     protected ServiceName messageReceiverServiceName;
     protected String sendErrorMessageId = DEFAULT_SEND_ERROR_MESSAGE_ID;
+    protected boolean isSharedSubscription;
+    protected int lastValueCacheSize = -1;
+    protected long lastValueCacheByteSize = -1;
+    protected int replayBufferSize = -1;
+    protected int replayBufferByteSize = DEFAULT_REPLAY_BUFFER_BYTE_SIZE;
+    protected long replayBufferTime = -1;
+    protected long replayBufferIdleTime = DEFAULT_REPLAY_BUFFER_IDLE_TIME;
     
     protected MessageReceiver messageReceiver;
+    protected MessageListener dispatchMessageListener;
     
-    protected Map senderListenerMap;
+    protected ConcurrentMap senderListenerMap;
+    protected ConcurrentMap sharedKeyListenerMap;
+    protected LastValueCache lastValueCache;
+    protected ConcurrentHashMap replayBufferMap;
+    protected volatile long replayCount;
+    protected volatile long replayGapCount;
+    protected final AtomicLong replayBufferSweepTime = new AtomicLong();
+    protected final SubjectStripe[] subjectLocks = new SubjectStripe[64];
     
     protected long messageReceiveCount;
 
@@ -85,9 +127,122 @@ public abstract class AbstractPublishMessageDispatcherService extends ServiceBas
         return messageReceiveCount;
     }
 
+    public boolean isSharedSubscription() {
+        return isSharedSubscription;
+    }
+
+    public void setSharedSubscription(boolean isShared) {
+        isSharedSubscription = isShared;
+    }
+
+    public int getSharedKeyCount() {
+        return sharedKeyListenerMap.size();
+    }
+
+    public int getLastValueCacheSize() {
+        return lastValueCacheSize;
+    }
+
+    public void setLastValueCacheSize(int size) {
+        lastValueCacheSize = size;
+    }
+
+    public long getLastValueCacheByteSize() {
+        return lastValueCacheByteSize;
+    }
+
+    public void setLastValueCacheByteSize(long size) {
+        lastValueCacheByteSize = size;
+    }
+
+    public int getLastValueCacheCurrentSize() {
+        return lastValueCache == null ? 0 : lastValueCache.size();
+    }
+
+    public long getLastValueCacheCurrentByteSize() {
+        return lastValueCache == null ? 0 : lastValueCache.getByteSize();
+    }
+
+    public long getLastValueCacheHitCount() {
+        return lastValueCache == null ? 0 : lastValueCache.getHitCount();
+    }
+
+    public long getLastValueCacheEvictionCount() {
+        return lastValueCache == null ? 0 : lastValueCache.getEvictionCount();
+    }
+
+    public int getReplayBufferSize() {
+        return replayBufferSize;
+    }
+
+    public void setReplayBufferSize(int size) {
+        replayBufferSize = size;
+    }
+
+    public int getReplayBufferByteSize() {
+        return replayBufferByteSize;
+    }
+
+    public void setReplayBufferByteSize(int size) {
+        replayBufferByteSize = size;
+    }
+
+    public long getReplayBufferTime() {
+        return replayBufferTime;
+    }
+
+    public void setReplayBufferTime(long time) {
+        replayBufferTime = time;
+    }
+
+    public long getReplayBufferIdleTime() {
+        return replayBufferIdleTime;
+    }
+
+    public void setReplayBufferIdleTime(long time) {
+        replayBufferIdleTime = time;
+    }
+
+    public int getReplayBufferSubjectCount() {
+        return replayBufferMap == null ? 0 : replayBufferMap.size();
+    }
+
+    public int getReplayBufferAllocatedCount() {
+        final ConcurrentHashMap map = replayBufferMap;
+        if(map == null) {
+            return 0;
+        }
+        int count = 0;
+        final Iterator itr = map.values().iterator();
+        while(itr.hasNext()) {
+            if(((ReplayBuffer)itr.next()).isAllocated()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getReplayCount() {
+        return replayCount;
+    }
+
+    public long getReplayGapCount() {
+        return replayGapCount;
+    }
+
+    public void clearLastValueCache() {
+        if(lastValueCache != null) {
+            lastValueCache.clear();
+        }
+    }
+
     protected void preCreateService() throws Exception {
         super.preCreateService();
-        senderListenerMap = Collections.synchronizedMap(new HashedMap());
+        senderListenerMap = new ConcurrentHashMap();
+        sharedKeyListenerMap = new ConcurrentHashMap();
+        for(int i = 0; i < subjectLocks.length; i++) {
+            subjectLocks[i] = new SubjectStripe();
+        }
     }
     
     protected void preStartService() throws Exception {
@@ -98,43 +253,1064 @@ public abstract class AbstractPublishMessageDispatcherService extends ServiceBas
         if(messageReceiver == null) {
             throw new IllegalArgumentException("MessageReceiver is null.");
         }
+        if(lastValueCacheSize > 0) {
+            lastValueCache = new LastValueCache(lastValueCacheSize, lastValueCacheByteSize);
+        }
+        if(replayBufferSize > 0) {
+            if(replayBufferByteSize <= 0) {
+                throw new IllegalArgumentException("ReplayBufferByteSize must be greater than 0.");
+            }
+            replayBufferMap = new ConcurrentHashMap();
+        }
+        dispatchMessageListener = new DispatchMessageListener();
         messageReceiver.connect();
         messageReceiver.startReceive();
     }
 
     protected void preStopService() throws Exception {
+        if(dispatchMessageListener != null) {
+            try {
+                messageReceiver.removeMessageListener(dispatchMessageListener);
+            } catch(MessageSendException e) {
+            }
+        }
+        sharedKeyListenerMap.clear();
         messageReceiver.stopReceive();
         messageReceiver.close();
+        lastValueCache = null;
+        replayBufferMap = null;
     }
     
     public void addMessageSender(MessageSender sender) {
-        if(!senderListenerMap.containsKey(sender.getSession().getId())) {
-            MessageListener listener = new PublishMessageListener(sender);
-            synchronized(senderListenerMap) {
-                senderListenerMap.put(sender.getSession().getId(), listener);
-            }
+        final Object id = sender.getSession().getId();
+        if(!senderListenerMap.containsKey(id)) {
+            senderListenerMap.putIfAbsent(id, new PublishMessageListener(sender));
         }
     }
 
     public void removeMessageSender(MessageSender sender) {
-        if(senderListenerMap.containsKey(sender.getSession().getId())) {
-            MessageListener listener = (MessageListener)senderListenerMap.remove(sender.getSession().getId());
+        PublishMessageListener listener = (PublishMessageListener)senderListenerMap.remove(sender.getSession().getId());
+        if(listener == null) {
+            return;
+        }
+        listener.isClosed = true;
+        closeMessageListener(listener, sender);
+    }
+
+    /**
+     * 削除されたメッセージ送信対象のMessageListenerの購読を全て解除する。
+     * <p>
+     *
+     * @param listener メッセージ送信対象のMessageListener
+     * @param sender メッセージ送信対象
+     */
+    protected void closeMessageListener(PublishMessageListener listener, MessageSender sender) {
+        if(isDispatching()) {
+            List sharedKeys = null;
+            synchronized(listener.routeCounts) {
+                listener.keys.clear();
+                sharedKeys = new ArrayList(listener.routeCounts.keySet());
+                listener.routeCounts.clear();
+            }
             try {
-                messageReceiver.removeMessageListener(listener);
-            } catch(MessageSendException e) {
+                unsubscribeSharedKeys(sharedKeys, listener);
+            } catch(Exception e) {
             }
+            return;
+        }
+        listener.keys.clear();
+        try {
+            removeMessageListenerProcess(listener);
+        } catch(MessageSendException e) {
         }
     }
 
+    /**
+     * メッセージ送信対象のMessageListenerを取得する。
+     * <p>
+     *
+     * @param sender メッセージ送信対象
+     * @return MessageListener。登録されていない場合はnull
+     */
+    protected PublishMessageListener getMessageListener(MessageSender sender) {
+        return (PublishMessageListener)senderListenerMap.get(sender.getSession().getId());
+    }
+
+    /**
+     * 本サービスで配信するかどうかを判定する。
+     * <p>
+     * sharedSubscriptionがtrueの場合と、配信メッセージ毎に1度だけ処理する必要があるキャッシュや再送バッファを使用する場合は、本サービスで配信する。<br>
+     * 本サービスで配信しない場合は、メッセージ送信対象毎のMessageListenerをMessageReceiverに登録する。<br>
+     *
+     * @return 本サービスで配信する場合true
+     */
+    protected boolean isDispatching() {
+        return isSharedSubscription || lastValueCache != null || replayBufferMap != null;
+    }
+
+    public int getMessageSenderCount() {
+        return senderListenerMap == null ? 0 : senderListenerMap.size();
+    }
+
+    /**
+     * メッセージ送信対象のMessageListenerをMessageReceiverから削除する。
+     *
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception MessageSendException 削除に失敗した場合
+     */
+    protected void removeMessageListenerProcess(MessageListener listener) throws MessageSendException {
+        messageReceiver.removeMessageListener(listener);
+    }
+
     public void addKey(Object key, MessageSender sender) throws Exception{
-        if(senderListenerMap.containsKey(sender.getSession().getId())) {
-            addKeyProcess(key, (MessageListener)senderListenerMap.get(sender.getSession().getId()));
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return;
+        }
+        final String subject = lastValueCache == null && replayBufferMap == null ? null : getSubject(key);
+        if(subject == null) {
+            addKeyInternal(key, sender, listener);
+            return;
+        }
+        final SnapshotState state = beginSnapshot(listener, subject);
+        try {
+            addKeyInternal(key, sender, listener);
+            sendMessages(listener, takeLastValues(subject, getKeys(key), state));
+        } finally {
+            endSnapshot(listener, state);
+        }
+    }
+
+    public boolean resumeKey(Object key, long sequence, MessageSender sender) throws Exception {
+        final String subject = replayBufferMap == null ? null : getSubject(key);
+        if(subject == null) {
+            addKey(key, sender);
+            return false;
+        }
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return false;
+        }
+        final String[] keys = getKeys(key);
+        final SnapshotState state = beginSnapshot(listener, subject);
+        try {
+            addKeyInternal(key, sender, listener);
+            List messages = null;
+            final SubjectStripe stripe = getSubjectStripe(subject);
+            synchronized(stripe) {
+                ReplayBuffer buffer = getReplayBuffer(subject, false);
+                messages = buffer == null ? (sequence == 0 ? Collections.EMPTY_LIST : null) : buffer.read(sequence, keys);
+                if(messages != null) {
+                    state.cover(keys, stripe.stamp);
+                }
+            }
+            if(messages == null) {
+                replayGapCount++;
+                sendMessages(listener, takeLastValues(subject, keys, state));
+                return false;
+            }
+            sendMessages(listener, messages);
+            replayCount += messages.size();
+            return true;
+        } finally {
+            endSnapshot(listener, state);
+        }
+    }
+
+    /**
+     * 指定されたサブジェクトの{@link ReplayBuffer}を取得する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param isCreate 存在しない場合に生成する場合true
+     * @return ReplayBuffer
+     */
+    protected ReplayBuffer getReplayBuffer(String subject, boolean isCreate) {
+        final ConcurrentHashMap map = replayBufferMap;
+        if(map == null) {
+            return null;
+        }
+        ReplayBuffer buffer = (ReplayBuffer)map.get(subject);
+        if(buffer == null && isCreate) {
+            buffer = new ReplayBuffer(subject, replayBufferSize, replayBufferByteSize, replayBufferTime);
+            ReplayBuffer old = (ReplayBuffer)map.putIfAbsent(subject, buffer);
+            if(old != null) {
+                buffer = old;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * 受信した配信メッセージを処理し、送信するオブジェクトと受信番号を取得する。
+     * <p>
+     * サブジェクトのロックの中で{@link #receiveMessage(Message)}を呼び出し、受信番号を採番する。<br>
+     * 配信メッセージ毎に1度だけ呼び出すこと。<br>
+     *
+     * @param message 配信メッセージ
+     * @return 受信結果
+     * @exception MessageException 配信メッセージのオブジェクトの取得に失敗した場合
+     */
+    protected ReceivedMessage receive(Message message) throws MessageException {
+        final SubjectStripe stripe = getSubjectStripe(message.getSubject());
+        ReceivedMessage received = null;
+        synchronized(stripe) {
+            received = new ReceivedMessage(receiveMessage(message), ++stripe.stamp);
+        }
+        sweepReplayBuffers();
+        return received;
+    }
+
+    /**
+     * 一定時間配信メッセージの追加がない{@link ReplayBuffer}の格納領域を解放する。
+     * <p>
+     * replayBufferIdleTime毎に、いずれか1つのスレッドが全てのサブジェクトを走査する。<br>
+     */
+    protected void sweepReplayBuffers() {
+        final ConcurrentHashMap map = replayBufferMap;
+        final long idleTime = replayBufferIdleTime;
+        if(map == null || idleTime <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long last = replayBufferSweepTime.get();
+        if(now - last < idleTime || !replayBufferSweepTime.compareAndSet(last, now)) {
+            return;
+        }
+        final Iterator itr = map.values().iterator();
+        while(itr.hasNext()) {
+            ((ReplayBuffer)itr.next()).release(now, idleTime);
+        }
+    }
+
+    /**
+     * 受信した配信メッセージから、メッセージ送信対象に送信するオブジェクトを生成する。
+     * <p>
+     * 通番を付与する場合は{@link ReplayBuffer}に格納し、キャッシュする場合は{@link LastValueCache}に格納する。<br>
+     * {@link #receive(Message)}から、サブジェクトのロックを取得して呼び出される。<br>
+     *
+     * @param message 配信メッセージ
+     * @return 送信するオブジェクト
+     * @exception MessageException 配信メッセージのオブジェクトの取得に失敗した場合
+     */
+    protected Object receiveMessage(Message message) throws MessageException {
+        Object object = message.getObject();
+        final ReplayBuffer buffer = getReplayBuffer(message.getSubject(), true);
+        if(buffer != null) {
+            object = buffer.append(message.getKey(), object);
+        }
+        final LastValueCache cache = lastValueCache;
+        if(cache != null) {
+            cache.put(message, object);
+        }
+        return object;
+    }
+
+    /**
+     * メッセージ送信対象のMessageListenerにキーを登録する。
+     * <p>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @param sender メッセージ送信対象
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception Exception キーの登録に失敗した場合
+     */
+    protected void addKeyInternal(Object key, MessageSender sender, PublishMessageListener listener) throws Exception {
+        if(isDispatching()) {
+            SharedKey sharedKey = new SharedKey(key);
+            if(listener.keys.add(sharedKey)) {
+                final List errors = new ArrayList(1);
+                if(!subscribeKeys(Collections.singletonList(sharedKey), listener, errors).isEmpty()) {
+                    listener.keys.remove(sharedKey);
+                    throw (Exception)errors.get(0);
+                }
+                if(listener.isClosed) {
+                    closeMessageListener(listener, sender);
+                }
+            }
+            return;
+        }
+        final SharedKey sharedKey = new SharedKey(key);
+        final boolean isAdded = listener.keys.add(sharedKey);
+        try {
+            addKeyProcess(key, listener);
+        } catch(Exception e) {
+            if(isAdded) {
+                listener.keys.remove(sharedKey);
+            }
+            throw e;
+        }
+        if(listener.isClosed) {
+            closeMessageListener(listener, sender);
+        }
+    }
+
+    public void addKeys(Object[] keys, MessageSender sender) throws Exception {
+        if(keys == null || keys.length == 0) {
+            return;
+        }
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return;
+        }
+        if(lastValueCache == null && replayBufferMap == null) {
+            addKeysInternal(keys, sender, listener);
+            return;
+        }
+        final Map subjectKeysMap = groupBySubject(keys);
+        subjectKeysMap.remove(null);
+        final Map stateMap = new HashMap();
+        Exception exception = null;
+        try {
+            Iterator subjects = subjectKeysMap.keySet().iterator();
+            while(subjects.hasNext()) {
+                final String subject = (String)subjects.next();
+                stateMap.put(subject, beginSnapshot(listener, subject));
+            }
+            try {
+                addKeysInternal(keys, sender, listener);
+            } catch(Exception e) {
+                exception = e;
+            }
+            final Iterator entries = subjectKeysMap.entrySet().iterator();
+            while(entries.hasNext()) {
+                final Map.Entry entry = (Map.Entry)entries.next();
+                final String subject = (String)entry.getKey();
+                final List subjectKeys = (List)entry.getValue();
+                final SnapshotState state = (SnapshotState)stateMap.get(subject);
+                for(int i = 0, imax = subjectKeys.size(); i < imax; i++) {
+                    if(listener.keys.contains(new SharedKey(subjectKeys.get(i)))) {
+                        sendMessages(listener, takeLastValues(subject, getKeys(subjectKeys.get(i)), state));
+                    }
+                }
+            }
+        } finally {
+            final Iterator states = stateMap.values().iterator();
+            while(states.hasNext()) {
+                endSnapshot(listener, (SnapshotState)states.next());
+            }
+        }
+        if(exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * メッセージ送信対象のMessageListenerに、まだ登録されていないキーを一括で登録する。
+     * <p>
+     * 全てのキーの登録を試みた後、失敗したキーがあった場合は、失敗したキーのみを登録済みのキーから取り除いて、最初に発生した例外を投げる。<br>
+     * {@link #addKeysProcess(Object[], MessageListener)}が{@link KeyProcessException}以外の例外を投げた場合は、全てのキーが失敗したものとして扱う。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception Exception キーの登録に失敗した場合
+     */
+    protected void addKeysInternal(Object[] keys, MessageSender sender, PublishMessageListener listener) throws Exception {
+        final List sharedKeys = new ArrayList(keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            SharedKey sharedKey = new SharedKey(keys[i]);
+            if(listener.keys.add(sharedKey)) {
+                sharedKeys.add(sharedKey);
+            }
+        }
+        if(sharedKeys.isEmpty()) {
+            return;
+        }
+        if(isDispatching()) {
+            final List errors = new ArrayList();
+            listener.keys.removeAll(subscribeKeys(sharedKeys, listener, errors));
+            if(listener.isClosed) {
+                closeMessageListener(listener, sender);
+            }
+            if(!errors.isEmpty()) {
+                throw (Exception)errors.get(0);
+            }
+            return;
+        }
+        final Object[] addKeys = new Object[sharedKeys.size()];
+        for(int i = 0; i < addKeys.length; i++) {
+            addKeys[i] = ((SharedKey)sharedKeys.get(i)).key;
+        }
+        try {
+            addKeysProcess(addKeys, listener);
+        } catch(KeyProcessException e) {
+            final Object[] failedKeys = e.getFailedKeys();
+            for(int i = 0; i < failedKeys.length; i++) {
+                listener.keys.remove(new SharedKey(failedKeys[i]));
+            }
+            throw e;
+        } catch(Exception e) {
+            listener.keys.removeAll(sharedKeys);
+            throw e;
+        } finally {
+            if(listener.isClosed) {
+                closeMessageListener(listener, sender);
+            }
+        }
+    }
+
+    public void removeKeys(Object[] keys, MessageSender sender) throws Exception {
+        if(keys == null || keys.length == 0) {
+            return;
+        }
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return;
+        }
+        final List sharedKeys = new ArrayList(keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            SharedKey sharedKey = new SharedKey(keys[i]);
+            if(listener.keys.remove(sharedKey)) {
+                sharedKeys.add(sharedKey);
+            }
+        }
+        if(sharedKeys.isEmpty()) {
+            return;
+        }
+        if(isDispatching()) {
+            unsubscribeKeys(sharedKeys, listener);
+            return;
+        }
+        final Object[] removeKeys = new Object[sharedKeys.size()];
+        for(int i = 0; i < removeKeys.length; i++) {
+            removeKeys[i] = ((SharedKey)sharedKeys.get(i)).key;
+        }
+        removeKeysProcess(removeKeys, listener);
+    }
+
+    public void replaceKeys(Object[] keys, MessageSender sender) throws Exception {
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return;
+        }
+        synchronized(listener) {
+            final Set newKeys = new LinkedHashSet();
+            if(keys != null) {
+                for(int i = 0; i < keys.length; i++) {
+                    newKeys.add(new SharedKey(keys[i]));
+                }
+            }
+            final List removeKeys = new ArrayList();
+            final Iterator keyItr = listener.keys.iterator();
+            while(keyItr.hasNext()) {
+                SharedKey sharedKey = (SharedKey)keyItr.next();
+                if(!newKeys.remove(sharedKey)) {
+                    removeKeys.add(sharedKey.key);
+                }
+            }
+            Exception exception = null;
+            if(!removeKeys.isEmpty()) {
+                try {
+                    removeKeys(removeKeys.toArray(), sender);
+                } catch(Exception e) {
+                    exception = e;
+                }
+            }
+            if(!newKeys.isEmpty()) {
+                final Object[] addKeys = new Object[newKeys.size()];
+                final Iterator itr = newKeys.iterator();
+                for(int i = 0; i < addKeys.length; i++) {
+                    addKeys[i] = ((SharedKey)itr.next()).key;
+                }
+                try {
+                    addKeys(addKeys, sender);
+                } catch(Exception e) {
+                    if(exception == null) {
+                        exception = e;
+                    }
+                }
+            }
+            if(exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * キーオブジェクトをサブジェクト毎にまとめる。
+     * <p>
+     * サブジェクトを取得できないキーオブジェクトは、nullのサブジェクトにまとめる。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @return サブジェクトとキーオブジェクトのリストのマップ
+     */
+    protected Map groupBySubject(Object[] keys) {
+        final Map subjectKeysMap = new LinkedHashMap();
+        for(int i = 0; i < keys.length; i++) {
+            final String subject = getSubject(keys[i]);
+            List list = (List)subjectKeysMap.get(subject);
+            if(list == null) {
+                list = new ArrayList();
+                subjectKeysMap.put(subject, list);
+            }
+            list.add(keys[i]);
+        }
+        return subjectKeysMap;
+    }
+
+    /**
+     * キャッシュされた配信メッセージのスナップショットを取得する。
+     * <p>
+     * サブジェクトのロックはスナップショットの取得と受信番号の記録の間だけ保持し、送信は呼び出し元でロックの外で行う。<br>
+     *
+     * @param subject サブジェクト
+     * @param keys キーの配列。nullの場合は、サブジェクトの全てのキー
+     * @param state メッセージ送信対象のサブジェクトに対するスナップショットの送信状態
+     * @return 送信するオブジェクトのリスト
+     */
+    protected List takeLastValues(String subject, String[] keys, SnapshotState state) {
+        final LastValueCache cache = lastValueCache;
+        if(cache == null) {
+            return Collections.EMPTY_LIST;
+        }
+        List entries = null;
+        final SubjectStripe stripe = getSubjectStripe(subject);
+        synchronized(stripe) {
+            entries = cache.get(subject, keys);
+            state.cover(keys, stripe.stamp);
+        }
+        final List result = new ArrayList(entries.size());
+        for(int i = 0, imax = entries.size(); i < imax; i++) {
+            result.add(((LastValueCache.Entry)entries.get(i)).getObject());
+        }
+        return result;
+    }
+
+    /**
+     * スナップショットや再送する配信メッセージをメッセージ送信対象に送信する。
+     * <p>
+     *
+     * @param listener メッセージ送信対象のMessageListener
+     * @param messages 送信するオブジェクトのリスト
+     */
+    protected void sendMessages(PublishMessageListener listener, List messages) {
+        for(int i = 0, imax = messages.size(); i < imax; i++) {
+            listener.sender.sendMessage(messages.get(i));
+        }
+    }
+
+    /**
+     * メッセージ送信対象のサブジェクトに対するスナップショットの送信を開始する。
+     * <p>
+     * 送信を終了するまで、そのサブジェクトのライブの配信メッセージはメッセージ送信対象毎に保留される。<br>
+     * 購読の登録より前に呼び出すこと。<br>
+     *
+     * @param listener メッセージ送信対象のMessageListener
+     * @param subject サブジェクト
+     * @return スナップショットの送信状態
+     */
+    protected SnapshotState beginSnapshot(PublishMessageListener listener, String subject) {
+        while(true) {
+            SnapshotState state = (SnapshotState)listener.snapshotStateMap.get(subject);
+            if(state == null) {
+                state = new SnapshotState();
+                SnapshotState old = (SnapshotState)listener.snapshotStateMap.putIfAbsent(subject, state);
+                if(old != null) {
+                    state = old;
+                }
+            }
+            if(state.begin()) {
+                return state;
+            }
+            listener.snapshotStateMap.remove(subject, state);
+        }
+    }
+
+    /**
+     * メッセージ送信対象のサブジェクトに対するスナップショットの送信を終了する。
+     * <p>
+     * 保留したライブの配信メッセージのうち、スナップショットに含まれないものを送信する。<br>
+     *
+     * @param listener メッセージ送信対象のMessageListener
+     * @param state スナップショットの送信状態
+     */
+    protected void endSnapshot(PublishMessageListener listener, SnapshotState state) {
+        List messages = null;
+        while((messages = state.drain()) != null) {
+            sendMessages(listener, messages);
+        }
+    }
+
+    /**
+     * 配信メッセージに対するキーオブジェクトからサブジェクトを取得する。
+     * <p>
+     * キーオブジェクトは、サブジェクトの文字列、サブジェクトのみの配列、またはサブジェクトとキーの文字列配列の配列とする。<br>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return サブジェクト。取得できない場合はnull
+     */
+    protected String getSubject(Object key) {
+        if(key instanceof String) {
+            return (String)key;
+        } else if(key instanceof Object[]) {
+            Object[] keys = (Object[])key;
+            if(keys.length > 0 && keys[0] instanceof String) {
+                return (String)keys[0];
+            }
         }
+        return null;
+    }
+
+    /**
+     * 配信メッセージに対するキーオブジェクトからキーの配列を取得する。
+     * <p>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return キーの配列。サブジェクトのみの場合はnull
+     */
+    protected String[] getKeys(Object key) {
+        if(key instanceof Object[]) {
+            Object[] keys = (Object[])key;
+            if(keys.length == 2 && keys[1] instanceof String[]) {
+                return (String[])keys[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 指定されたサブジェクトに対する、スナップショットの取得と受信番号の採番を順序付けるためのロックを取得する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @return ロックオブジェクト
+     */
+    protected SubjectStripe getSubjectStripe(String subject) {
+        int h = subject.hashCode();
+        return subjectLocks[(h ^ (h >>> 16)) & (subjectLocks.length - 1)];
     }
 
     public void removeKey(Object key, MessageSender sender) throws Exception {
-        if(senderListenerMap.containsKey(sender.getSession().getId())) {
-            removeKeyProcess(key, (MessageListener)senderListenerMap.get(sender.getSession().getId()));
+        PublishMessageListener listener = getMessageListener(sender);
+        if(listener == null) {
+            return;
+        }
+        if(isDispatching()) {
+            SharedKey sharedKey = new SharedKey(key);
+            if(listener.keys.remove(sharedKey)) {
+                unsubscribeKeys(Collections.singletonList(sharedKey), listener);
+            }
+            return;
+        }
+        listener.keys.remove(new SharedKey(key));
+        removeKeyProcess(key, listener);
+    }
+
+    /**
+     * メッセージ送信対象のMessageListenerに、キーオブジェクトの購読を追加する。
+     * <p>
+     * キーオブジェクトを{@link #toRouteKeys(Object)}でサブジェクト、またはサブジェクトとキーの組の購読に分解し、メッセージ送信対象が初めて購読する組のみを{@link #subscribeSharedKeys(List, PublishMessageListener, List)}で購読する。<br>
+     * 購読に失敗した組を含むキーオブジェクトは、そのキーオブジェクトで追加した組の購読を取り消して、失敗したキーオブジェクトとして返す。<br>
+     * 購読に分解できないキーオブジェクトは、購読せずに失敗したキーオブジェクトとして返す。<br>
+     *
+     * @param sharedKeys 追加するキーオブジェクトのリスト
+     * @param listener メッセージ送信対象のMessageListener
+     * @param errors 発生した例外を格納するリスト
+     * @return 購読に失敗したキーオブジェクトのリスト
+     */
+    protected List subscribeKeys(List sharedKeys, PublishMessageListener listener, List errors) {
+        final List failedKeys = new ArrayList();
+        synchronized(listener.routeCounts) {
+            final List routeKeysList = new ArrayList(sharedKeys.size());
+            final List newRouteKeys = new ArrayList();
+            for(int i = 0, imax = sharedKeys.size(); i < imax; i++) {
+                List routeKeys = null;
+                try {
+                    routeKeys = toRouteKeys(((SharedKey)sharedKeys.get(i)).key);
+                } catch(IllegalArgumentException e) {
+                    errors.add(e);
+                    failedKeys.add(sharedKeys.get(i));
+                    routeKeys = Collections.EMPTY_LIST;
+                }
+                routeKeysList.add(routeKeys);
+                for(int j = 0, jmax = routeKeys.size(); j < jmax; j++) {
+                    if(listener.incrementRoute((SharedKey)routeKeys.get(j))) {
+                        newRouteKeys.add(routeKeys.get(j));
+                    }
+                }
+            }
+            if(newRouteKeys.isEmpty()) {
+                return failedKeys;
+            }
+            final Set failedRouteKeys = subscribeSharedKeys(newRouteKeys, listener, errors);
+            if(failedRouteKeys.isEmpty()) {
+                return failedKeys;
+            }
+            final List releaseKeys = new ArrayList();
+            for(int i = 0, imax = sharedKeys.size(); i < imax; i++) {
+                final List routeKeys = (List)routeKeysList.get(i);
+                if(routeKeys.isEmpty() || Collections.disjoint(failedRouteKeys, routeKeys)) {
+                    continue;
+                }
+                failedKeys.add(sharedKeys.get(i));
+                for(int j = 0, jmax = routeKeys.size(); j < jmax; j++) {
+                    final SharedKey routeKey = (SharedKey)routeKeys.get(j);
+                    if(listener.decrementRoute(routeKey) && !failedRouteKeys.contains(routeKey)) {
+                        releaseKeys.add(routeKey);
+                    }
+                }
+            }
+            try {
+                unsubscribeSharedKeys(releaseKeys, listener);
+            } catch(Exception e) {
+            }
+        }
+        return failedKeys;
+    }
+
+    /**
+     * メッセージ送信対象のMessageListenerから、キーオブジェクトの購読を削除する。
+     * <p>
+     * 他のキーオブジェクトでも購読している組は、購読を継続する。<br>
+     *
+     * @param sharedKeys 削除するキーオブジェクトのリスト
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception Exception MessageReceiverからの削除に失敗した場合
+     */
+    protected void unsubscribeKeys(List sharedKeys, PublishMessageListener listener) throws Exception {
+        synchronized(listener.routeCounts) {
+            final List releaseKeys = new ArrayList();
+            for(int i = 0, imax = sharedKeys.size(); i < imax; i++) {
+                final List routeKeys = toRouteKeys(((SharedKey)sharedKeys.get(i)).key);
+                for(int j = 0, jmax = routeKeys.size(); j < jmax; j++) {
+                    if(listener.decrementRoute((SharedKey)routeKeys.get(j))) {
+                        releaseKeys.add(routeKeys.get(j));
+                    }
+                }
+            }
+            unsubscribeSharedKeys(releaseKeys, listener);
+        }
+    }
+
+    /**
+     * キーオブジェクトを、MessageReceiverに登録する単位の購読に分解する。
+     * <p>
+     * サブジェクトのみのキーオブジェクトはサブジェクトの文字列に、サブジェクトとキーの文字列配列の配列はキー毎のサブジェクトとキーの組に分解する。<br>
+     * パターンと、サポートしない形式のキーオブジェクトは分解しない。<br>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return 購読のリスト
+     */
+    protected List toRouteKeys(Object key) {
+        final String pattern = getPattern(key);
+        if(pattern != null) {
+            return Collections.singletonList(new SharedKey(pattern));
+        }
+        final String subject = getSubject(key);
+        final String[] keys = getKeys(key);
+        if(subject == null || (key instanceof Object[] && ((Object[])key).length != 1 && keys == null)) {
+            return Collections.singletonList(new SharedKey(key));
+        }
+        if(keys == null) {
+            return Collections.singletonList(new SharedKey(subject));
+        }
+        final List routeKeys = new ArrayList(keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            routeKeys.add(new SharedKey(new Object[] {subject, new String[] {keys[i]}}));
+        }
+        return routeKeys;
+    }
+
+    /**
+     * キーオブジェクトがワイルドカードを含むパターンの場合に、そのパターンを取得する。
+     * <p>
+     * デフォルトの実装では、パターンをサポートしないためnullを返す。<br>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return パターン。パターンでない場合はnull
+     */
+    protected String getPattern(Object key) {
+        return null;
+    }
+
+    /**
+     * 購読を共有するMessageListenerにメッセージ送信対象を追加する。
+     * <p>
+     * 購読に対する最初の購読の場合は、MessageListenerを生成して{@link #registerSharedKeys(List, List)}でMessageReceiverに一括で登録する。<br>
+     * 登録はマップのロックを保持せずに行い、並行して同じ購読を追加する場合は、その購読のMessageListenerの登録完了のみを待つ。<br>
+     * 参照カウントが0になり削除中のMessageListenerを見つけた場合は、MessageReceiverからの削除の完了を待ってから新たに生成し直す。<br>
+     *
+     * @param sharedKeys 購読のリスト
+     * @param sender メッセージ送信対象のMessageListener。メッセージ送信対象を追加せずに購読のみを保持する場合はnull
+     * @param errors 発生した例外を格納するリスト
+     * @return 登録に失敗した購読の集合
+     */
+    protected Set subscribeSharedKeys(List sharedKeys, PublishMessageListener sender, List errors) {
+        final List created = new ArrayList();
+        final List acquired = new ArrayList();
+        for(int i = 0, imax = sharedKeys.size(); i < imax; i++) {
+            final SharedKey sharedKey = (SharedKey)sharedKeys.get(i);
+            while(true) {
+                SharedKeyMessageListener listener = (SharedKeyMessageListener)sharedKeyListenerMap.get(sharedKey);
+                if(listener == null) {
+                    listener = new SharedKeyMessageListener(sharedKey);
+                    if(sharedKeyListenerMap.putIfAbsent(sharedKey, listener) != null) {
+                        continue;
+                    }
+                    created.add(listener);
+                    break;
+                }
+                if(!listener.acquire()) {
+                    listener.awaitReleased();
+                    sharedKeyListenerMap.remove(sharedKey, listener);
+                    continue;
+                }
+                acquired.add(listener);
+                break;
+            }
+        }
+        final Set failed = new HashSet();
+        if(!created.isEmpty()) {
+            final Set failedKeys = registerSharedKeys(created, errors);
+            for(int i = 0, imax = created.size(); i < imax; i++) {
+                final SharedKeyMessageListener listener = (SharedKeyMessageListener)created.get(i);
+                if(failedKeys.contains(listener.sharedKey)) {
+                    listener.refCount.set(0);
+                    sharedKeyListenerMap.remove(listener.sharedKey, listener);
+                    listener.setRegistered(false);
+                    listener.setReleased();
+                    failed.add(listener.sharedKey);
+                } else {
+                    if(sender != null) {
+                        listener.senders.add(sender);
+                    }
+                    listener.setRegistered(true);
+                }
+            }
+        }
+        for(int i = 0, imax = acquired.size(); i < imax; i++) {
+            final SharedKeyMessageListener listener = (SharedKeyMessageListener)acquired.get(i);
+            if(listener.awaitRegistered()) {
+                if(sender != null) {
+                    listener.senders.add(sender);
+                }
+            } else {
+                failed.addAll(subscribeSharedKeys(Collections.singletonList(listener.sharedKey), sender, errors));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * 購読を共有するMessageListenerからメッセージ送信対象を削除する。
+     * <p>
+     * 購読に対する最後の購読解除の場合は、{@link #unregisterSharedKeys(List)}でMessageReceiverから一括で削除する。<br>
+     * 削除はマップのロックを保持せずに行う。<br>
+     *
+     * @param sharedKeys 購読のリスト
+     * @param sender メッセージ送信対象のMessageListener
+     * @exception Exception MessageReceiverからの削除に失敗した場合
+     */
+    protected void unsubscribeSharedKeys(List sharedKeys, PublishMessageListener sender) throws Exception {
+        final List released = new ArrayList();
+        for(int i = 0, imax = sharedKeys.size(); i < imax; i++) {
+            final SharedKey sharedKey = (SharedKey)sharedKeys.get(i);
+            final SharedKeyMessageListener listener = (SharedKeyMessageListener)sharedKeyListenerMap.get(sharedKey);
+            if(listener == null || !listener.awaitRegistered()) {
+                continue;
+            }
+            listener.senders.remove(sender);
+            if(listener.release()) {
+                released.add(listener);
+            }
+        }
+        if(released.isEmpty()) {
+            return;
+        }
+        try {
+            unregisterSharedKeys(released);
+        } finally {
+            for(int i = 0, imax = released.size(); i < imax; i++) {
+                final SharedKeyMessageListener listener = (SharedKeyMessageListener)released.get(i);
+                sharedKeyListenerMap.remove(listener.sharedKey, listener);
+                listener.setReleased();
+            }
+        }
+    }
+
+    /**
+     * 購読を共有するMessageListenerをMessageReceiverに登録する。
+     * <p>
+     * サブジェクト、またはサブジェクトとキーの組の購読は、{@link #dispatchMessageListener}に対して{@link #addKeysProcess(Object[], MessageListener)}で一括で登録する。<br>
+     * パターンの購読は、購読を共有するMessageListenerに対して{@link #addKeyProcess(Object, MessageListener)}で登録する。<br>
+     *
+     * @param listeners 登録する購読を共有するMessageListenerのリスト
+     * @param errors 発生した例外を格納するリスト
+     * @return 登録に失敗した購読の集合
+     */
+    protected Set registerSharedKeys(List listeners, List errors) {
+        final Set failed = new HashSet();
+        final List keys = new ArrayList(listeners.size());
+        for(int i = 0, imax = listeners.size(); i < imax; i++) {
+            final SharedKeyMessageListener listener = (SharedKeyMessageListener)listeners.get(i);
+            if(getPattern(listener.sharedKey.key) == null) {
+                keys.add(listener.sharedKey.key);
+                continue;
+            }
+            try {
+                addKeyProcess(listener.sharedKey.key, listener);
+            } catch(Exception e) {
+                errors.add(e);
+                failed.add(listener.sharedKey);
+            }
+        }
+        if(!keys.isEmpty()) {
+            try {
+                addKeysProcess(keys.toArray(), dispatchMessageListener);
+            } catch(KeyProcessException e) {
+                errors.add(e);
+                final Object[] failedKeys = e.getFailedKeys();
+                for(int i = 0; i < failedKeys.length; i++) {
+                    failed.add(new SharedKey(failedKeys[i]));
+                }
+            } catch(Exception e) {
+                errors.add(e);
+                for(int i = 0, imax = keys.size(); i < imax; i++) {
+                    failed.add(new SharedKey(keys.get(i)));
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * 購読を共有するMessageListenerをMessageReceiverから削除する。
+     * <p>
+     *
+     * @param listeners 削除する購読を共有するMessageListenerのリスト
+     * @exception Exception 削除に失敗した場合
+     */
+    protected void unregisterSharedKeys(List listeners) throws Exception {
+        Exception exception = null;
+        final List keys = new ArrayList(listeners.size());
+        for(int i = 0, imax = listeners.size(); i < imax; i++) {
+            final SharedKeyMessageListener listener = (SharedKeyMessageListener)listeners.get(i);
+            if(getPattern(listener.sharedKey.key) == null) {
+                keys.add(listener.sharedKey.key);
+                continue;
+            }
+            try {
+                removeKeyProcess(listener.sharedKey.key, listener);
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if(!keys.isEmpty()) {
+            try {
+                removeKeysProcess(keys.toArray(), dispatchMessageListener);
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if(exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * メッセージ送信対象を追加せずに、サブジェクトの購読を保持する。
+     * <p>
+     * 保持した購読は、サービスの停止まで解除しない。<br>
+     *
+     * @param subject サブジェクト
+     * @exception Exception MessageReceiverへの登録に失敗した場合
+     */
+    protected void addDispatchSubject(String subject) throws Exception {
+        final List errors = new ArrayList(1);
+        if(!subscribeSharedKeys(Collections.singletonList(new SharedKey(subject)), null, errors).isEmpty()) {
+            throw (Exception)errors.get(0);
+        }
+    }
+
+    /**
+     * 受信した配信メッセージに一致する購読を共有するMessageListenerを集める。
+     * <p>
+     * 配信メッセージの全てのサブジェクトについて、サブジェクトの購読と、サブジェクトとキーの組の購読を集める。<br>
+     *
+     * @param message 配信メッセージ
+     * @param result 一致した購読を共有するMessageListenerを格納する集合
+     */
+    protected void matchSharedKeys(Message message, Set result) {
+        final Set subjects = message.getSubjects();
+        if(subjects == null || subjects.isEmpty()) {
+            matchSharedKeys(message.getSubject(), message.getKey(), result);
+            return;
+        }
+        final Iterator itr = subjects.iterator();
+        while(itr.hasNext()) {
+            final String subject = (String)itr.next();
+            matchSharedKeys(subject, message.getKey(subject), result);
+        }
+    }
+
+    /**
+     * 指定されたサブジェクトとキーに一致する購読を共有するMessageListenerを集める。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param key キー
+     * @param result 一致した購読を共有するMessageListenerを格納する集合
+     */
+    protected void matchSharedKeys(String subject, String key, Set result) {
+        if(subject == null) {
+            return;
+        }
+        Object listener = sharedKeyListenerMap.get(new SharedKey(subject));
+        if(listener != null) {
+            result.add(listener);
+        }
+        if(key != null) {
+            listener = sharedKeyListenerMap.get(new SharedKey(new Object[] {subject, new String[] {key}}));
+            if(listener != null) {
+                result.add(listener);
+            }
+        }
+    }
+
+    /**
+     * 受信した配信メッセージを、メッセージ送信対象の集合に送信する。
+     * <p>
+     * キャッシュや再送バッファを使用する場合は、{@link #receive(Message)}で1度だけ処理する。<br>
+     *
+     * @param message 配信メッセージ
+     * @param senders メッセージ送信対象のMessageListenerの集合
+     */
+    protected void dispatch(Message message, Set senders) {
+        final String subject = message.getSubject();
+        long stamp = 0;
+        Object object = null;
+        try {
+            if(subject != null && (lastValueCache != null || replayBufferMap != null)) {
+                final ReceivedMessage received = receive(message);
+                stamp = received.stamp;
+                object = received.object;
+            } else {
+                if(senders.isEmpty()) {
+                    return;
+                }
+                object = message.getObject();
+            }
+        } catch(MessageException e) {
+            getLogger().write(sendErrorMessageId, subject, e);
+            return;
+        }
+        final Iterator itr = senders.iterator();
+        while(itr.hasNext()) {
+            final PublishMessageListener listener = (PublishMessageListener)itr.next();
+            try {
+                if(subject == null || (lastValueCache == null && replayBufferMap == null)) {
+                    listener.sender.sendMessage(object);
+                } else {
+                    listener.deliver(subject, message.getKey(), stamp, object);
+                }
+            } catch(RuntimeException e) {
+                getLogger().write(sendErrorMessageId, SessionProperties.getSessionProperty(listener.sender.getSession()), e);
+            }
         }
     }
     
@@ -153,6 +1329,61 @@ public abstract class AbstractPublishMessageDispatcherService extends ServiceBas
      * @param sender メッセージ送信対象
      */
     public abstract void removeKeyProcess(Object key, MessageListener listener) throws Exception;
+
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を追加する
+     * <p>
+     * デフォルトの実装では、キーオブジェクト毎に{@link #addKeyProcess(Object, MessageListener)}を呼び出し、失敗したキーオブジェクトがあった場合は、失敗したキーオブジェクトと最初に発生した例外を持つ{@link KeyProcessException}を投げる。<br>
+     * オーバーライドする場合も、失敗したキーオブジェクトを特定できる場合は{@link KeyProcessException}を投げること。それ以外の例外は、全てのキーオブジェクトが失敗したものとして扱う。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception Exception 登録に失敗した場合
+     */
+    public void addKeysProcess(Object[] keys, MessageListener listener) throws Exception {
+        Exception exception = null;
+        final List failedKeys = new ArrayList();
+        for(int i = 0; i < keys.length; i++) {
+            try {
+                addKeyProcess(keys[i], listener);
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+                failedKeys.add(keys[i]);
+            }
+        }
+        if(exception != null) {
+            throw new KeyProcessException(failedKeys.toArray(), exception);
+        }
+    }
+
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を削除する
+     * <p>
+     * デフォルトの実装では、キーオブジェクト毎に{@link #removeKeyProcess(Object, MessageListener)}を呼び出し、失敗したキーオブジェクトがあった場合は、失敗したキーオブジェクトと最初に発生した例外を持つ{@link KeyProcessException}を投げる。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param listener メッセージ送信対象のMessageListener
+     * @exception Exception 削除に失敗した場合
+     */
+    public void removeKeysProcess(Object[] keys, MessageListener listener) throws Exception {
+        Exception exception = null;
+        final List failedKeys = new ArrayList();
+        for(int i = 0; i < keys.length; i++) {
+            try {
+                removeKeyProcess(keys[i], listener);
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+                failedKeys.add(keys[i]);
+            }
+        }
+        if(exception != null) {
+            throw new KeyProcessException(failedKeys.toArray(), exception);
+        }
+    }
     
     /**
      * MessageReceiverからMessageを受信するためのMessageListener
@@ -162,12 +1393,75 @@ public abstract class AbstractPublishMessageDispatcherService extends ServiceBas
      */
     protected class PublishMessageListener implements MessageListener {
 
-        private MessageSender sender;
+        protected final MessageSender sender;
+        
+        /**
+         * メッセージ送信対象が購読しているキーの集合。
+         */
+        protected final Set keys = Collections.newSetFromMap(new ConcurrentHashMap());
+        
+        /**
+         * メッセージ送信対象が削除された場合true。削除と並行して追加された購読を解除するために使用する。
+         */
+        protected volatile boolean isClosed;
+        
+        /**
+         * サブジェクト毎のスナップショットの送信状態。スナップショットの送信中のライブの配信メッセージを保留し、スナップショットと重複して送信しないために保持する。
+         */
+        protected final ConcurrentMap snapshotStateMap = new ConcurrentHashMap();
+        
+        /**
+         * 本サービスで配信する場合の、購読毎の参照カウント。同じ購読を含む複数のキーオブジェクトを購読した場合に、最後のキーオブジェクトの削除まで購読を継続するために保持する。
+         * <p>
+         * このオブジェクトを同期して更新する。<br>
+         */
+        protected final Map routeCounts = new HashMap();
         
         protected PublishMessageListener(MessageSender sender) {
             this.sender = sender;
         }
         
+        /**
+         * 購読の参照カウントを1つ増やす。
+         * <p>
+         * 呼び出し元で{@link #routeCounts}を同期すること。<br>
+         *
+         * @param routeKey 購読
+         * @return 最初の参照の場合true
+         */
+        protected boolean incrementRoute(SharedKey routeKey) {
+            final int[] count = (int[])routeCounts.get(routeKey);
+            if(count == null) {
+                routeCounts.put(routeKey, new int[] {1});
+                return true;
+            }
+            count[0]++;
+            return false;
+        }
+        
+        /**
+         * 購読の参照カウントを1つ減らす。
+         * <p>
+         * 呼び出し元で{@link #routeCounts}を同期すること。<br>
+         *
+         * @param routeKey 購読
+         * @return 最後の参照を解放した場合true
+         */
+        protected boolean decrementRoute(SharedKey routeKey) {
+            final int[] count = (int[])routeCounts.get(routeKey);
+            if(count == null) {
+                return false;
+            }
+            if(--count[0] > 0) {
+                return false;
+            }
+            routeCounts.remove(routeKey);
+            return true;
+        }
+        
+        /**
+         * 本サービスで配信しない場合に、MessageReceiverから配信メッセージを受信する。
+         */
         public void onMessage(Message message) {
             messageReceiveCount++;
             try {
@@ -176,5 +1470,388 @@ public abstract class AbstractPublishMessageDispatcherService extends ServiceBas
                 getLogger().write(sendErrorMessageId, SessionProperties.getSessionProperty(sender.getSession()), e);
             }
         }
+        
+        /**
+         * ライブの配信メッセージをメッセージ送信対象に送信する。
+         * <p>
+         * サブジェクトのスナップショットを送信中の場合は保留し、スナップショットに含まれる場合は破棄する。<br>
+         *
+         * @param subject サブジェクト
+         * @param key キー
+         * @param stamp 受信番号
+         * @param object 送信するオブジェクト
+         */
+        protected void deliver(String subject, String key, long stamp, Object object) {
+            if(!snapshotStateMap.isEmpty()) {
+                final SnapshotState state = (SnapshotState)snapshotStateMap.get(subject);
+                if(state != null) {
+                    if(!state.offer(key, stamp, object)) {
+                        return;
+                    }
+                    if(state.expire(stamp)) {
+                        snapshotStateMap.remove(subject, state);
+                    }
+                }
+            }
+            sender.sendMessage(object);
+        }
+    }
+    
+    /**
+     * サブジェクトのロックと、そのロックで採番する受信番号。
+     * <p>
+     * 呼び出し元でこのオブジェクトを同期すること。<br>
+     *
+     * @author M.Ishida
+     */
+    protected static class SubjectStripe {
+        
+        /**
+         * 最後に採番した受信番号。
+         */
+        protected long stamp;
+    }
+    
+    /**
+     * 受信した配信メッセージの、送信するオブジェクトと受信番号。
+     *
+     * @author M.Ishida
+     */
+    protected static class ReceivedMessage {
+        
+        protected final Object object;
+        protected final long stamp;
+        
+        protected ReceivedMessage(Object object, long stamp) {
+            this.object = object;
+            this.stamp = stamp;
+        }
+    }
+    
+    /**
+     * メッセージ送信対象のサブジェクトに対するスナップショットの送信状態。
+     * <p>
+     * スナップショットを取得した時点の受信番号をキー毎に記録し、それ以前に採番されたライブの配信メッセージを破棄する。<br>
+     * 記録した受信番号より後のライブの配信メッセージを送信した時点で不要となる。<br>
+     *
+     * @author M.Ishida
+     */
+    protected static class SnapshotState {
+        
+        private int sendingCount;
+        private boolean isExpired;
+        private long allKeysStamp;
+        private long maxStamp;
+        private final Map keyStampMap = new HashMap();
+        private List pending = new ArrayList();
+        
+        /**
+         * スナップショットの送信を開始する。
+         * <p>
+         *
+         * @return 開始できた場合true。既に不要となっている場合false
+         */
+        protected synchronized boolean begin() {
+            if(isExpired) {
+                return false;
+            }
+            sendingCount++;
+            return true;
+        }
+        
+        /**
+         * スナップショットに含まれるキーと、スナップショットを取得した時点の受信番号を記録する。
+         * <p>
+         * 呼び出し元でサブジェクトのロックを取得すること。<br>
+         *
+         * @param keys キーの配列。nullの場合は、サブジェクトの全てのキー
+         * @param stamp 受信番号
+         */
+        protected synchronized void cover(String[] keys, long stamp) {
+            if(keys == null) {
+                allKeysStamp = Math.max(allKeysStamp, stamp);
+            } else {
+                for(int i = 0; i < keys.length; i++) {
+                    keyStampMap.put(keys[i], new Long(stamp));
+                }
+            }
+            maxStamp = Math.max(maxStamp, stamp);
+        }
+        
+        private boolean isCovered(String key, long stamp) {
+            if(stamp <= allKeysStamp) {
+                return true;
+            }
+            if(keyStampMap.isEmpty()) {
+                return false;
+            }
+            final Long keyStamp = (Long)keyStampMap.get(key);
+            return keyStamp != null && stamp <= keyStamp.longValue();
+        }
+        
+        /**
+         * ライブの配信メッセージを送信するかどうかを判定する。
+         * <p>
+         * スナップショットの送信中の場合は保留する。<br>
+         *
+         * @param key キー
+         * @param stamp 受信番号
+         * @param object 送信するオブジェクト
+         * @return 呼び出し元で送信する場合true
+         */
+        protected synchronized boolean offer(String key, long stamp, Object object) {
+            if(sendingCount > 0) {
+                pending.add(new Object[] {key, new Long(stamp), object});
+                return false;
+            }
+            return !isCovered(key, stamp);
+        }
+        
+        /**
+         * 記録した受信番号より後のライブの配信メッセージの場合に、不要とする。
+         * <p>
+         *
+         * @param stamp 送信したライブの配信メッセージの受信番号
+         * @return 不要となった場合true
+         */
+        protected synchronized boolean expire(long stamp) {
+            if(sendingCount == 0 && stamp > maxStamp) {
+                isExpired = true;
+            }
+            return isExpired;
+        }
+        
+        /**
+         * 保留したライブの配信メッセージのうち、スナップショットに含まれないものを取り出す。
+         * <p>
+         * 保留がなくなるまで繰り返し呼び出し、nullが返った時点でスナップショットの送信を終了する。<br>
+         * 並行して他のスナップショットを送信中の場合は、最後に終了する呼び出し元が取り出す。<br>
+         *
+         * @return 送信するオブジェクトのリスト。送信を終了した場合はnull
+         */
+        protected synchronized List drain() {
+            if(sendingCount > 1 || pending.isEmpty()) {
+                sendingCount--;
+                return null;
+            }
+            final List messages = pending;
+            pending = new ArrayList();
+            final List result = new ArrayList(messages.size());
+            for(int i = 0, imax = messages.size(); i < imax; i++) {
+                final Object[] message = (Object[])messages.get(i);
+                if(!isCovered((String)message[0], ((Long)message[1]).longValue())) {
+                    result.add(message[2]);
+                }
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * 配信メッセージに対するキーオブジェクトを、配列の場合も含めて値で比較するためのラッパー。
+     * 
+     * @author m-ishida
+     *
+     */
+    protected static class SharedKey {
+        
+        protected final Object key;
+        private final int hashCode;
+        
+        protected SharedKey(Object key) {
+            this.key = key;
+            hashCode = Arrays.deepHashCode(new Object[] {key});
+        }
+        
+        public int hashCode() {
+            return hashCode;
+        }
+        
+        public boolean equals(Object obj) {
+            if(obj == this) {
+                return true;
+            }
+            if(!(obj instanceof SharedKey)) {
+                return false;
+            }
+            SharedKey other = (SharedKey)obj;
+            return hashCode == other.hashCode && Arrays.deepEquals(new Object[] {key}, new Object[] {other.key});
+        }
+        
+        public String toString() {
+            return Arrays.deepToString(new Object[] {key});
+        }
+    }
+    
+    /**
+     * 本サービスで配信する場合に、MessageReceiverに登録する唯一のMessageListener。
+     * <p>
+     * 受信した配信メッセージに一致する全ての購読のメッセージ送信対象を集合として1度だけ求め、{@link #dispatch(Message, Set)}で送信する。<br>
+     * 
+     * @author M.Ishida
+     *
+     */
+    protected class DispatchMessageListener implements MessageListener {
+        
+        /**
+         * 一致した購読とメッセージ送信対象を格納する、スレッド毎に再利用する集合。
+         */
+        private final ThreadLocal matchedSets = new ThreadLocal() {
+            protected Object initialValue() {
+                return new Set[] {new HashSet(), new HashSet()};
+            }
+        };
+        
+        public void onMessage(Message message) {
+            messageReceiveCount++;
+            final Set[] sets = (Set[])matchedSets.get();
+            final Set sharedKeyListeners = sets[0];
+            final Set senders = sets[1];
+            try {
+                matchSharedKeys(message, sharedKeyListeners);
+                final Iterator itr = sharedKeyListeners.iterator();
+                while(itr.hasNext()) {
+                    senders.addAll(((SharedKeyMessageListener)itr.next()).senders);
+                }
+                dispatch(message, senders);
+            } finally {
+                sharedKeyListeners.clear();
+                senders.clear();
+            }
+        }
+    }
+    
+    /**
+     * 購読毎に、購読している全てのメッセージ送信対象を保持するMessageListener
+     * <p>
+     * サブジェクト、またはサブジェクトとキーの組の購読は、MessageReceiverに{@link DispatchMessageListener}を登録し、このオブジェクトはメッセージ送信対象の集合として参照される。<br>
+     * パターンの購読は、このオブジェクトを登録する。<br>
+     * 
+     * @author m-ishida
+     *
+     */
+    protected class SharedKeyMessageListener implements MessageListener {
+        
+        protected final SharedKey sharedKey;
+        protected final Set senders = Collections.newSetFromMap(new ConcurrentHashMap());
+        
+        /**
+         * キーの参照カウント。0になったMessageListenerは削除中であり、再び参照を獲得することはできない。
+         */
+        protected final AtomicInteger refCount = new AtomicInteger(1);
+        
+        private boolean isRegistrationFinished;
+        private boolean isRegistered;
+        private boolean isReleased;
+        
+        protected SharedKeyMessageListener(SharedKey sharedKey) {
+            this.sharedKey = sharedKey;
+        }
+        
+        /**
+         * 参照カウントを1つ増やす。
+         * <p>
+         *
+         * @return 参照を獲得できた場合true。削除中の場合false
+         */
+        protected boolean acquire() {
+            while(true) {
+                final int count = refCount.get();
+                if(count <= 0) {
+                    return false;
+                }
+                if(refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        /**
+         * 参照カウントを1つ減らす。
+         * <p>
+         *
+         * @return 最後の参照を解放した場合true
+         */
+        protected boolean release() {
+            while(true) {
+                final int count = refCount.get();
+                if(count <= 0) {
+                    return false;
+                }
+                if(refCount.compareAndSet(count, count - 1)) {
+                    return count == 1;
+                }
+            }
+        }
+        
+        /**
+         * MessageReceiverへの登録結果を設定し、登録完了を待っているスレッドを起こす。
+         * <p>
+         *
+         * @param isRegistered 登録に成功した場合true
+         */
+        protected synchronized void setRegistered(boolean isRegistered) {
+            this.isRegistered = isRegistered;
+            isRegistrationFinished = true;
+            notifyAll();
+        }
+        
+        /**
+         * MessageReceiverへの登録完了を待つ。
+         * <p>
+         *
+         * 待機中に割り込まれても登録完了まで待ち、割り込み状態を復元して返す。<br>
+         *
+         * @return 登録に成功している場合true
+         */
+        protected synchronized boolean awaitRegistered() {
+            boolean isInterrupted = false;
+            while(!isRegistrationFinished) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if(isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return isRegistered;
+        }
+        
+        /**
+         * MessageReceiverからの削除が完了したことを設定し、削除完了を待っているスレッドを起こす。
+         */
+        protected synchronized void setReleased() {
+            isReleased = true;
+            notifyAll();
+        }
+        
+        /**
+         * MessageReceiverからの削除完了を待つ。
+         * <p>
+         * 同じ購読を再び登録する前に呼び出し、削除と登録が逆転しないようにする。<br>
+         */
+        protected synchronized void awaitReleased() {
+            boolean isInterrupted = false;
+            while(!isReleased) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if(isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * このMessageListenerが直接呼び出された場合に、購読しているメッセージ送信対象に配信する。
+         */
+        public void onMessage(Message message) {
+            messageReceiveCount++;
+            dispatch(message, new HashSet(senders));
+        }
     }
 }
@@ -48,6 +48,18 @@ public interface AbstractPublishMessageDispatcherServiceMBean extends ServiceBas
      */
     public static final String DEFAULT_SEND_ERROR_MESSAGE_ID = "WS___00006";
 
+    /**
+     * サブジェクト毎の再送用バッファの最大バイト数のデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_REPLAY_BUFFER_BYTE_SIZE = 65536;
+
+    /**
+     * 配信メッセージの追加がないサブジェクトの再送用バッファを解放するまでの時間[ms]のデフォルト値。
+     * <p>
+     */
+    public static final long DEFAULT_REPLAY_BUFFER_IDLE_TIME = 300000L;
+
     /**
      * {@link jp.ossc.nimbus.service.publish.Message Message}を受信する{@link jp.ossc.nimbus.service.publish.MessageReceiver MessageReceiver}サービスのサービス名を取得する。<p>
      *
@@ -83,4 +95,186 @@ public interface AbstractPublishMessageDispatcherServiceMBean extends ServiceBas
      * @return メッセージの受信件数
      */
     public long getMessageReceiveCount() ;
+
+    /**
+     * キー毎にMessageListenerを共有して配信するかどうかを取得する。
+     *
+     * @return 共有する場合true
+     */
+    public boolean isSharedSubscription();
+
+    /**
+     * キー毎にMessageListenerを共有して配信するかどうかを設定する。デフォルトはfalse。
+     * <p>
+     * trueの場合、MessageReceiverには本サービスの1つのMessageListenerをサブジェクトとキーの組毎に1度だけ登録し、配信メッセージ毎に一致するメッセージ送信対象を集合として求めて本サービスで配信する。<br>
+     * LastValueCache、再送バッファ、ワイルドカードのいずれかを使用する場合は、この設定に関わらず本サービスで配信する。<br>
+     *
+     * @param isShared 共有する場合true
+     */
+    public void setSharedSubscription(boolean isShared);
+
+    /**
+     * 本サービスで配信する場合に、MessageReceiverに登録しているサブジェクト、サブジェクトとキーの組、パターンの数を取得する。
+     *
+     * @return 購読の数
+     */
+    public int getSharedKeyCount();
+
+    /**
+     * 登録されているメッセージ送信対象の数を取得する。
+     *
+     * @return メッセージ送信対象の数
+     */
+    public int getMessageSenderCount();
+
+    /**
+     * 最後に受信した配信メッセージをキャッシュするサブジェクトとキーの組み合わせの最大数を取得する。
+     *
+     * @return 最大数
+     */
+    public int getLastValueCacheSize();
+
+    /**
+     * 最後に受信した配信メッセージをキャッシュするサブジェクトとキーの組み合わせの最大数を設定する。デフォルトは-1で、キャッシュしない。
+     * <p>
+     * 指定した場合、キーの追加時にキャッシュされた配信メッセージを即座に送信する。<br>
+     *
+     * @param size 最大数
+     */
+    public void setLastValueCacheSize(int size);
+
+    /**
+     * キャッシュする配信メッセージの概算サイズの合計の最大値を取得する。
+     *
+     * @return 最大値
+     */
+    public long getLastValueCacheByteSize();
+
+    /**
+     * キャッシュする配信メッセージの概算サイズの合計の最大値を設定する。デフォルトは-1で、サイズによる制限はしない。
+     *
+     * @param size 最大値
+     */
+    public void setLastValueCacheByteSize(long size);
+
+    /**
+     * キャッシュしているサブジェクトとキーの組み合わせの数を取得する。
+     *
+     * @return キャッシュ数
+     */
+    public int getLastValueCacheCurrentSize();
+
+    /**
+     * キャッシュしている配信メッセージの概算サイズの合計を取得する。
+     *
+     * @return 概算サイズの合計
+     */
+    public long getLastValueCacheCurrentByteSize();
+
+    /**
+     * キーの追加時にキャッシュから送信した配信メッセージの件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getLastValueCacheHitCount();
+
+    /**
+     * 上限を超えたためキャッシュから削除した件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getLastValueCacheEvictionCount();
+
+    /**
+     * キャッシュをクリアする。
+     */
+    public void clearLastValueCache();
+
+    /**
+     * サブジェクト毎に再送用に保持する配信メッセージの最大件数を取得する。
+     *
+     * @return 最大件数
+     */
+    public int getReplayBufferSize();
+
+    /**
+     * サブジェクト毎に再送用に保持する配信メッセージの最大件数を設定する。デフォルトは-1で、通番の付与と再送をしない。
+     *
+     * @param size 最大件数
+     */
+    public void setReplayBufferSize(int size);
+
+    /**
+     * サブジェクト毎の再送用バッファの最大バイト数を取得する。
+     *
+     * @return 最大バイト数
+     */
+    public int getReplayBufferByteSize();
+
+    /**
+     * サブジェクト毎の再送用バッファの最大バイト数を設定する。デフォルトは{@link #DEFAULT_REPLAY_BUFFER_BYTE_SIZE}。
+     * <p>
+     * 再送用バッファはヒープ外に確保する。<br>
+     *
+     * @param size 最大バイト数
+     */
+    public void setReplayBufferByteSize(int size);
+
+    /**
+     * 再送用に配信メッセージを保持する時間[ms]を取得する。
+     *
+     * @return 保持する時間[ms]
+     */
+    public long getReplayBufferTime();
+
+    /**
+     * 再送用に配信メッセージを保持する時間[ms]を設定する。デフォルトは-1で、時間による制限はしない。
+     *
+     * @param time 保持する時間[ms]
+     */
+    public void setReplayBufferTime(long time);
+
+    /**
+     * 配信メッセージの追加がないサブジェクトの再送用バッファを解放するまでの時間[ms]を取得する。
+     *
+     * @return 解放するまでの時間[ms]
+     */
+    public long getReplayBufferIdleTime();
+
+    /**
+     * 配信メッセージの追加がないサブジェクトの再送用バッファを解放するまでの時間[ms]を設定する。デフォルトは{@link #DEFAULT_REPLAY_BUFFER_IDLE_TIME}。
+     * <p>
+     * 解放したサブジェクトの通番は継続し、解放前の通番からの再送要求にはキャッシュされた配信メッセージを送信する。0以下の場合は解放しない。<br>
+     *
+     * @param time 解放するまでの時間[ms]
+     */
+    public void setReplayBufferIdleTime(long time);
+
+    /**
+     * 格納領域を確保している再送用バッファの数を取得する。
+     *
+     * @return 再送用バッファの数
+     */
+    public int getReplayBufferAllocatedCount();
+
+    /**
+     * 再送用バッファを保持しているサブジェクトの数を取得する。
+     *
+     * @return サブジェクトの数
+     */
+    public int getReplayBufferSubjectCount();
+
+    /**
+     * 再送した配信メッセージの件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getReplayCount();
+
+    /**
+     * 指定された通番から再送できなかった件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getReplayGapCount();
 }
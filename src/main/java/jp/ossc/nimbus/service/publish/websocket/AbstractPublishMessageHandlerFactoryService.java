@@ -31,14 +31,26 @@
  */
 package jp.ossc.nimbus.service.publish.websocket;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.websocket.CloseReason;
 import javax.websocket.EndpointConfig;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 
 import jp.ossc.nimbus.core.Service;
 import jp.ossc.nimbus.core.ServiceManagerFactory;
 import jp.ossc.nimbus.core.ServiceName;
+import jp.ossc.nimbus.service.publish.Message;
 import jp.ossc.nimbus.service.websocket.AbstractMessageHandlerFactoryService;
+import jp.ossc.nimbus.service.websocket.CustomCloseReason;
 import jp.ossc.nimbus.service.websocket.ExceptionHandlerMappingService;
 import jp.ossc.nimbus.service.websocket.SessionProperties;
 
@@ -46,6 +58,16 @@ import jp.ossc.nimbus.service.websocket.SessionProperties;
  * WebSocketを使ったメッセージハンドラファクトリサービス抽象クラス。
  * MessageDispatcherに対して、配信してほしいメッセージのキーを登録することで、対象メッセージをクライアントに配信する。
  * <p>
+ * asyncSendがtrueの場合、メッセージは{@link Session#getAsyncRemote()}で非同期に送信する。<br>
+ * セッション毎に送信キューを持ち、同時に送信中となるメッセージは1件までとする。<br>
+ * 送信キューの件数がasyncSendQueueHighWatermark、またはバイト数がasyncSendQueueMaxByteSizeに達したセッションには、slowConsumerPolicyで指定したポリシーを適用する。<br>
+ * <ul>
+ * <li>{@link #SLOW_CONSUMER_POLICY_DROP_NEWEST}：asyncSendQueueLowWatermark以下に減るまで新たなメッセージを破棄する。</li>
+ * <li>{@link #SLOW_CONSUMER_POLICY_DROP_OLDEST}：閾値を下回るまで古いメッセージから破棄する。</li>
+ * <li>{@link #SLOW_CONSUMER_POLICY_CONFLATE}：同じ統合キーのメッセージが送信キューにあれば最新の値で置き換え、なければ古いメッセージから破棄する。統合キーは、デフォルトでは{@link SequencedMessage}、{@link Message}のサブジェクトとキーとする。</li>
+ * <li>{@link #SLOW_CONSUMER_POLICY_DISCONNECT}：送信キューを破棄し、{@link CustomCloseReason.CloseCodes#SLOW_CONSUMER}でセッションを切断する。</li>
+ * </ul>
+ * メッセージを破棄した場合は{@link SendQueueOverflowException}を、セッションを切断した場合は{@link SlowConsumerException}をメッセージ送信例外ハンドラに通知する。<br>
  *
  * @author M.Ishida
  */
@@ -59,7 +81,16 @@ public abstract class AbstractPublishMessageHandlerFactoryService extends Abstra
     protected ExceptionHandlerMappingService messageSendExceptionHandler;
     protected MessageDispatcher dispatcher;
 
+    protected boolean isAsyncSend;
+    protected int asyncSendQueueHighWatermark = DEFAULT_ASYNC_SEND_QUEUE_HIGH_WATERMARK;
+    protected int asyncSendQueueLowWatermark = DEFAULT_ASYNC_SEND_QUEUE_LOW_WATERMARK;
+    protected long asyncSendQueueMaxByteSize = -1;
+    protected String slowConsumerPolicy = SLOW_CONSUMER_POLICY_DROP_NEWEST;
+
     protected long messageSendCount;
+    protected final AtomicLong asyncSendOverflowCount = new AtomicLong();
+    protected final AtomicLong conflateCount = new AtomicLong();
+    protected final AtomicLong slowConsumerDisconnectCount = new AtomicLong();
     
     public ServiceName getMessageDispatcherServiceName() {
         return messageDispatcherServiceName;
@@ -81,8 +112,69 @@ public abstract class AbstractPublishMessageHandlerFactoryService extends Abstra
         return messageSendCount;
     }
 
+    public boolean isAsyncSend() {
+        return isAsyncSend;
+    }
+
+    public void setAsyncSend(boolean isAsync) {
+        isAsyncSend = isAsync;
+    }
+
+    public int getAsyncSendQueueHighWatermark() {
+        return asyncSendQueueHighWatermark;
+    }
+
+    public void setAsyncSendQueueHighWatermark(int size) {
+        asyncSendQueueHighWatermark = size;
+    }
+
+    public int getAsyncSendQueueLowWatermark() {
+        return asyncSendQueueLowWatermark;
+    }
+
+    public void setAsyncSendQueueLowWatermark(int size) {
+        asyncSendQueueLowWatermark = size;
+    }
+
+    public long getAsyncSendQueueMaxByteSize() {
+        return asyncSendQueueMaxByteSize;
+    }
+
+    public void setAsyncSendQueueMaxByteSize(long size) {
+        asyncSendQueueMaxByteSize = size;
+    }
+
+    public String getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(String policy) {
+        slowConsumerPolicy = policy;
+    }
+
+    public long getAsyncSendOverflowCount() {
+        return asyncSendOverflowCount.get();
+    }
+
+    public long getConflateCount() {
+        return conflateCount.get();
+    }
+
+    public long getSlowConsumerDisconnectCount() {
+        return slowConsumerDisconnectCount.get();
+    }
+
     protected void preStartService() throws Exception {
         super.preStartService();
+        if (isAsyncSend && asyncSendQueueLowWatermark > asyncSendQueueHighWatermark) {
+            throw new IllegalArgumentException("AsyncSendQueueLowWatermark is greater than AsyncSendQueueHighWatermark.");
+        }
+        if (!SLOW_CONSUMER_POLICY_DROP_NEWEST.equals(slowConsumerPolicy)
+            && !SLOW_CONSUMER_POLICY_DROP_OLDEST.equals(slowConsumerPolicy)
+            && !SLOW_CONSUMER_POLICY_CONFLATE.equals(slowConsumerPolicy)
+            && !SLOW_CONSUMER_POLICY_DISCONNECT.equals(slowConsumerPolicy)) {
+            throw new IllegalArgumentException("SlowConsumerPolicy is illegal. policy=" + slowConsumerPolicy);
+        }
         if (messageDispatcherServiceName == null) {
             throw new IllegalArgumentException("MessageDispatcherServiceName is null.");
         }
@@ -105,12 +197,28 @@ public abstract class AbstractPublishMessageHandlerFactoryService extends Abstra
 
         private static final long serialVersionUID = 5053359912274095886L;
 
+        /**
+         * 非同期送信時の送信待ちキュー。
+         */
+        protected final LinkedList sendQueue = new LinkedList();
+        protected final Map conflationMap = new HashMap();
+        protected long sendQueueByteSize;
+        protected boolean isSending;
+        protected boolean isSendQueueOverflow;
+        private Thread sendingThread;
+        private boolean isCompletedInline;
+        private Object inlineNextData;
+        protected final SendHandler sendHandler = new AsyncSendHandler();
+
         protected void onOpenProcess(Session session, EndpointConfig config) throws Exception {
             dispatcher.addMessageSender(this);
         }
 
         protected void onCloseProcess(Session session, CloseReason closeReason) {
             dispatcher.removeMessageSender(this);
+            synchronized (sendQueue) {
+                clearSendQueue();
+            }
         }
 
         protected void onErrorProcess(Session session, Throwable thr) {
@@ -119,24 +227,345 @@ public abstract class AbstractPublishMessageHandlerFactoryService extends Abstra
         protected abstract void onMessageProcess(String message) throws Exception ;
 
         public void sendMessage(Object msg) {
+            if (isAsyncSend) {
+                sendMessageAsync(msg);
+                return;
+            }
             try {
                 sendMessageProcess(msg);
                 messageSendCount++;
                 SessionProperties.getSessionProperty(session).addSendMessageCount();
             } catch (Exception e) {
-                if (messageSendExceptionHandler != null) {
-                    try {
-                        messageSendExceptionHandler.handleException(session, e);
-                    } catch (Throwable thr) {
+                handleSendException(e);
+            }
+        }
+
+        /**
+         * メッセージを非同期送信する。
+         * <p>
+         * 送信中のメッセージがある場合は送信キューに格納し、送信完了後に順次送信する。<br>
+         *
+         * @param msg 配信するメッセージオブジェクト
+         */
+        protected void sendMessageAsync(Object msg) {
+            SendData sendData = null;
+            try {
+                sendData = new SendData(createSendData(msg), getConflationKey(msg));
+            } catch (Exception e) {
+                handleSendException(e);
+                return;
+            }
+            final String policy = slowConsumerPolicy;
+            Exception overflow = null;
+            boolean isDisconnect = false;
+            synchronized (sendQueue) {
+                if (!isSending) {
+                    isSending = true;
+                } else if (SLOW_CONSUMER_POLICY_DROP_NEWEST.equals(policy)) {
+                    if (isSendQueueOverflow || isSendQueueOverThreshold()) {
+                        isSendQueueOverflow = true;
+                        asyncSendOverflowCount.incrementAndGet();
+                        overflow = new SendQueueOverflowException("Send queue is overflow. policy=" + policy + ", size=" + sendQueue.size() + ", byteSize=" + sendQueueByteSize);
+                    } else {
+                        offerSendQueue(sendData);
+                    }
+                    sendData = null;
+                } else {
+                    SendData conflated = null;
+                    if (SLOW_CONSUMER_POLICY_CONFLATE.equals(policy) && sendData.conflationKey != null && isSendQueueOverThreshold()) {
+                        conflated = (SendData) conflationMap.get(sendData.conflationKey);
+                    }
+                    if (conflated != null) {
+                        sendQueueByteSize += sendData.size - conflated.size;
+                        conflated.data = sendData.data;
+                        conflated.size = sendData.size;
+                        conflateCount.incrementAndGet();
+                    } else {
+                        offerSendQueue(sendData);
+                    }
+                    sendData = null;
+                    if (isSendQueueOverThreshold()) {
+                        if (SLOW_CONSUMER_POLICY_DISCONNECT.equals(policy)) {
+                            overflow = new SlowConsumerException(policy, "Send queue is overflow. size=" + sendQueue.size() + ", byteSize=" + sendQueueByteSize);
+                            clearSendQueue();
+                            isDisconnect = true;
+                            slowConsumerDisconnectCount.incrementAndGet();
+                        } else {
+                            int dropCount = 0;
+                            while (sendQueue.size() > 1 && isSendQueueOverThreshold()) {
+                                pollSendQueue();
+                                dropCount++;
+                            }
+                            if (dropCount > 0) {
+                                asyncSendOverflowCount.addAndGet(dropCount);
+                                overflow = new SendQueueOverflowException("Send queue is overflow. policy=" + policy + ", dropCount=" + dropCount);
+                            }
+                        }
+                    }
+                }
+                SessionProperties prop = SessionProperties.getSessionProperty(session);
+                if (prop != null) {
+                    prop.setSendQueueSize(sendQueue.size());
+                }
+            }
+            if (overflow != null) {
+                handleSendException(overflow);
+            }
+            if (isDisconnect) {
+                try {
+                    session.close(new CustomCloseReason(CustomCloseReason.CloseCodes.SLOW_CONSUMER, "Slow consumer"));
+                } catch (IOException e) {
+                }
+                return;
+            }
+            if (sendData != null) {
+                sendAsync(sendData.data);
+            }
+        }
+
+        /**
+         * 送信キューが閾値に達しているかどうかを判定する。
+         * <p>
+         * 呼び出し元でsendQueueを同期すること。<br>
+         *
+         * @return 閾値に達している場合true
+         */
+        protected boolean isSendQueueOverThreshold() {
+            return sendQueue.size() >= asyncSendQueueHighWatermark
+                || (asyncSendQueueMaxByteSize > 0 && sendQueueByteSize >= asyncSendQueueMaxByteSize);
+        }
+
+        /**
+         * 送信キューの末尾に送信データを追加する。
+         * <p>
+         * 呼び出し元でsendQueueを同期すること。<br>
+         *
+         * @param sendData 送信データ
+         */
+        protected void offerSendQueue(SendData sendData) {
+            sendQueue.addLast(sendData);
+            sendQueueByteSize += sendData.size;
+            if (sendData.conflationKey != null) {
+                conflationMap.put(sendData.conflationKey, sendData);
+            }
+        }
+
+        /**
+         * 送信キューの先頭から送信データを取り出す。
+         * <p>
+         * 呼び出し元でsendQueueを同期すること。<br>
+         *
+         * @return 送信データ。送信キューが空の場合はnull
+         */
+        protected SendData pollSendQueue() {
+            SendData sendData = (SendData) sendQueue.poll();
+            if (sendData != null) {
+                sendQueueByteSize -= sendData.size;
+                if (sendData.conflationKey != null && conflationMap.get(sendData.conflationKey) == sendData) {
+                    conflationMap.remove(sendData.conflationKey);
+                }
+            }
+            return sendData;
+        }
+
+        /**
+         * 送信キューを破棄する。
+         * <p>
+         * 呼び出し元でsendQueueを同期すること。<br>
+         */
+        protected void clearSendQueue() {
+            sendQueue.clear();
+            conflationMap.clear();
+            sendQueueByteSize = 0;
+        }
+
+        /**
+         * 配信するメッセージオブジェクトから、{@link #SLOW_CONSUMER_POLICY_CONFLATE}で統合する際のキーを取得する。
+         * <p>
+         * デフォルトでは、{@link SequencedMessage}、{@link Message}の場合はサブジェクトとキーの組み合わせを返す。<br>
+         * それ以外の場合はnullを返し、統合せずに古いメッセージから破棄する。サブジェクトを持たないメッセージオブジェクトを統合する場合は、オーバーライドすること。<br>
+         *
+         * @param msg 配信するメッセージオブジェクト
+         * @return 統合キー
+         */
+        protected Object getConflationKey(Object msg) {
+            if (!SLOW_CONSUMER_POLICY_CONFLATE.equals(slowConsumerPolicy)) {
+                return null;
+            }
+            String subject = null;
+            String key = null;
+            if (msg instanceof SequencedMessage) {
+                subject = ((SequencedMessage) msg).getSubject();
+                key = ((SequencedMessage) msg).getKey();
+            } else if (msg instanceof Message) {
+                subject = ((Message) msg).getSubject();
+                key = ((Message) msg).getKey();
+            }
+            return subject == null ? null : new LastValueCache.SubjectKey(subject, key);
+        }
+
+        /**
+         * 送信データを非同期送信する。
+         * <p>
+         * 送信が同じスレッド内で完了した場合は、再帰せずに次の送信データを続けて送信する。<br>
+         *
+         * @param data 送信データ
+         */
+        private void sendAsync(Object data) {
+            final Thread current = Thread.currentThread();
+            while (data != null) {
+                synchronized (sendQueue) {
+                    sendingThread = current;
+                    isCompletedInline = false;
+                    inlineNextData = null;
+                }
+                try {
+                    if (!session.isOpen()) {
+                        throw new IllegalStateException("Session is closed.");
                     }
+                    RemoteEndpoint.Async remote = session.getAsyncRemote();
+                    if (data instanceof ByteBuffer) {
+                        remote.sendBinary((ByteBuffer) data, sendHandler);
+                    } else if (data instanceof String) {
+                        remote.sendText((String) data, sendHandler);
+                    } else {
+                        remote.sendObject(data, sendHandler);
+                    }
+                } catch (Exception e) {
+                    synchronized (sendQueue) {
+                        if (sendingThread == current) {
+                            sendingThread = null;
+                        }
+                    }
+                    data = completeSend(e);
+                    continue;
+                }
+                synchronized (sendQueue) {
+                    if (sendingThread != current) {
+                        return;
+                    }
+                    sendingThread = null;
+                    if (!isCompletedInline) {
+                        return;
+                    }
+                    data = inlineNextData;
+                    inlineNextData = null;
                 }
             }
         }
 
+        /**
+         * 非同期送信の完了処理を行い、次の送信データを取得する。
+         * <p>
+         *
+         * @param thr 送信に失敗した場合の例外。成功した場合はnull
+         * @return 次の送信データ。送信キューが空の場合はnull
+         */
+        protected Object completeSend(Throwable thr) {
+            SessionProperties prop = SessionProperties.getSessionProperty(session);
+            if (thr == null) {
+                messageSendCount++;
+                if (prop != null) {
+                    prop.addSendMessageCount();
+                }
+            } else {
+                if (prop != null) {
+                    prop.addSendErrorCount();
+                }
+                handleSendException(thr);
+            }
+            synchronized (sendQueue) {
+                SendData next = session.isOpen() ? pollSendQueue() : null;
+                if (next == null) {
+                    clearSendQueue();
+                    isSending = false;
+                }
+                if (isSendQueueOverflow && sendQueue.size() <= asyncSendQueueLowWatermark
+                    && (asyncSendQueueMaxByteSize <= 0 || sendQueueByteSize < asyncSendQueueMaxByteSize)) {
+                    isSendQueueOverflow = false;
+                }
+                if (prop != null) {
+                    prop.setSendQueueSize(sendQueue.size());
+                }
+                return next == null ? null : next.data;
+            }
+        }
+
+        /**
+         * メッセージ送信時の例外をメッセージ送信例外ハンドラに通知する。
+         * <p>
+         *
+         * @param thr 例外
+         */
+        protected void handleSendException(Throwable thr) {
+            if (messageSendExceptionHandler != null) {
+                try {
+                    messageSendExceptionHandler.handleException(session, thr);
+                } catch (Throwable e) {
+                }
+            }
+        }
+
+        /**
+         * 配信するメッセージオブジェクトを非同期送信用の送信データに変換する。
+         * <p>
+         * ByteBufferの場合はバイナリ、Stringの場合はテキスト、それ以外の場合はオブジェクトとして送信する。<br>
+         * デフォルトでは、メッセージオブジェクトをそのまま返す。<br>
+         *
+         * @param msg 配信するメッセージオブジェクト
+         * @return 送信データ
+         * @exception Exception 変換に失敗した場合
+         */
+        protected Object createSendData(Object msg) throws Exception {
+            return msg;
+        }
+
         public abstract void sendMessageProcess(Object msg) throws Exception;
         
         public Session getSession() {
             return session;
         }
+
+        /**
+         * 送信キューに格納する送信データ。
+         * <p>
+         */
+        protected class SendData {
+
+            protected Object data;
+            protected int size;
+            protected final Object conflationKey;
+
+            protected SendData(Object data, Object conflationKey) {
+                this.data = data;
+                this.conflationKey = conflationKey;
+                if (data instanceof ByteBuffer) {
+                    size = ((ByteBuffer) data).remaining();
+                } else if (data instanceof String) {
+                    size = ((String) data).length();
+                }
+            }
+        }
+
+        /**
+         * 非同期送信の完了通知を受けるSendHandler。
+         * <p>
+         */
+        protected class AsyncSendHandler implements SendHandler {
+
+            public void onResult(SendResult result) {
+                final Object next = completeSend(result.isOK() ? null : result.getException());
+                synchronized (sendQueue) {
+                    if (sendingThread == Thread.currentThread()) {
+                        isCompletedInline = true;
+                        inlineNextData = next;
+                        return;
+                    }
+                }
+                if (next != null) {
+                    sendAsync(next);
+                }
+            }
+        }
     }
 }
@@ -43,6 +43,43 @@ import jp.ossc.nimbus.service.websocket.ExceptionHandlerMappingService;
  */
 public interface AbstractPublishMessageHandlerFactoryServiceMBean extends AbstractMessageHandlerFactoryServiceMBean {
 
+    /**
+     * 非同期送信キューのハイウォーターマークのデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_ASYNC_SEND_QUEUE_HIGH_WATERMARK = 1000;
+
+    /**
+     * 非同期送信キューのローウォーターマークのデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_ASYNC_SEND_QUEUE_LOW_WATERMARK = 500;
+
+    /**
+     * スロー・コンシューマ・ポリシー：新しいメッセージを破棄する。
+     * <p>
+     */
+    public static final String SLOW_CONSUMER_POLICY_DROP_NEWEST = "DROP_NEWEST";
+
+    /**
+     * スロー・コンシューマ・ポリシー：古いメッセージから破棄する。
+     * <p>
+     */
+    public static final String SLOW_CONSUMER_POLICY_DROP_OLDEST = "DROP_OLDEST";
+
+    /**
+     * スロー・コンシューマ・ポリシー：同じキーのメッセージを最新の値に統合する。
+     * <p>
+     * 統合キーは、{@link SequencedMessage}、またはjp.ossc.nimbus.service.publish.Messageのサブジェクトとキーとする。それ以外のメッセージは古いものから破棄する。<br>
+     */
+    public static final String SLOW_CONSUMER_POLICY_CONFLATE = "CONFLATE";
+
+    /**
+     * スロー・コンシューマ・ポリシー：セッションを切断する。
+     * <p>
+     */
+    public static final String SLOW_CONSUMER_POLICY_DISCONNECT = "DISCONNECT";
+
     /**
      * メッセージの集配信を管理するMessageDispatcherのサービス名を取得する。
      *
@@ -78,5 +115,101 @@ public interface AbstractPublishMessageHandlerFactoryServiceMBean extends Abstra
      * @return メッセージ送信件数
      */
     public long getMessageSendCount();
-    
+
+    /**
+     * メッセージを非同期送信するかどうかを取得する。
+     *
+     * @return 非同期送信する場合true
+     */
+    public boolean isAsyncSend();
+
+    /**
+     * メッセージを非同期送信するかどうかを設定する。デフォルトはfalse。
+     *
+     * @param isAsync 非同期送信する場合true
+     */
+    public void setAsyncSend(boolean isAsync);
+
+    /**
+     * セッション毎の非同期送信キューのハイウォーターマークを取得する。
+     *
+     * @return ハイウォーターマーク
+     */
+    public int getAsyncSendQueueHighWatermark();
+
+    /**
+     * セッション毎の非同期送信キューのハイウォーターマークを設定する。デフォルトは{@link #DEFAULT_ASYNC_SEND_QUEUE_HIGH_WATERMARK}。
+     * <p>
+     * 送信キューの件数がこの値に達すると、スロー・コンシューマ・ポリシーを適用する。<br>
+     *
+     * @param size ハイウォーターマーク
+     */
+    public void setAsyncSendQueueHighWatermark(int size);
+
+    /**
+     * セッション毎の非同期送信キューのローウォーターマークを取得する。
+     *
+     * @return ローウォーターマーク
+     */
+    public int getAsyncSendQueueLowWatermark();
+
+    /**
+     * セッション毎の非同期送信キューのローウォーターマークを設定する。デフォルトは{@link #DEFAULT_ASYNC_SEND_QUEUE_LOW_WATERMARK}。
+     * <p>
+     * {@link #SLOW_CONSUMER_POLICY_DROP_NEWEST}の場合に、送信キューの件数がこの値以下に減るとメッセージの破棄をやめる。<br>
+     *
+     * @param size ローウォーターマーク
+     */
+    public void setAsyncSendQueueLowWatermark(int size);
+
+    /**
+     * 非同期送信キューが閾値に達してメッセージを破棄した件数を取得する。
+     *
+     * @return 破棄した件数
+     */
+    public long getAsyncSendOverflowCount();
+
+    /**
+     * セッション毎の非同期送信キューの最大バイト数を取得する。
+     *
+     * @return 最大バイト数
+     */
+    public long getAsyncSendQueueMaxByteSize();
+
+    /**
+     * セッション毎の非同期送信キューの最大バイト数を設定する。デフォルトは-1で、バイト数による制限はしない。
+     * <p>
+     * 送信キューのバイト数がこの値に達すると、スロー・コンシューマ・ポリシーを適用する。<br>
+     *
+     * @param size 最大バイト数
+     */
+    public void setAsyncSendQueueMaxByteSize(long size);
+
+    /**
+     * スロー・コンシューマ・ポリシーを取得する。
+     *
+     * @return スロー・コンシューマ・ポリシー
+     */
+    public String getSlowConsumerPolicy();
+
+    /**
+     * 非同期送信キューが閾値に達したセッションに適用するスロー・コンシューマ・ポリシーを設定する。デフォルトは{@link #SLOW_CONSUMER_POLICY_DROP_NEWEST}。
+     *
+     * @param policy {@link #SLOW_CONSUMER_POLICY_DROP_NEWEST}、{@link #SLOW_CONSUMER_POLICY_DROP_OLDEST}、{@link #SLOW_CONSUMER_POLICY_CONFLATE}、{@link #SLOW_CONSUMER_POLICY_DISCONNECT}のいずれか
+     */
+    public void setSlowConsumerPolicy(String policy);
+
+    /**
+     * 同じキーのメッセージを統合した件数を取得する。
+     *
+     * @return 統合した件数
+     */
+    public long getConflateCount();
+
+    /**
+     * スロー・コンシューマとして切断したセッション数を取得する。
+     *
+     * @return 切断したセッション数
+     */
+    public long getSlowConsumerDisconnectCount();
 }
@@ -0,0 +1,329 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 受信したコマンドのByteBufferを、文字列に変換せずに区切り文字で分割して読み取るトークナイザ。
+ * <p>
+ * 正規表現や中間の文字列配列を使用せず、ByteBufferの内容を直接走査する。文字列を生成するのは{@link #nextToken()}で取り出したトークンのみである。<br>
+ * 区切り文字のバイト列がマルチバイト文字の途中に現れない文字コード（UTF-8、US-ASCII、ISO-8859-1）でのみ使用できる。<br>
+ * 1つのインスタンスを再利用できるが、スレッドセーフではない。<br>
+ * 区切り文字で終わる場合、String#split(String)と同様に最後の空のトークンは読み取らない。<br>
+ *
+ * @author M.Ishida
+ */
+public class CommandTokenizer {
+
+    private final Charset charset;
+    private final byte[] separator;
+    private byte[] entrySeparator;
+    private byte[] work = new byte[64];
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private int entryLimit;
+    private boolean hasToken;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param separator トークンの区切り文字
+     * @param charset 文字コード
+     */
+    public CommandTokenizer(String separator, Charset charset) {
+        if(!isSupportedCharset(charset)) {
+            throw new IllegalArgumentException(charset + " is not supported.");
+        }
+        this.charset = charset;
+        this.separator = separator.getBytes(charset);
+        if(this.separator.length == 0) {
+            throw new IllegalArgumentException("Separator is empty.");
+        }
+    }
+
+    /**
+     * 指定された文字コードで、このクラスが使用できるかどうかを判定する。
+     * <p>
+     *
+     * @param charset 文字コード
+     * @return 使用できる場合true
+     */
+    public static boolean isSupportedCharset(Charset charset) {
+        final String name = charset.name();
+        return "UTF-8".equals(name) || "US-ASCII".equals(name) || "ISO-8859-1".equals(name);
+    }
+
+    /**
+     * 文字コードを取得する。
+     * <p>
+     *
+     * @return 文字コード
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * 文字列をこのトークナイザの文字コードでバイト配列に変換する。
+     * <p>
+     *
+     * @param str 文字列
+     * @return バイト配列。文字列がnullの場合はnull
+     */
+    public byte[] toBytes(String str) {
+        return str == null ? null : str.getBytes(charset);
+    }
+
+    /**
+     * 読み取り対象のByteBufferを設定する。
+     * <p>
+     * ByteBufferのpositionからlimitまでを読み取り対象とし、ByteBufferの位置は変更しない。<br>
+     *
+     * @param buf 読み取り対象のByteBuffer
+     */
+    public void reset(ByteBuffer buf) {
+        buffer = buf;
+        position = buf.position();
+        limit = buf.limit();
+        entrySeparator = null;
+        entryLimit = limit;
+        hasToken = position < entryLimit;
+    }
+
+    /**
+     * 現在位置以降を、指定されたエントリの区切り文字で区切られたエントリの並びとして読み取る。
+     * <p>
+     * 以降のトークンの読み取りは、現在のエントリの終わりまでに制限される。次のエントリに進むには{@link #nextEntry()}を呼び出す。<br>
+     *
+     * @param separator エントリの区切り文字のバイト配列
+     */
+    public void beginEntries(byte[] separator) {
+        entrySeparator = separator;
+        findEntryLimit();
+    }
+
+    /**
+     * 次のエントリに進む。
+     * <p>
+     * 現在のエントリの読み取られていないトークンは読み飛ばす。<br>
+     *
+     * @return 次のエントリが存在する場合true
+     */
+    public boolean nextEntry() {
+        if(entrySeparator == null || entryLimit >= limit) {
+            position = limit;
+            hasToken = false;
+            return false;
+        }
+        position = entryLimit + entrySeparator.length;
+        findEntryLimit();
+        return true;
+    }
+
+    private void findEntryLimit() {
+        final int index = entrySeparator == null ? -1 : indexOf(entrySeparator, position, limit);
+        entryLimit = index == -1 ? limit : index;
+        hasToken = position < entryLimit;
+    }
+
+    /**
+     * 現在のエントリに、読み取られていないトークンが存在するかどうかを判定する。
+     * <p>
+     *
+     * @return 存在する場合true
+     */
+    public boolean hasMoreTokens() {
+        return hasToken;
+    }
+
+    /**
+     * 現在のエントリの、読み取られていないトークンの数を数える。
+     * <p>
+     * 現在位置は変更しない。<br>
+     *
+     * @return トークンの数
+     */
+    public int countTokens() {
+        if(!hasToken) {
+            return 0;
+        }
+        int count = 1;
+        int index = position;
+        while((index = indexOf(separator, index, entryLimit)) != -1) {
+            index += separator.length;
+            if(index >= entryLimit) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 次のトークンが指定されたバイト配列と一致する場合に、そのトークンを読み取る。
+     * <p>
+     * 一致しない場合は、現在位置を変更しない。<br>
+     *
+     * @param token 比較するトークンのバイト配列
+     * @return 一致した場合true
+     */
+    public boolean nextTokenEquals(byte[] token) {
+        if(!hasToken || token == null) {
+            return false;
+        }
+        int end = indexOf(separator, position, entryLimit);
+        if(end == -1) {
+            end = entryLimit;
+        }
+        if(end - position != token.length) {
+            return false;
+        }
+        for(int i = 0; i < token.length; i++) {
+            if(buffer.get(position + i) != token[i]) {
+                return false;
+            }
+        }
+        advance(end);
+        return true;
+    }
+
+    /**
+     * 次のトークンを文字列として読み取る。
+     * <p>
+     *
+     * @return トークン。読み取られていないトークンが存在しない場合はnull
+     */
+    public String nextToken() {
+        if(!hasToken) {
+            return null;
+        }
+        int end = indexOf(separator, position, entryLimit);
+        if(end == -1) {
+            end = entryLimit;
+        }
+        final int start = position;
+        final int length = end - start;
+        String token = null;
+        if(buffer.hasArray()) {
+            token = new String(buffer.array(), buffer.arrayOffset() + start, length, charset);
+        } else {
+            if(work.length < length) {
+                work = new byte[Math.max(length, work.length * 2)];
+            }
+            for(int i = 0; i < length; i++) {
+                work[i] = buffer.get(start + i);
+            }
+            token = new String(work, 0, length, charset);
+        }
+        advance(end);
+        return token;
+    }
+
+    /**
+     * 次のトークンを10進数の数値として読み取る。
+     * <p>
+     * 文字列を生成せずに変換する。<br>
+     *
+     * @return 数値
+     * @exception NumberFormatException トークンが存在しない場合、または数値として解釈できない場合
+     */
+    public long nextLong() throws NumberFormatException {
+        if(!hasToken) {
+            throw new NumberFormatException("No more tokens.");
+        }
+        int end = indexOf(separator, position, entryLimit);
+        if(end == -1) {
+            end = entryLimit;
+        }
+        int index = position;
+        boolean isNegative = false;
+        if(index < end && (buffer.get(index) == '-' || buffer.get(index) == '+')) {
+            isNegative = buffer.get(index) == '-';
+            index++;
+        }
+        if(index == end) {
+            throw new NumberFormatException("Illegal number token.");
+        }
+        long value = 0;
+        for(; index < end; index++) {
+            final int digit = buffer.get(index) - '0';
+            if(digit < 0 || digit > 9) {
+                throw new NumberFormatException("Illegal number token.");
+            }
+            if(value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Number token overflow.");
+            }
+            value = value * 10 - digit;
+        }
+        if(!isNegative) {
+            if(value == Long.MIN_VALUE) {
+                throw new NumberFormatException("Number token overflow.");
+            }
+            value = -value;
+        }
+        advance(end);
+        return value;
+    }
+
+    private void advance(int end) {
+        if(end >= entryLimit) {
+            position = entryLimit;
+            hasToken = false;
+        } else {
+            position = end + separator.length;
+            hasToken = position < entryLimit;
+        }
+    }
+
+    private int indexOf(byte[] bytes, int from, int to) {
+        final int last = to - bytes.length;
+        final byte first = bytes[0];
+        for(int i = from; i <= last; i++) {
+            if(buffer.get(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while(j < bytes.length && buffer.get(i + j) == bytes[j]) {
+                j++;
+            }
+            if(j == bytes.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
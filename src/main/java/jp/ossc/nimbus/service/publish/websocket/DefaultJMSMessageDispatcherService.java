@@ -0,0 +1,345 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * JMSメッセージを受信するためのメッセージディスパッチャーサービスデフォルト実装クラス。
+ * <p>
+ * 受信したJMSメッセージのkeyPropertyNameで指定したプロパティの値、指定しない場合は宛先のトピック名またはキュー名をキーとして、キーを購読しているメッセージ送信対象に配信する。<br>
+ * キーからメッセージ送信対象の集合への索引をConcurrentMapで保持し、配信先の検索はメッセージ送信対象の数に関わらず1回の検索で行う。<br>
+ * キー毎のメッセージ送信対象の集合は、更新時に複製して差し替える変更不可の集合で保持し、配信時はロックや複製なしで参照する。<br>
+ * キーオブジェクトは文字列とする。<br>
+ * 削除されたメッセージ送信対象は索引に追加しない。<br>
+ * TextMessageはテキスト、ObjectMessageはオブジェクトに変換して、メッセージ送信対象に送信する。<br>
+ * BytesMessageは、bytesMessagePassthroughがtrueの場合、本文を1度だけ読み込んだ読み取り専用のByteBufferに変換し、メッセージ送信対象毎にその複製（内容は共有）を送信する。<br>
+ *
+ * @author M.Ishida
+ */
+public class DefaultJMSMessageDispatcherService extends AbstractJMSMessageDispatcherService implements DefaultJMSMessageDispatcherServiceMBean {
+
+    private static final long serialVersionUID = 3914870562375921348L;
+
+    protected String keyPropertyName;
+    protected String convertErrorMessageId;
+    protected boolean isBytesMessagePassthrough = true;
+
+    protected final ConcurrentMap<String, SenderSet> senderIndex = new ConcurrentHashMap<String, SenderSet>();
+    protected final AtomicLong unroutedMessageCount = new AtomicLong();
+    protected final AtomicLong passthroughCount = new AtomicLong();
+    protected final AtomicLong passthroughByteSize = new AtomicLong();
+
+    public String getKeyPropertyName() {
+        return keyPropertyName;
+    }
+
+    public void setKeyPropertyName(String name) {
+        keyPropertyName = name;
+    }
+
+    public String getConvertErrorMessageId() {
+        return convertErrorMessageId;
+    }
+
+    public void setConvertErrorMessageId(String id) {
+        convertErrorMessageId = id;
+    }
+
+    public boolean isBytesMessagePassthrough() {
+        return isBytesMessagePassthrough;
+    }
+
+    public void setBytesMessagePassthrough(boolean isPassthrough) {
+        isBytesMessagePassthrough = isPassthrough;
+    }
+
+    public long getPassthroughCount() {
+        return passthroughCount.get();
+    }
+
+    public long getPassthroughByteSize() {
+        return passthroughByteSize.get();
+    }
+
+    public int getKeyCount() {
+        return senderIndex.size();
+    }
+
+    public long getUnroutedMessageCount() {
+        return unroutedMessageCount.get();
+    }
+
+    public void addMessageSenderProcess(MessageSender sender) {
+    }
+
+    public void removeMessageSenderProcess(MessageSender sender) {
+        final SenderKeys senderKeys = getSenderKeys(sender);
+        if (senderKeys == null) {
+            return;
+        }
+        final Object[] array = senderKeys.keys.toArray();
+        for (int i = 0; i < array.length; i++) {
+            removeKeyProcess(array[i], sender);
+        }
+    }
+
+    public void addKeyProcess(Object key, MessageSender sender) {
+        final String routingKey = toRoutingKey(key);
+        if (isClosed(sender)) {
+            return;
+        }
+        while (true) {
+            SenderSet senders = senderIndex.get(routingKey);
+            if (senders == null) {
+                senders = new SenderSet();
+                SenderSet old = senderIndex.putIfAbsent(routingKey, senders);
+                if (old != null) {
+                    senders = old;
+                }
+            }
+            if (senders.add(sender)) {
+                break;
+            }
+        }
+        if (isClosed(sender)) {
+            removeKeyProcess(key, sender);
+        }
+    }
+
+    /**
+     * サポートしない形式のキーオブジェクトは、索引に登録されていないため何もしない。
+     */
+    public void removeKeyProcess(Object key, MessageSender sender) {
+        final String routingKey;
+        try {
+            routingKey = toRoutingKey(key);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        final SenderSet senders = senderIndex.get(routingKey);
+        if (senders != null && senders.remove(sender)) {
+            senderIndex.remove(routingKey, senders);
+        }
+    }
+
+    /**
+     * キーオブジェクトを索引のキーに変換できることを検証する。
+     */
+    protected void validateKey(Object key) throws IllegalArgumentException {
+        toRoutingKey(key);
+    }
+
+    /**
+     * キーオブジェクトを索引のキーに変換する。
+     * <p>
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return 索引のキー
+     */
+    protected String toRoutingKey(Object key) {
+        if (key instanceof String) {
+            return (String) key;
+        }
+        throw new IllegalArgumentException("key object type is not support. key=" + key);
+    }
+
+    protected Set<MessageSender> getMessageSendTarget(Object message) {
+        String routingKey = null;
+        try {
+            routingKey = getRoutingKey((Message) message);
+        } catch (JMSException e) {
+            unroutedMessageCount.incrementAndGet();
+            return null;
+        }
+        final SenderSet senders = routingKey == null ? null : senderIndex.get(routingKey);
+        if (senders == null) {
+            unroutedMessageCount.incrementAndGet();
+            return null;
+        }
+        return senders.senders;
+    }
+
+    /**
+     * 受信したJMSメッセージから、配信先を検索するキーを取得する。
+     * <p>
+     * keyPropertyNameを指定した場合はそのプロパティの値、指定しない場合は宛先のトピック名またはキュー名を返す。<br>
+     *
+     * @param message 受信したJMSメッセージ
+     * @return キー。取得できない場合はnull
+     * @exception JMSException JMSメッセージからの取得に失敗した場合
+     */
+    protected String getRoutingKey(Message message) throws JMSException {
+        if (keyPropertyName != null) {
+            return message.getStringProperty(keyPropertyName);
+        }
+        final Destination destination = message.getJMSDestination();
+        if (destination instanceof Topic) {
+            return ((Topic) destination).getTopicName();
+        } else if (destination instanceof Queue) {
+            return ((Queue) destination).getQueueName();
+        }
+        return null;
+    }
+
+    protected void sendMessageSenders(Set<MessageSender> senders, Object message) {
+        Object sendMessage = message;
+        try {
+            sendMessage = convertMessage((Message) message);
+        } catch (JMSException e) {
+            if (convertErrorMessageId != null) {
+                getLogger().write(convertErrorMessageId, message, e);
+            }
+            return;
+        }
+        super.sendMessageSenders(senders, sendMessage);
+    }
+
+    /**
+     * 受信したJMSメッセージを、メッセージ送信対象に送信するオブジェクトに変換する。
+     * <p>
+     * 全てのメッセージ送信対象に対して1度だけ呼び出される。<br>
+     *
+     * @param message 受信したJMSメッセージ
+     * @return 送信するオブジェクト
+     * @exception JMSException JMSメッセージからの取得に失敗した場合
+     */
+    protected Object convertMessage(Message message) throws JMSException {
+        if (message instanceof TextMessage) {
+            return ((TextMessage) message).getText();
+        } else if (message instanceof ObjectMessage) {
+            return ((ObjectMessage) message).getObject();
+        } else if (isBytesMessagePassthrough && message instanceof BytesMessage) {
+            return readBytesMessage((BytesMessage) message);
+        }
+        return message;
+    }
+
+    /**
+     * BytesMessageの本文を、文字列に変換せずに読み取り専用のByteBufferとして読み込む。
+     * <p>
+     * 本文の長さのバイト配列を1度だけ確保して読み込み、全てのメッセージ送信対象でその内容を共有する。<br>
+     * 非同期送信で送信完了まで参照され続けるため、バイト配列はプールせずにメッセージ毎に確保する。<br>
+     *
+     * @param message BytesMessage
+     * @return 本文の読み取り専用のByteBuffer
+     * @exception JMSException 本文の読み込みに失敗した場合
+     */
+    protected ByteBuffer readBytesMessage(BytesMessage message) throws JMSException {
+        final long length = message.getBodyLength();
+        if (length > Integer.MAX_VALUE) {
+            throw new JMSException("Body is too large. length=" + length);
+        }
+        message.reset();
+        final byte[] body = new byte[(int) length];
+        final int read = body.length == 0 ? 0 : Math.max(message.readBytes(body), 0);
+        passthroughCount.incrementAndGet();
+        passthroughByteSize.addAndGet(read);
+        return ByteBuffer.wrap(body, 0, read).asReadOnlyBuffer();
+    }
+
+    protected void sendMessage(MessageSender sender, Object message) {
+        if (message instanceof ByteBuffer) {
+            super.sendMessage(sender, ((ByteBuffer) message).duplicate());
+            return;
+        }
+        super.sendMessage(sender, message);
+    }
+
+    /**
+     * キーを購読しているメッセージ送信対象の集合。
+     * <p>
+     * 更新時は複製した集合を変更して差し替え、参照時はロックなしで変更不可の集合を返す。<br>
+     * 空になって索引から削除された後は、追加に失敗する。<br>
+     *
+     * @author M.Ishida
+     */
+    protected static class SenderSet {
+
+        protected volatile Set<MessageSender> senders = Collections.emptySet();
+        private boolean isRemoved;
+
+        /**
+         * メッセージ送信対象を追加する。
+         *
+         * @param sender メッセージ送信対象
+         * @return 索引から削除されていない場合true
+         */
+        protected synchronized boolean add(MessageSender sender) {
+            if (isRemoved) {
+                return false;
+            }
+            if (!senders.contains(sender)) {
+                Set<MessageSender> newSenders = new HashSet<MessageSender>(senders);
+                newSenders.add(sender);
+                senders = Collections.unmodifiableSet(newSenders);
+            }
+            return true;
+        }
+
+        /**
+         * メッセージ送信対象を削除する。
+         *
+         * @param sender メッセージ送信対象
+         * @return 空になり、索引から削除する必要がある場合true
+         */
+        protected synchronized boolean remove(MessageSender sender) {
+            if (isRemoved || !senders.contains(sender)) {
+                return false;
+            }
+            if (senders.size() == 1) {
+                senders = Collections.emptySet();
+                isRemoved = true;
+                return true;
+            }
+            Set<MessageSender> newSenders = new HashSet<MessageSender>(senders);
+            newSenders.remove(sender);
+            senders = Collections.unmodifiableSet(newSenders);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+/**
+ * {@link DefaultJMSMessageDispatcherService}のMBeanインタフェース
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public interface DefaultJMSMessageDispatcherServiceMBean extends AbstractJMSMessageDispatcherServiceMBean {
+
+    /**
+     * 配信先を検索するキーを取得するJMSメッセージのプロパティ名を取得する。
+     *
+     * @return プロパティ名
+     */
+    public String getKeyPropertyName();
+
+    /**
+     * 配信先を検索するキーを取得するJMSメッセージのプロパティ名を設定する。
+     * <p>
+     * 指定しない場合は、JMSメッセージの宛先のトピック名またはキュー名をキーとする。<br>
+     *
+     * @param name プロパティ名
+     */
+    public void setKeyPropertyName(String name);
+
+    /**
+     * JMSメッセージの変換に失敗した場合に出力するログのメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getConvertErrorMessageId();
+
+    /**
+     * JMSメッセージの変換に失敗した場合に出力するログのメッセージIDを設定する。
+     *
+     * @param id メッセージID
+     */
+    public void setConvertErrorMessageId(String id);
+
+    /**
+     * BytesMessageの本文を、変換せずにByteBufferとして送信するかどうかを判定する。
+     *
+     * @return 変換せずに送信する場合true
+     */
+    public boolean isBytesMessagePassthrough();
+
+    /**
+     * BytesMessageの本文を、変換せずにByteBufferとして送信するかどうかを設定する。デフォルトはtrue。
+     *
+     * @param isPassthrough 変換せずに送信する場合true
+     */
+    public void setBytesMessagePassthrough(boolean isPassthrough);
+
+    /**
+     * 変換せずに送信したBytesMessageの件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getPassthroughCount();
+
+    /**
+     * 変換せずに送信したBytesMessageの本文のバイト数の合計を取得する。
+     *
+     * @return バイト数
+     */
+    public long getPassthroughByteSize();
+
+    /**
+     * 購読されているキーの数を取得する。
+     *
+     * @return キーの数
+     */
+    public int getKeyCount();
+
+    /**
+     * 配信先が存在しなかったJMSメッセージの件数を取得する。
+     *
+     * @return 件数
+     */
+    public long getUnroutedMessageCount();
+}
@@ -31,19 +31,161 @@
  */
 package jp.ossc.nimbus.service.publish.websocket;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import jp.ossc.nimbus.service.publish.MessageListener;
+import jp.ossc.nimbus.service.publish.MessageSendException;
 
 /**
  * デフォルトメッセージディスパッチャーサービスクラス。 MessageReceiverを使用し受信した配信メッセージを配信が必要なメッセージ送信対象に送信する。
+ * <p>
+ * wildcardSubjectsを指定した場合、ワイルドカードを含むサブジェクトのパターンでキーを登録できる。<br>
+ * パターンはMessageReceiverには登録せず{@link SubjectTrie}で管理し、wildcardSubjectsで指定したサブジェクトから受信した配信メッセージを、一致するパターンのメッセージ送信対象に配信する。<br>
+ * wildcardSubjectsを指定した場合は、常に本サービスで配信し、配信メッセージ毎に一致する完全一致のサブジェクトとパターンのメッセージ送信対象を集合として求めるため、両方で購読しているメッセージ送信対象にも1度だけ送信する。<br>
+ * パターンはサブジェクトとして扱わないため、パターンで購読した場合はLastValueCacheや再送バッファのスナップショットを送信しない。<br>
+ * パターンは、サブジェクトをsubjectSeparatorで区切ったセグメントに対して、任意の1セグメントに一致するsingleLevelWildcard（デフォルトは"*"）と、末尾で残りの0個以上のセグメントに一致するmultiLevelWildcard（デフォルトは"#"）を指定できる。<br>
+ * 複数のキーを一括で登録、削除する場合は、同じサブジェクトのキーをまとめて1度だけMessageReceiverに登録、削除する。<br>
  * 
  * @author m-ishida
  *
  */
-public class DefaultPublishMessageDispatcherService extends AbstractPublishMessageDispatcherService {
+public class DefaultPublishMessageDispatcherService extends AbstractPublishMessageDispatcherService implements DefaultPublishMessageDispatcherServiceMBean {
 
     private static final long serialVersionUID = 6621517711501815100L;
 
+    protected String[] wildcardSubjects;
+    protected String subjectSeparator = DEFAULT_SUBJECT_SEPARATOR;
+    protected String singleLevelWildcard = DEFAULT_SINGLE_LEVEL_WILDCARD;
+    protected String multiLevelWildcard = DEFAULT_MULTI_LEVEL_WILDCARD;
+
+    protected SubjectTrie subjectTrie;
+    protected Map listenerPatternMap;
+
+    public String[] getWildcardSubjects() {
+        return wildcardSubjects;
+    }
+
+    public void setWildcardSubjects(String[] subjects) {
+        wildcardSubjects = subjects;
+    }
+
+    public String getSubjectSeparator() {
+        return subjectSeparator;
+    }
+
+    public void setSubjectSeparator(String separator) {
+        subjectSeparator = separator;
+    }
+
+    public String getSingleLevelWildcard() {
+        return singleLevelWildcard;
+    }
+
+    public void setSingleLevelWildcard(String wildcard) {
+        singleLevelWildcard = wildcard;
+    }
+
+    public String getMultiLevelWildcard() {
+        return multiLevelWildcard;
+    }
+
+    public void setMultiLevelWildcard(String wildcard) {
+        multiLevelWildcard = wildcard;
+    }
+
+    public int getWildcardPatternCount() {
+        return subjectTrie == null ? 0 : subjectTrie.size();
+    }
+
+    public void startService() throws Exception {
+        if(wildcardSubjects != null && wildcardSubjects.length != 0) {
+            subjectTrie = new SubjectTrie(subjectSeparator, singleLevelWildcard, multiLevelWildcard);
+            listenerPatternMap = new ConcurrentHashMap();
+            for(int i = 0; i < wildcardSubjects.length; i++) {
+                addDispatchSubject(wildcardSubjects[i]);
+            }
+        }
+    }
+
+    public void stopService() throws Exception {
+        subjectTrie = null;
+        listenerPatternMap = null;
+    }
+
+    /**
+     * wildcardSubjectsを指定した場合は、パターンに一致する配信メッセージを1度だけ送信するため、常に本サービスで配信する。
+     */
+    protected boolean isDispatching() {
+        return super.isDispatching() || subjectTrie != null;
+    }
+
+    /**
+     * サブジェクトとキーの購読に加えて、サブジェクトに一致するパターンの購読を集める。
+     */
+    protected void matchSharedKeys(String subject, String key, Set result) {
+        super.matchSharedKeys(subject, key, result);
+        final SubjectTrie trie = subjectTrie;
+        if(trie != null && subject != null) {
+            trie.match(subject, result);
+        }
+    }
+
+    /**
+     * キーオブジェクトがワイルドカードを含むパターンの場合は、スナップショットを取得しないようにnullを返す。
+     */
+    protected String getSubject(Object key) {
+        final String subject = super.getSubject(key);
+        final SubjectTrie trie = subjectTrie;
+        return subject != null && trie != null && trie.isPattern(subject) ? null : subject;
+    }
+
+    /**
+     * キーオブジェクトがワイルドカードを含むパターンの場合に、そのパターンを取得する。
+     *
+     * @param key 配信メッセージに対するキーオブジェクト
+     * @return パターン。パターンでない場合はnull
+     */
+    protected String getPattern(Object key) {
+        final SubjectTrie trie = subjectTrie;
+        if(trie == null) {
+            return null;
+        }
+        String subject = null;
+        if(key instanceof String) {
+            subject = (String)key;
+        } else if(key instanceof Object[] && ((Object[])key).length > 0 && ((Object[])key)[0] instanceof String) {
+            subject = (String)((Object[])key)[0];
+            if(trie.isPattern(subject) && ((Object[])key).length != 1) {
+                throw new IllegalArgumentException("Wildcard subject with keys is not support. key=" + key);
+            }
+        }
+        return subject != null && trie.isPattern(subject) ? subject : null;
+    }
+
     public void addKeyProcess(Object key, MessageListener listener) throws Exception {
+        final String pattern = getPattern(key);
+        if(pattern != null) {
+            Set patterns = (Set)listenerPatternMap.get(listener);
+            if(patterns == null) {
+                patterns = Collections.synchronizedSet(new HashSet());
+                Set old = (Set)((ConcurrentHashMap)listenerPatternMap).putIfAbsent(listener, patterns);
+                if(old != null) {
+                    patterns = old;
+                }
+            }
+            patterns.add(pattern);
+            subjectTrie.add(pattern, listener);
+            return;
+        }
         if(key instanceof String) {
             messageReceiver.addSubject(listener, (String)key);
             return;
@@ -61,6 +203,15 @@ public class DefaultPublishMessageDispatcherService extends AbstractPublishMessa
     }
 
     public void removeKeyProcess(Object key, MessageListener listener) throws Exception {
+        final String pattern = getPattern(key);
+        if(pattern != null) {
+            Set patterns = (Set)listenerPatternMap.get(listener);
+            if(patterns != null) {
+                patterns.remove(pattern);
+            }
+            subjectTrie.remove(pattern, listener);
+            return;
+        }
         if(key instanceof String) {
             messageReceiver.removeSubject(listener, (String)key);
             return;
@@ -76,5 +227,120 @@ public class DefaultPublishMessageDispatcherService extends AbstractPublishMessa
         }
         throw new IllegalArgumentException("key object type is not support. key=" + key);
     }
-    
+
+    public void addKeysProcess(Object[] keys, MessageListener listener) throws Exception {
+        processKeys(keys, listener, true);
+    }
+
+    public void removeKeysProcess(Object[] keys, MessageListener listener) throws Exception {
+        processKeys(keys, listener, false);
+    }
+
+    /**
+     * 複数のキーオブジェクトを、サブジェクト毎にまとめてMessageReceiverに登録、削除する。
+     * <p>
+     * ワイルドカードを含むパターンや、サポートしない形式のキーオブジェクトは、キーオブジェクト毎に処理する。<br>
+     * 全てのキーオブジェクトの処理を試みた後、失敗したキーオブジェクトがあった場合は、失敗したキーオブジェクトと最初に発生した例外を持つ{@link KeyProcessException}を投げる。<br>
+     * サブジェクト毎にまとめた処理に失敗した場合は、そのサブジェクトの全てのキーオブジェクトを失敗したキーオブジェクトとする。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param listener メッセージ送信対象のMessageListener
+     * @param isAdd 登録する場合true、削除する場合false
+     * @exception KeyProcessException 一部のキーオブジェクトの登録、削除に失敗した場合
+     */
+    protected void processKeys(Object[] keys, MessageListener listener, boolean isAdd) throws Exception {
+        Exception exception = null;
+        final List failedKeys = new ArrayList();
+        final Map subjectMap = new LinkedHashMap();
+        final Map subjectKeysMap = new LinkedHashMap();
+        for(int i = 0; i < keys.length; i++) {
+            final Object key = keys[i];
+            final String subject = getSubject(key);
+            final String[] subjectKeys = getKeys(key);
+            if(subject == null || getPattern(key) != null
+                || (key instanceof Object[] && ((Object[])key).length != 1 && subjectKeys == null)) {
+                try {
+                    if(isAdd) {
+                        addKeyProcess(key, listener);
+                    } else {
+                        removeKeyProcess(key, listener);
+                    }
+                } catch(Exception e) {
+                    if(exception == null) {
+                        exception = e;
+                    }
+                    failedKeys.add(key);
+                }
+                continue;
+            }
+            if(subjectKeys == null) {
+                List list = (List)subjectMap.get(subject);
+                if(list == null) {
+                    list = new ArrayList();
+                    subjectMap.put(subject, list);
+                }
+                list.add(key);
+                continue;
+            }
+            List[] lists = (List[])subjectKeysMap.get(subject);
+            if(lists == null) {
+                lists = new List[] {new ArrayList(), new ArrayList()};
+                subjectKeysMap.put(subject, lists);
+            }
+            lists[0].addAll(Arrays.asList(subjectKeys));
+            lists[1].add(key);
+        }
+        Iterator entries = subjectMap.entrySet().iterator();
+        while(entries.hasNext()) {
+            final Map.Entry entry = (Map.Entry)entries.next();
+            try {
+                if(isAdd) {
+                    messageReceiver.addSubject(listener, (String)entry.getKey());
+                } else {
+                    messageReceiver.removeSubject(listener, (String)entry.getKey());
+                }
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+                failedKeys.addAll((List)entry.getValue());
+            }
+        }
+        entries = subjectKeysMap.entrySet().iterator();
+        while(entries.hasNext()) {
+            final Map.Entry entry = (Map.Entry)entries.next();
+            final List[] lists = (List[])entry.getValue();
+            final String[] subjectKeys = (String[])lists[0].toArray(new String[lists[0].size()]);
+            try {
+                if(isAdd) {
+                    messageReceiver.addSubject(listener, (String)entry.getKey(), subjectKeys);
+                } else {
+                    messageReceiver.removeSubject(listener, (String)entry.getKey(), subjectKeys);
+                }
+            } catch(Exception e) {
+                if(exception == null) {
+                    exception = e;
+                }
+                failedKeys.addAll(lists[1]);
+            }
+        }
+        if(exception != null) {
+            throw new KeyProcessException(failedKeys.toArray(), exception);
+        }
+    }
+
+    protected void removeMessageListenerProcess(MessageListener listener) throws MessageSendException {
+        final Map map = listenerPatternMap;
+        final SubjectTrie trie = subjectTrie;
+        if(map != null && trie != null) {
+            Set patterns = (Set)map.remove(listener);
+            if(patterns != null) {
+                Object[] array = patterns.toArray();
+                for(int i = 0; i < array.length; i++) {
+                    trie.remove((String)array[i], listener);
+                }
+            }
+        }
+        super.removeMessageListenerProcess(listener);
+    }
 }
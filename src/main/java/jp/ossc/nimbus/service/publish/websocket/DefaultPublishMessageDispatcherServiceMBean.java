@@ -38,5 +38,88 @@ package jp.ossc.nimbus.service.publish.websocket;
  * @author M.Ishida
  */
 public interface DefaultPublishMessageDispatcherServiceMBean extends AbstractPublishMessageDispatcherServiceMBean{
-    
+
+    /**
+     * サブジェクトのセグメントの区切り文字のデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_SUBJECT_SEPARATOR = ".";
+
+    /**
+     * 任意の1セグメントに一致するワイルドカードのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_SINGLE_LEVEL_WILDCARD = "*";
+
+    /**
+     * 末尾で残りの0個以上のセグメントに一致するワイルドカードのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_MULTI_LEVEL_WILDCARD = "#";
+
+    /**
+     * ワイルドカードを含むパターンで購読するために、MessageReceiverから受信するサブジェクトを取得する。
+     *
+     * @return サブジェクトの配列
+     */
+    public String[] getWildcardSubjects();
+
+    /**
+     * ワイルドカードを含むパターンで購読するために、MessageReceiverから受信するサブジェクトを設定する。
+     * <p>
+     * 指定しない場合、ワイルドカードを含むパターンでの購読はできない。<br>
+     * パターンで購読した場合、LastValueCacheや再送バッファのスナップショットは送信せず、購読後に受信した配信メッセージのみを送信する。<br>
+     *
+     * @param subjects サブジェクトの配列
+     */
+    public void setWildcardSubjects(String[] subjects);
+
+    /**
+     * サブジェクトのセグメントの区切り文字を取得する。
+     *
+     * @return 区切り文字
+     */
+    public String getSubjectSeparator();
+
+    /**
+     * サブジェクトのセグメントの区切り文字を設定する。デフォルトは{@link #DEFAULT_SUBJECT_SEPARATOR}。
+     *
+     * @param separator 区切り文字
+     */
+    public void setSubjectSeparator(String separator);
+
+    /**
+     * 任意の1セグメントに一致するワイルドカードを取得する。
+     *
+     * @return ワイルドカード
+     */
+    public String getSingleLevelWildcard();
+
+    /**
+     * 任意の1セグメントに一致するワイルドカードを設定する。デフォルトは{@link #DEFAULT_SINGLE_LEVEL_WILDCARD}。
+     *
+     * @param wildcard ワイルドカード
+     */
+    public void setSingleLevelWildcard(String wildcard);
+
+    /**
+     * 末尾で残りの0個以上のセグメントに一致するワイルドカードを取得する。
+     *
+     * @return ワイルドカード
+     */
+    public String getMultiLevelWildcard();
+
+    /**
+     * 末尾で残りの0個以上のセグメントに一致するワイルドカードを設定する。デフォルトは{@link #DEFAULT_MULTI_LEVEL_WILDCARD}。
+     *
+     * @param wildcard ワイルドカード
+     */
+    public void setMultiLevelWildcard(String wildcard);
+
+    /**
+     * 登録されているパターンとMessageListenerの組み合わせの数を取得する。
+     *
+     * @return 組み合わせの数
+     */
+    public int getWildcardPatternCount();
 }
@@ -32,6 +32,9 @@
 package jp.ossc.nimbus.service.publish.websocket;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import jp.ossc.nimbus.core.Service;
 import jp.ossc.nimbus.service.websocket.SessionProperties;
@@ -40,6 +43,15 @@ import jp.ossc.nimbus.service.websocket.SessionProperties;
  * WebSocketを使ったメッセージハンドラファクトリサービスデフォルト実装クラス。
  * MessageDispatcherに対して、配信してほしいメッセージのキーを登録することで、対象メッセージをクライアントに配信する。
  * <p>
+ * 配信メッセージのエンコード結果は、メッセージオブジェクトの同一性とエンコーディングをキーにキャッシュし、複数のセッションに同じメッセージを配信する場合は1度だけエンコードする。<br>
+ * そのため、配信したメッセージオブジェクトは配信後に変更してはならない。<br>
+ * 通番が付与された{@link SequencedMessage}は、"サブジェクト,通番,メッセージ"の形式で送信する。<br>
+ * "RESUME,サブジェクト,通番[,キー...]"を受信した場合、MessageDispatcherが{@link ReplayableMessageDispatcher}であれば、指定した通番より後のメッセージを再送させる。<br>
+ * "ADDALL,サブジェクト[,キー...][;サブジェクト[,キー...]...]"、"DELALL,..."を受信した場合、1つのメッセージで複数のキーを一括で登録、削除する。<br>
+ * 受信したメッセージは、受信時の文字コードがUTF-8、US-ASCII、ISO-8859-1のいずれかであれば、文字列に変換せずに{@link CommandTokenizer}で直接解析する。<br>
+ * messageSeparatorString、batchEntrySeparatorStringは正規表現ではなく文字列として一致させる。<br>
+ * 以前のバージョンではmessageSeparatorStringを正規表現として扱っていたため、互換性のために"\|"のように"\"でエスケープした文字は、エスケープを外した文字として扱う。<br>
+ * エスケープされていない正規表現のメタ文字や、"\s"のような文字クラスを含む区切り文字は、1つの文字列に変換できないため、開始時に例外を投げる。<br>
  *
  * @author M.Ishida
  */
@@ -47,6 +59,11 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
     
     private static final long serialVersionUID = -1691923897073384591L;
     
+    /**
+     * 区切り文字に使用できない、正規表現のメタ文字。
+     */
+    protected static final String REGEX_META_CHARACTERS = "\\^$.|?*+()[]{}";
+    
     protected String messageParseErrorId = "WS___00007";
     protected String messageKeyAddErrorId = "WS___00008";
     protected String messageKeyRemoveErrorId = "WS___00009";
@@ -54,7 +71,20 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
     protected String messageEncoding = "UTF-8";
     protected String addKeyString = "ADD";
     protected String delKeyString = "DEL";
+    protected String resumeKeyString = "RESUME";
+    protected String batchAddKeyString = "ADDALL";
+    protected String batchDelKeyString = "DELALL";
     protected String messageSeparatorString = ",";
+    protected String batchEntrySeparatorString = ";";
+    protected String messageSeparator;
+    protected String batchEntrySeparator;
+    protected int encodeCacheSize = DEFAULT_ENCODE_CACHE_SIZE;
+    
+    protected AtomicReferenceArray encodeCache;
+    protected final AtomicLong encodeCount = new AtomicLong();
+    protected final AtomicLong encodeCacheHitCount = new AtomicLong();
+    protected final AtomicLong encodeByteSize = new AtomicLong();
+    protected final AtomicLong encodeTime = new AtomicLong();
     
     public String getMessageParseErrorId() {
         return messageParseErrorId;
@@ -104,6 +134,38 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
         delKeyString = string;
     }
 
+    public String getResumeKeyString() {
+        return resumeKeyString;
+    }
+
+    public void setResumeKeyString(String string) {
+        resumeKeyString = string;
+    }
+
+    public String getBatchAddKeyString() {
+        return batchAddKeyString;
+    }
+
+    public void setBatchAddKeyString(String string) {
+        batchAddKeyString = string;
+    }
+
+    public String getBatchDelKeyString() {
+        return batchDelKeyString;
+    }
+
+    public void setBatchDelKeyString(String string) {
+        batchDelKeyString = string;
+    }
+
+    public String getBatchEntrySeparatorString() {
+        return batchEntrySeparatorString;
+    }
+
+    public void setBatchEntrySeparatorString(String string) {
+        batchEntrySeparatorString = string;
+    }
+
     public String getMessageSeparatorString() {
         return messageSeparatorString;
     }
@@ -112,6 +174,132 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
         messageSeparatorString = string;
     }
 
+    public int getEncodeCacheSize() {
+        return encodeCacheSize;
+    }
+
+    public void setEncodeCacheSize(int size) {
+        encodeCacheSize = size;
+    }
+
+    public long getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    public long getEncodeCacheHitCount() {
+        return encodeCacheHitCount.get();
+    }
+
+    public long getEncodeByteSize() {
+        return encodeByteSize.get();
+    }
+
+    public long getAverageEncodeTime() {
+        final long count = encodeCount.get();
+        return count == 0 ? 0 : encodeTime.get() / count;
+    }
+
+    /**
+     * 配信メッセージをエンコードしたByteBufferを取得する。
+     * <p>
+     * 同じメッセージオブジェクトとエンコーディングのエンコード結果がキャッシュに存在する場合は、そのバッファを共有する読み取り専用のByteBufferを返す。<br>
+     * 配信メッセージがByteBufferの場合は、エンコードせずに内容を共有する複製を返す。<br>
+     *
+     * @param msg 配信メッセージ
+     * @return エンコードしたByteBuffer
+     * @exception Exception エンコードに失敗した場合
+     */
+    protected ByteBuffer encode(Object msg) throws Exception {
+        if(msg instanceof ByteBuffer) {
+            return ((ByteBuffer)msg).duplicate();
+        }
+        final String encoding = messageEncoding;
+        final AtomicReferenceArray cache = encodeCache;
+        int index = 0;
+        if(cache != null) {
+            index = System.identityHashCode(msg) & (cache.length() - 1);
+            EncodedMessage encoded = (EncodedMessage)cache.get(index);
+            if(encoded != null && encoded.message == msg
+                && (encoding == null ? encoded.encoding == null : encoding.equals(encoded.encoding))) {
+                encodeCacheHitCount.incrementAndGet();
+                return encoded.buffer.duplicate();
+            }
+        }
+        final long start = System.nanoTime();
+        final String str = msg instanceof SequencedMessage ? formatSequencedMessage((SequencedMessage)msg) : msg.toString();
+        byte[] bytes = encoding == null ? str.getBytes() : str.getBytes(encoding);
+        encodeTime.addAndGet(System.nanoTime() - start);
+        encodeCount.incrementAndGet();
+        encodeByteSize.addAndGet(bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        if(cache != null) {
+            cache.set(index, new EncodedMessage(msg, encoding, buffer));
+            return buffer.duplicate();
+        }
+        return buffer;
+    }
+
+    /**
+     * 区切り文字を、文字列として一致させる区切り文字に変換する。
+     * <p>
+     * "\"でエスケープした正規表現のメタ文字と、"\t"、"\n"、"\r"、"\f"は、エスケープを外した文字に変換する。<br>
+     *
+     * @param separator 区切り文字
+     * @return 文字列として一致させる区切り文字。1つの文字列に変換できない場合はnull
+     */
+    protected static String toLiteralSeparator(String separator) {
+        final StringBuilder buf = new StringBuilder(separator.length());
+        for(int i = 0; i < separator.length(); i++) {
+            char c = separator.charAt(i);
+            if(c != '\\') {
+                if(REGEX_META_CHARACTERS.indexOf(c) != -1) {
+                    return null;
+                }
+                buf.append(c);
+                continue;
+            }
+            if(++i == separator.length()) {
+                return null;
+            }
+            c = separator.charAt(i);
+            switch(c) {
+            case 't':
+                buf.append('\t');
+                break;
+            case 'n':
+                buf.append('\n');
+                break;
+            case 'r':
+                buf.append('\r');
+                break;
+            case 'f':
+                buf.append('\f');
+                break;
+            default:
+                if(Character.isLetterOrDigit(c)) {
+                    return null;
+                }
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 通番が付与された配信メッセージを送信する文字列に変換する。
+     * <p>
+     *
+     * @param msg 通番が付与された配信メッセージ
+     * @return "サブジェクト,通番,メッセージ"形式の文字列
+     */
+    protected String formatSequencedMessage(SequencedMessage msg) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(msg.getSubject()).append(messageSeparator);
+        buf.append(msg.getSequence()).append(messageSeparator);
+        buf.append(msg.getObject());
+        return buf.toString();
+    }
+
     protected Service createServiceInstance() throws Exception {
         return new DefaultPublishMessageHandlerService();
     }
@@ -123,8 +311,46 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
         if(delKeyString == null) {
             throw new IllegalArgumentException("DelKeyString is null.");
         }
-        if(messageSeparatorString == null) {
-            throw new IllegalArgumentException("MessageSeparatorString is null.");
+        if(messageSeparatorString == null || messageSeparatorString.length() == 0) {
+            throw new IllegalArgumentException("MessageSeparatorString is empty.");
+        }
+        messageSeparator = toLiteralSeparator(messageSeparatorString);
+        if(messageSeparator == null) {
+            throw new IllegalArgumentException("MessageSeparatorString is matched literally, regular expression is not supported. separator=" + messageSeparatorString);
+        }
+        if((batchAddKeyString != null || batchDelKeyString != null)
+            && (batchEntrySeparatorString == null || batchEntrySeparatorString.length() == 0)) {
+            throw new IllegalArgumentException("BatchEntrySeparatorString is empty.");
+        }
+        batchEntrySeparator = batchEntrySeparatorString == null ? null : toLiteralSeparator(batchEntrySeparatorString);
+        if(batchEntrySeparatorString != null && batchEntrySeparator == null) {
+            throw new IllegalArgumentException("BatchEntrySeparatorString is matched literally, regular expression is not supported. separator=" + batchEntrySeparatorString);
+        }
+        if(encodeCacheSize > 0) {
+            int size = 1;
+            while(size < encodeCacheSize) {
+                size <<= 1;
+            }
+            encodeCache = new AtomicReferenceArray(size);
+        } else {
+            encodeCache = null;
+        }
+    }
+    
+    /**
+     * エンコード済みの配信メッセージのキャッシュエントリ。
+     * <p>
+     */
+    protected static class EncodedMessage {
+        
+        protected final Object message;
+        protected final String encoding;
+        protected final ByteBuffer buffer;
+        
+        protected EncodedMessage(Object message, String encoding, ByteBuffer buffer) {
+            this.message = message;
+            this.encoding = encoding;
+            this.buffer = buffer;
         }
     }
     
@@ -132,46 +358,178 @@ public class DefaultPublishMessageHandlerFactoryService extends AbstractPublishM
         
         private static final long serialVersionUID = 2787005752537088401L;
 
+        protected CommandTokenizer tokenizer;
+        protected byte[] addKeyBytes;
+        protected byte[] delKeyBytes;
+        protected byte[] resumeKeyBytes;
+        protected byte[] batchAddKeyBytes;
+        protected byte[] batchDelKeyBytes;
+        protected byte[] batchEntrySeparatorBytes;
+
+        /**
+         * コマンドを解析するトークナイザを取得する。
+         * <p>
+         * 受信時の文字コードで解析できる場合は受信時の文字コード、そうでない場合はUTF-8で解析するトークナイザを生成する。<br>
+         *
+         * @return トークナイザ
+         */
+        protected CommandTokenizer getTokenizer() {
+            if(tokenizer == null) {
+                Charset charset = messageCharset;
+                if(charset == null || !CommandTokenizer.isSupportedCharset(charset)) {
+                    charset = Charset.forName("UTF-8");
+                }
+                tokenizer = new CommandTokenizer(messageSeparator, charset);
+                addKeyBytes = tokenizer.toBytes(addKeyString);
+                delKeyBytes = tokenizer.toBytes(delKeyString);
+                resumeKeyBytes = tokenizer.toBytes(resumeKeyString);
+                batchAddKeyBytes = tokenizer.toBytes(batchAddKeyString);
+                batchDelKeyBytes = tokenizer.toBytes(batchDelKeyString);
+                batchEntrySeparatorBytes = tokenizer.toBytes(batchEntrySeparator);
+            }
+            return tokenizer;
+        }
+
+        protected void onMessageProcess(ByteBuffer msg) throws Exception {
+            final CommandTokenizer tokenizer = getTokenizer();
+            if(!tokenizer.getCharset().equals(messageCharset)) {
+                super.onMessageProcess(msg);
+                return;
+            }
+            tokenizer.reset(msg);
+            processCommand(tokenizer, msg);
+        }
+
         protected void onMessageProcess(String message) {
-            String[] args = message.split(messageSeparatorString);
-            if (args.length < 2) {
-                getLogger().write(messageParseErrorId, new Object[] {message, SessionProperties.getSessionProperty(session)});
+            final CommandTokenizer tokenizer = getTokenizer();
+            tokenizer.reset(ByteBuffer.wrap(message.getBytes(tokenizer.getCharset())));
+            processCommand(tokenizer, message);
+        }
+
+        /**
+         * 受信したコマンドを解析し、処理する。
+         * <p>
+         *
+         * @param tokenizer 受信したメッセージを設定したトークナイザ
+         * @param message ログ出力用の受信したメッセージ
+         */
+        protected void processCommand(CommandTokenizer tokenizer, Object message) {
+            if(tokenizer.countTokens() < 2) {
+                getLogger().write(messageParseErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
+                return;
             }
-            if(addKeyString.equals(args[0])) {
+            if(tokenizer.nextTokenEquals(addKeyBytes)) {
+                try {
+                    dispatcher.addKey(nextKey(tokenizer), this);
+                } catch (Exception e) {
+                    if(messageKeyAddErrorId != null) {
+                        getLogger().write(messageKeyAddErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
+                    }
+                }
+            } else if(tokenizer.nextTokenEquals(delKeyBytes)) {
                 try {
-                    if(args.length == 2) {
-                        dispatcher.addKey(args[1], this);
+                    dispatcher.removeKey(nextKey(tokenizer), this);
+                } catch (Exception e) {
+                    if(messageKeyRemoveErrorId != null) {
+                        getLogger().write(messageKeyRemoveErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
+                    }
+                }
+            } else if(tokenizer.nextTokenEquals(resumeKeyBytes)) {
+                if(tokenizer.countTokens() < 2) {
+                    getLogger().write(messageParseErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
+                    return;
+                }
+                try {
+                    final String subject = tokenizer.nextToken();
+                    final long sequence = tokenizer.nextLong();
+                    final Object key = nextKey(subject, tokenizer);
+                    if(dispatcher instanceof ReplayableMessageDispatcher) {
+                        ((ReplayableMessageDispatcher)dispatcher).resumeKey(key, sequence, this);
                     } else {
-                        String[] keys = new String[args.length - 2];
-                        System.arraycopy(args, 2, keys, 0, keys.length);
-                        dispatcher.addKey(new Object[] {args[1], keys}, this);
+                        dispatcher.addKey(key, this);
                     }
+                } catch (NumberFormatException e) {
+                    getLogger().write(messageParseErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
                 } catch (Exception e) {
                     if(messageKeyAddErrorId != null) {
-                        getLogger().write(messageKeyAddErrorId, new Object[] {message, SessionProperties.getSessionProperty(session)});
+                        getLogger().write(messageKeyAddErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
                     }
                 }
-            } else if(delKeyString.equals(args[0])) {
+            } else if(tokenizer.nextTokenEquals(batchAddKeyBytes)) {
                 try {
-                    if(args.length == 2) {
-                        dispatcher.removeKey(args[1], this);
-                    } else {
-                        String[] keys = new String[args.length - 2];
-                        System.arraycopy(args, 2, keys, 0, keys.length);
-                        dispatcher.removeKey(new Object[] {args[1], keys}, this);
+                    dispatcher.addKeys(nextKeys(tokenizer), this);
+                } catch (Exception e) {
+                    if(messageKeyAddErrorId != null) {
+                        getLogger().write(messageKeyAddErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
                     }
+                }
+            } else if(tokenizer.nextTokenEquals(batchDelKeyBytes)) {
+                try {
+                    dispatcher.removeKeys(nextKeys(tokenizer), this);
                 } catch (Exception e) {
                     if(messageKeyRemoveErrorId != null) {
-                        getLogger().write(messageKeyRemoveErrorId, new Object[] {message, SessionProperties.getSessionProperty(session)});
+                        getLogger().write(messageKeyRemoveErrorId, new Object[] {toLogMessage(message), SessionProperties.getSessionProperty(session)});
                     }
                 }
             }
         }
+
+        private Object nextKey(CommandTokenizer tokenizer) {
+            return nextKey(tokenizer.nextToken(), tokenizer);
+        }
+
+        private Object nextKey(String subject, CommandTokenizer tokenizer) {
+            final int count = tokenizer.countTokens();
+            if(count == 0) {
+                return subject;
+            }
+            final String[] keys = new String[count];
+            for(int i = 0; i < count; i++) {
+                keys[i] = tokenizer.nextToken();
+            }
+            return new Object[] {subject, keys};
+        }
+
+        private Object[] nextKeys(CommandTokenizer tokenizer) {
+            tokenizer.beginEntries(batchEntrySeparatorBytes);
+            int count = 0;
+            Object[] keys = new Object[8];
+            do {
+                if(!tokenizer.hasMoreTokens()) {
+                    continue;
+                }
+                if(count == keys.length) {
+                    final Object[] newKeys = new Object[keys.length * 2];
+                    System.arraycopy(keys, 0, newKeys, 0, count);
+                    keys = newKeys;
+                }
+                keys[count++] = nextKey(tokenizer);
+            } while(tokenizer.nextEntry());
+            if(count == keys.length) {
+                return keys;
+            }
+            final Object[] result = new Object[count];
+            System.arraycopy(keys, 0, result, 0, count);
+            return result;
+        }
+
+        private Object toLogMessage(Object message) {
+            if(message instanceof ByteBuffer) {
+                final ByteBuffer buf = ((ByteBuffer)message).duplicate();
+                final byte[] bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                return new String(bytes, tokenizer.getCharset());
+            }
+            return message;
+        }
+
+        protected Object createSendData(Object msg) throws Exception {
+            return encode(msg);
+        }
         
         public void sendMessageProcess(Object msg) throws Exception {
             if(session.isOpen()) {
-                byte[] bytes = messageEncoding == null ? msg.toString().getBytes() : msg.toString().getBytes(messageEncoding);
-                session.getBasicRemote().sendBinary(ByteBuffer.wrap(bytes));
+                session.getBasicRemote().sendBinary(encode(msg));
             }
         }
     }
@@ -2,6 +2,8 @@ package jp.ossc.nimbus.service.publish.websocket;
 
 public interface DefaultPublishMessageHandlerFactoryServiceMBean extends AbstractPublishMessageHandlerFactoryServiceMBean {
     
+    public static final int DEFAULT_ENCODE_CACHE_SIZE = 64;
+    
     public String getMessageParseErrorId();
 
     public void setMessageParseErrorId(String id);
@@ -26,7 +28,35 @@ public interface DefaultPublishMessageHandlerFactoryServiceMBean extends Abstrac
 
     public void setDelKeyString(String string);
 
+    public String getResumeKeyString();
+
+    public void setResumeKeyString(String string);
+
+    public String getBatchAddKeyString();
+
+    public void setBatchAddKeyString(String string);
+
+    public String getBatchDelKeyString();
+
+    public void setBatchDelKeyString(String string);
+
+    public String getBatchEntrySeparatorString();
+
+    public void setBatchEntrySeparatorString(String string);
+
     public String getMessageSeparatorString();
 
     public void setMessageSeparatorString(String string);
+
+    public int getEncodeCacheSize();
+
+    public void setEncodeCacheSize(int size);
+
+    public long getEncodeCount();
+
+    public long getEncodeCacheHitCount();
+
+    public long getEncodeByteSize();
+
+    public long getAverageEncodeTime();
 }
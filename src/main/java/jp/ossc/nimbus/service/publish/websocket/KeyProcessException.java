@@ -0,0 +1,68 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+/**
+ * 複数のキーオブジェクトを一括で登録、削除した際に、一部のキーオブジェクトの処理に失敗した場合にthrowされる例外。
+ * <p>
+ * 失敗したキーオブジェクトと、最初に発生した例外を原因として持つ。失敗したキーオブジェクト以外は、処理に成功している。<br>
+ *
+ * @author M.Ishida
+ */
+public class KeyProcessException extends Exception {
+
+    private static final long serialVersionUID = 3958072716354823604L;
+
+    private Object[] failedKeys;
+
+    /**
+     * 失敗したキーオブジェクトと、最初に発生した例外を持ったインスタンスを生成する。
+     * <p>
+     *
+     * @param failedKeys 処理に失敗したキーオブジェクトの配列
+     * @param cause 最初に発生した例外
+     */
+    public KeyProcessException(Object[] failedKeys, Throwable cause) {
+        super(cause == null ? null : cause.getMessage(), cause);
+        this.failedKeys = failedKeys;
+    }
+
+    /**
+     * 処理に失敗したキーオブジェクトを取得する。
+     * <p>
+     *
+     * @return 処理に失敗したキーオブジェクトの配列
+     */
+    public Object[] getFailedKeys() {
+        return failedKeys;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.ossc.nimbus.service.publish.Message;
+
+/**
+ * サブジェクトとキー毎に最後に受信した配信メッセージを保持するキャッシュ。
+ * <p>
+ * 保持するエントリ数と、配信メッセージのオブジェクトの概算サイズの合計で上限を設け、上限を超えた場合は最も長く参照されていないエントリから削除する。<br>
+ * 概算サイズは、String、byte[]、ByteBufferの場合はその長さから算出し、それ以外の場合は固定値とする。<br>
+ *
+ * @author M.Ishida
+ */
+public class LastValueCache {
+
+    /**
+     * サイズを算出できないオブジェクトの概算サイズ。
+     * <p>
+     */
+    public static final int DEFAULT_OBJECT_SIZE = 64;
+
+    private final int maxSize;
+    private final long maxByteSize;
+    private final LinkedHashMap entryMap = new LinkedHashMap(16, 0.75f, true);
+    private final Map subjectKeyMap = new HashMap();
+    private long byteSize;
+    private long hitCount;
+    private long evictionCount;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param maxSize 最大エントリ数
+     * @param maxByteSize 最大概算サイズ。0以下の場合はサイズによる制限はしない
+     */
+    public LastValueCache(int maxSize, long maxByteSize) {
+        this.maxSize = maxSize;
+        this.maxByteSize = maxByteSize;
+    }
+
+    /**
+     * 配信メッセージをキャッシュする。
+     * <p>
+     *
+     * @param message 配信メッセージ
+     * @param object メッセージ送信対象に送信するオブジェクト
+     */
+    public synchronized void put(Message message, Object object) {
+        final String subject = message.getSubject();
+        if (subject == null) {
+            return;
+        }
+        final SubjectKey subjectKey = new SubjectKey(subject, message.getKey());
+        final Entry current = (Entry) entryMap.get(subjectKey);
+        if (current != null && current.message == message) {
+            return;
+        }
+        final Entry entry = new Entry(subjectKey, message, object, sizeOf(object));
+        final Entry old = (Entry) entryMap.put(subjectKey, entry);
+        if (old != null) {
+            byteSize -= old.size;
+        } else {
+            Set keys = (Set) subjectKeyMap.get(subject);
+            if (keys == null) {
+                keys = new LinkedHashSet();
+                subjectKeyMap.put(subject, keys);
+            }
+            keys.add(subjectKey.key);
+        }
+        byteSize += entry.size;
+        final Iterator itr = entryMap.values().iterator();
+        while (itr.hasNext() && entryMap.size() > 1
+            && (entryMap.size() > maxSize || (maxByteSize > 0 && byteSize > maxByteSize))) {
+            Entry eldest = (Entry) itr.next();
+            itr.remove();
+            removeSubjectKey(eldest.subjectKey);
+            byteSize -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * 指定されたサブジェクトの、指定されたキーに対してキャッシュされた配信メッセージを取得する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param keys キーの配列。nullの場合は、サブジェクトの全てのキー
+     * @return {@link Entry}のリスト
+     */
+    public synchronized List get(String subject, String[] keys) {
+        Set subjectKeys = (Set) subjectKeyMap.get(subject);
+        if (subjectKeys == null) {
+            return Collections.EMPTY_LIST;
+        }
+        final List result = new ArrayList();
+        if (keys == null) {
+            Object[] cachedKeys = subjectKeys.toArray();
+            for (int i = 0; i < cachedKeys.length; i++) {
+                addMessage(result, new SubjectKey(subject, (String) cachedKeys[i]));
+            }
+        } else {
+            for (int i = 0; i < keys.length; i++) {
+                if (subjectKeys.contains(keys[i])) {
+                    addMessage(result, new SubjectKey(subject, keys[i]));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addMessage(List result, SubjectKey subjectKey) {
+        Entry entry = (Entry) entryMap.get(subjectKey);
+        if (entry != null) {
+            hitCount++;
+            result.add(entry);
+        }
+    }
+
+    private void removeSubjectKey(SubjectKey subjectKey) {
+        Set keys = (Set) subjectKeyMap.get(subjectKey.subject);
+        if (keys != null) {
+            keys.remove(subjectKey.key);
+            if (keys.isEmpty()) {
+                subjectKeyMap.remove(subjectKey.subject);
+            }
+        }
+    }
+
+    /**
+     * キャッシュをクリアする。
+     * <p>
+     */
+    public synchronized void clear() {
+        entryMap.clear();
+        subjectKeyMap.clear();
+        byteSize = 0;
+    }
+
+    public synchronized int size() {
+        return entryMap.size();
+    }
+
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 送信するオブジェクトの概算サイズを算出する。
+     * <p>
+     *
+     * @param obj 送信するオブジェクト
+     * @return 概算サイズ
+     */
+    protected int sizeOf(Object obj) {
+        if (obj instanceof SequencedMessage) {
+            obj = ((SequencedMessage) obj).getObject();
+        }
+        if (obj instanceof String) {
+            return ((String) obj).length() * 2;
+        } else if (obj instanceof byte[]) {
+            return ((byte[]) obj).length;
+        } else if (obj instanceof ByteBuffer) {
+            return ((ByteBuffer) obj).remaining();
+        }
+        return DEFAULT_OBJECT_SIZE;
+    }
+
+    /**
+     * サブジェクトとキーの組み合わせ。
+     * <p>
+     */
+    protected static class SubjectKey {
+
+        protected final String subject;
+        protected final String key;
+
+        protected SubjectKey(String subject, String key) {
+            this.subject = subject;
+            this.key = key;
+        }
+
+        public int hashCode() {
+            return subject.hashCode() * 31 + (key == null ? 0 : key.hashCode());
+        }
+
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof SubjectKey)) {
+                return false;
+            }
+            SubjectKey other = (SubjectKey) obj;
+            return subject.equals(other.subject) && (key == null ? other.key == null : key.equals(other.key));
+        }
+    }
+
+    /**
+     * キャッシュのエントリ。
+     * <p>
+     */
+    public static class Entry {
+
+        private final SubjectKey subjectKey;
+        private final Message message;
+        private final Object object;
+        private final int size;
+
+        private Entry(SubjectKey subjectKey, Message message, Object object, int size) {
+            this.subjectKey = subjectKey;
+            this.message = message;
+            this.object = object;
+            this.size = size;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public Object getObject() {
+            return object;
+        }
+    }
+}
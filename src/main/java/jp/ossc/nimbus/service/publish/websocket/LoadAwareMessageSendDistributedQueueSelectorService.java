@@ -0,0 +1,369 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.ossc.nimbus.service.queue.Queue;
+
+/**
+ * キュー毎の負荷に応じてセッションを割り当てる、メッセージを送信するためのDistributeQueueHandlerContainerのSelectorサービス。
+ * <p>
+ * キュー毎の処理待ち件数と平均送信処理時間から負荷を推定し、新しいセッションは最も負荷の低いキューに割り当てる。<br>
+ * 割り当て済みのセッションは、処理待ちのメッセージが存在しない場合に限り、所属するキューの負荷が最も負荷の低いキューのimbalanceThreshold倍を超えていれば、最も負荷の低いキューに移動する。<br>
+ * 処理待ちのメッセージが存在する間は移動しないため、セッション毎のメッセージの送信順序は保たれる。<br>
+ * 処理の完了は{@link AbstractJMSMessageDispatcherService}から{@link #complete(Object, long)}で通知される。<br>
+ * クローズされたセッションは、削除後に状態が残らないよう、状態を登録せずに処理待ち件数にも含めずにキューを選択する。<br>
+ *
+ * @author M.Ishida
+ */
+public class LoadAwareMessageSendDistributedQueueSelectorService extends SessionIdMessageSendDistributedQueueSelectorService
+        implements LoadAwareMessageSendDistributedQueueSelectorServiceMBean {
+
+    private static final long serialVersionUID = -3650215475810918322L;
+
+    protected double imbalanceThreshold = DEFAULT_IMBALANCE_THRESHOLD;
+    protected long migrationInterval = DEFAULT_MIGRATION_INTERVAL;
+
+    private volatile LoadState loadState;
+    protected final AtomicLong migrationCount = new AtomicLong();
+
+    public double getImbalanceThreshold() {
+        return imbalanceThreshold;
+    }
+
+    public void setImbalanceThreshold(double threshold) {
+        imbalanceThreshold = threshold;
+    }
+
+    public long getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    public void setMigrationInterval(long interval) {
+        migrationInterval = interval;
+    }
+
+    public long getMigrationCount() {
+        return migrationCount.get();
+    }
+
+    public int getSessionCount() {
+        final LoadState state = loadState;
+        return state == null ? 0 : state.sessionMap.size();
+    }
+
+    public int[] getQueueSessionCounts() {
+        final LoadState state = loadState;
+        if (state == null) {
+            return new int[0];
+        }
+        final int[] counts = new int[state.sessionCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = state.sessionCounts[i].get();
+        }
+        return counts;
+    }
+
+    public int[] getQueueInFlightCounts() {
+        final LoadState state = loadState;
+        if (state == null) {
+            return new int[0];
+        }
+        final int[] counts = new int[state.inFlightCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = state.inFlightCounts[i].get();
+        }
+        return counts;
+    }
+
+    public long[] getQueueAverageProcessTimes() {
+        final LoadState state = loadState;
+        if (state == null) {
+            return new long[0];
+        }
+        final long[] times = new long[state.averageProcessTimes.length()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = state.averageProcessTimes.get(i) / 1000;
+        }
+        return times;
+    }
+
+    public double getImbalanceRatio() {
+        final LoadState state = loadState;
+        if (state == null) {
+            return 1.0d;
+        }
+        double min = Double.MAX_VALUE;
+        double max = 0.0d;
+        for (int i = 0; i < state.queues.length; i++) {
+            final double load = state.getLoad(i);
+            min = Math.min(min, load);
+            max = Math.max(max, load);
+        }
+        return max == 0.0d ? 1.0d : (min == 0.0d ? Double.POSITIVE_INFINITY : max / min);
+    }
+
+    public Queue selectQueue(Object obj) {
+        final LoadState state = getLoadState();
+        if (state == null) {
+            return super.selectQueue(obj);
+        }
+        final Object key = getKey(obj);
+        if (key == null) {
+            return state.queues[0];
+        }
+        SessionState session = (SessionState) state.sessionMap.get(key);
+        if (isClosed(obj)) {
+            return state.queues[session == null ? state.getLeastLoadedIndex() : session.queueIndex];
+        }
+        if (session == null) {
+            SessionState newSession = new SessionState(state.getLeastLoadedIndex());
+            session = (SessionState) state.sessionMap.putIfAbsent(key, newSession);
+            if (session == null) {
+                session = newSession;
+                state.sessionCounts[session.queueIndex].incrementAndGet();
+            }
+        }
+        final int index;
+        synchronized (session) {
+            if (state.sessionMap.get(key) != session) {
+                // 並行して削除された場合は、処理待ち件数に含めない
+                return state.queues[session.queueIndex];
+            }
+            if (session.inFlight == 0) {
+                migrate(state, session);
+            }
+            session.inFlight++;
+            state.inFlightCounts[session.queueIndex].incrementAndGet();
+            index = session.queueIndex;
+        }
+        if (isClosed(obj)) {
+            // 登録と並行してセッションが削除された場合は、登録した状態を削除する
+            remove((String) key);
+        }
+        return state.queues[index];
+    }
+
+    /**
+     * 処理待ちのメッセージが存在しないセッションを、必要に応じて負荷の低いキューに移動する。
+     * <p>
+     * 呼び出し元でセッションのロックを取得すること。<br>
+     *
+     * @param state キューの負荷状態
+     * @param session セッションの状態
+     */
+    protected void migrate(LoadState state, SessionState session) {
+        if (state.queues.length < 2 || imbalanceThreshold <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - session.lastMigrationTime < migrationInterval) {
+            return;
+        }
+        final int leastIndex = state.getLeastLoadedIndex();
+        if (leastIndex == session.queueIndex) {
+            return;
+        }
+        final double currentLoad = state.getLoad(session.queueIndex);
+        final double leastLoad = state.getLoad(leastIndex);
+        if (currentLoad <= leastLoad * imbalanceThreshold || currentLoad == 0.0d) {
+            return;
+        }
+        state.sessionCounts[session.queueIndex].decrementAndGet();
+        state.sessionCounts[leastIndex].incrementAndGet();
+        session.queueIndex = leastIndex;
+        session.lastMigrationTime = now;
+        migrationCount.incrementAndGet();
+    }
+
+    public void complete(Object obj, long processTime) {
+        final LoadState state = loadState;
+        if (state == null) {
+            return;
+        }
+        final SessionState session = (SessionState) state.sessionMap.get(getKey(obj));
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session.inFlight > 0) {
+                session.inFlight--;
+                state.inFlightCounts[session.queueIndex].decrementAndGet();
+            }
+            if (processTime >= 0) {
+                state.updateProcessTime(session.queueIndex, processTime);
+            }
+        }
+    }
+
+    public void remove(String sessionId) {
+        final LoadState state = loadState;
+        if (state == null) {
+            return;
+        }
+        final SessionState session = (SessionState) state.sessionMap.remove(sessionId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            state.sessionCounts[session.queueIndex].decrementAndGet();
+            if (session.inFlight > 0) {
+                state.inFlightCounts[session.queueIndex].addAndGet(-session.inFlight);
+                session.inFlight = 0;
+            }
+        }
+    }
+
+    public void clear() {
+        super.clear();
+        loadState = null;
+    }
+
+    /**
+     * 現在のキューの負荷状態を取得する。
+     * <p>
+     * キューが再生成された場合は、新しいキューに対する負荷状態を生成する。<br>
+     *
+     * @return 負荷状態。キューが生成されていない場合はnull
+     */
+    protected LoadState getLoadState() {
+        final Queue[] currentQueues = queues;
+        if (currentQueues == null || currentQueues.length == 0) {
+            return null;
+        }
+        LoadState state = loadState;
+        if (state == null || state.queues != currentQueues) {
+            synchronized (this) {
+                state = loadState;
+                if (state == null || state.queues != currentQueues) {
+                    state = new LoadState(currentQueues);
+                    loadState = state;
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * セッション毎の割り当て状態。
+     *
+     * @author M.Ishida
+     */
+    protected static class SessionState {
+
+        protected int queueIndex;
+        protected int inFlight;
+        protected long lastMigrationTime;
+
+        protected SessionState(int queueIndex) {
+            this.queueIndex = queueIndex;
+            lastMigrationTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * キューの配列に対する負荷状態。
+     *
+     * @author M.Ishida
+     */
+    protected static class LoadState {
+
+        protected final Queue[] queues;
+        protected final ConcurrentHashMap sessionMap = new ConcurrentHashMap();
+        protected final AtomicInteger[] sessionCounts;
+        protected final AtomicInteger[] inFlightCounts;
+        protected final AtomicLongArray averageProcessTimes;
+
+        protected LoadState(Queue[] queues) {
+            this.queues = queues;
+            sessionCounts = new AtomicInteger[queues.length];
+            inFlightCounts = new AtomicInteger[queues.length];
+            for (int i = 0; i < queues.length; i++) {
+                sessionCounts[i] = new AtomicInteger();
+                inFlightCounts[i] = new AtomicInteger();
+            }
+            averageProcessTimes = new AtomicLongArray(queues.length);
+        }
+
+        /**
+         * キューの負荷を取得する。
+         * <p>
+         * 処理待ち件数と平均送信処理時間の積から推定する。平均送信処理時間が不明な場合は処理待ち件数とする。<br>
+         *
+         * @param index キューの番号
+         * @return 負荷
+         */
+        protected double getLoad(int index) {
+            final int inFlight = inFlightCounts[index].get();
+            final long time = averageProcessTimes.get(index);
+            return time <= 0 ? inFlight : (double) inFlight * time;
+        }
+
+        protected int getLeastLoadedIndex() {
+            int index = 0;
+            double min = Double.MAX_VALUE;
+            int minSessions = Integer.MAX_VALUE;
+            for (int i = 0; i < queues.length; i++) {
+                final double load = getLoad(i);
+                final int sessions = sessionCounts[i].get();
+                if (load < min || (load == min && sessions < minSessions)) {
+                    min = load;
+                    minSessions = sessions;
+                    index = i;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * キューの平均送信処理時間を、指数移動平均で更新する。
+         * <p>
+         * 同じキューを複数のスレッドが同時に更新しても更新が失われないよう、CASで更新する。<br>
+         *
+         * @param index キューの番号
+         * @param processTime 送信処理時間[ns]
+         */
+        protected void updateProcessTime(int index, long processTime) {
+            while (true) {
+                final long average = averageProcessTimes.get(index);
+                final long next = average == 0 ? processTime : average + ((processTime - average) >> 3);
+                if (averageProcessTimes.compareAndSet(index, average, next)) {
+                    return;
+                }
+            }
+        }
+    }
+}
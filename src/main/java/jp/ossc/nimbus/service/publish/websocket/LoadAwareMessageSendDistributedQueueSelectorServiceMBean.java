@@ -0,0 +1,112 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+/**
+ * {@link LoadAwareMessageSendDistributedQueueSelectorService}のMBeanインタフェース
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public interface LoadAwareMessageSendDistributedQueueSelectorServiceMBean extends SessionIdMessageSendDistributedQueueSelectorServiceMBean {
+
+    /**
+     * セッションを移動するキューの負荷の比率のデフォルト値。
+     * <p>
+     */
+    public static final double DEFAULT_IMBALANCE_THRESHOLD = 2.0d;
+
+    /**
+     * 同じセッションを移動する最小間隔[ms]のデフォルト値。
+     * <p>
+     */
+    public static final long DEFAULT_MIGRATION_INTERVAL = 1000l;
+
+    /**
+     * セッションを移動するキューの負荷の比率を取得する。
+     *
+     * @return 比率
+     */
+    public double getImbalanceThreshold();
+
+    /**
+     * セッションを移動するキューの負荷の比率を設定する。
+     * <p>
+     * 所属するキューの負荷が、最も負荷の低いキューの負荷のこの倍率を超えた場合に、セッションを移動する。0以下の場合は移動しない。<br>
+     * デフォルトは{@link #DEFAULT_IMBALANCE_THRESHOLD}。<br>
+     *
+     * @param threshold 比率
+     */
+    public void setImbalanceThreshold(double threshold);
+
+    /**
+     * 同じセッションを移動する最小間隔[ms]を取得する。
+     *
+     * @return 最小間隔[ms]
+     */
+    public long getMigrationInterval();
+
+    /**
+     * 同じセッションを移動する最小間隔[ms]を設定する。デフォルトは{@link #DEFAULT_MIGRATION_INTERVAL}。
+     *
+     * @param interval 最小間隔[ms]
+     */
+    public void setMigrationInterval(long interval);
+
+    /**
+     * セッションを移動した回数を取得する。
+     *
+     * @return 回数
+     */
+    public long getMigrationCount();
+
+    /**
+     * キュー毎の処理待ち件数を取得する。
+     *
+     * @return キュー毎の処理待ち件数
+     */
+    public int[] getQueueInFlightCounts();
+
+    /**
+     * キュー毎の平均送信処理時間[us]を取得する。
+     *
+     * @return キュー毎の平均送信処理時間[us]
+     */
+    public long[] getQueueAverageProcessTimes();
+
+    /**
+     * 最も負荷の高いキューと最も負荷の低いキューの負荷の比率を取得する。
+     *
+     * @return 比率
+     */
+    public double getImbalanceRatio();
+}
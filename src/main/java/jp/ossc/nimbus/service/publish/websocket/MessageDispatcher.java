@@ -69,4 +69,33 @@ public interface MessageDispatcher {
      */
     public void removeKey(Object key, MessageSender sender) throws Exception;
 
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を追加する
+     * <p>
+     * 全てのキーオブジェクトの追加を試みた後、失敗したキーオブジェクトがあった場合は最初に発生した例外を投げる。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     */
+    public void addKeys(Object[] keys, MessageSender sender) throws Exception;
+
+    /**
+     * 配信メッセージに対する複数のキーオブジェクトに対して、一括でメッセージ送信対象を削除する
+     * <p>
+     * 全てのキーオブジェクトの削除を試みた後、失敗したキーオブジェクトがあった場合は最初に発生した例外を投げる。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     */
+    public void removeKeys(Object[] keys, MessageSender sender) throws Exception;
+
+    /**
+     * メッセージ送信対象が購読するキーオブジェクトを、指定されたキーオブジェクトに置き換える
+     * <p>
+     * 現在購読しているキーオブジェクトとの差分を取り、指定されていないキーオブジェクトの削除と、新たに指定されたキーオブジェクトの追加のみを行う。<br>
+     *
+     * @param keys 配信メッセージに対するキーオブジェクトの配列
+     * @param sender メッセージ送信対象
+     */
+    public void replaceKeys(Object[] keys, MessageSender sender) throws Exception;
 }
@@ -35,10 +35,12 @@ public class MessageSendParameter {
     
     private MessageSender sender;
     private Object message;
+    private boolean isCompleted;
     
     public void clear() {
         sender = null;
         message = null;
+        isCompleted = false;
     }
     
     public MessageSender getSender() {
@@ -57,4 +59,12 @@ public class MessageSendParameter {
         this.message = message;
     }
     
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+    
+    public void setCompleted(boolean isCompleted) {
+        this.isCompleted = isCompleted;
+    }
+    
 }
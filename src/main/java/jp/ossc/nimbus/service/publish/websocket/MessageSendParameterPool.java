@@ -0,0 +1,151 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link MessageSendParameter}を再利用するための、ロックを使用しない上限付きのプール。
+ * <p>
+ * 全てのスレッドで共有する取得位置と返却位置のカウンタを持つ、固定長の配列によるリングバッファで、複数のスレッドから同時に取得、返却できる。<br>
+ * 各スロットは通番を持ち、取得、返却はカウンタのCASと通番の比較のみで行うため、あるスレッドで返却したインスタンスを別のスレッドで必ず取得できる。<br>
+ * プールが空の場合、取得時は新しいインスタンスを生成する。プールが満杯の場合、返却時は破棄する。<br>
+ *
+ * @author M.Ishida
+ */
+public class MessageSendParameterPool {
+
+    private final AtomicReferenceArray<MessageSendParameter> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     * スロットの数は、指定された容量以上の2のべき乗に切り上げる。<br>
+     *
+     * @param capacity 容量
+     */
+    public MessageSendParameterPool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0.");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<MessageSendParameter>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * プールからMessageSendParameterを取得する。
+     * <p>
+     * プールに存在しない場合は、新しいインスタンスを生成する。<br>
+     *
+     * @return MessageSendParameter
+     */
+    public MessageSendParameter get() {
+        long position = head.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final MessageSendParameter param = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return param;
+                }
+            } else if (diff < 0) {
+                return new MessageSendParameter();
+            }
+            position = head.get();
+        }
+    }
+
+    /**
+     * MessageSendParameterをプールに返却する。
+     * <p>
+     *
+     * @param param MessageSendParameter
+     * @return プールに格納した場合true、プールが満杯で破棄した場合false
+     */
+    public boolean recycle(MessageSendParameter param) {
+        param.clear();
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, param);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    /**
+     * プールに格納されているMessageSendParameterの数を取得する。
+     * <p>
+     * 並行して取得、返却されている場合は概算となる。<br>
+     *
+     * @return 格納されている数
+     */
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * プールの容量を取得する。
+     * <p>
+     *
+     * @return 容量
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * サブジェクト毎に通番を採番し、配信メッセージを一定件数、一定時間保持するリングバッファ。
+ * <p>
+ * 配信メッセージは、キーとオブジェクトをエンコードし、ヒープ外のダイレクトバッファに格納する。<br>
+ * オブジェクトは、String、byte[]、ByteBufferの場合はその型のまま、それ以外の場合は文字列表現をUTF-8でエンコードし、再送時も同じ型で復元する。<br>
+ * 件数、バイト数、経過時間のいずれかの上限を超えた場合は、古いメッセージから削除する。<br>
+ * 一定時間追加がない場合は{@link #release(long, long)}で格納領域を解放できる。解放後も通番は継続する。<br>
+ *
+ * @author M.Ishida
+ */
+public class ReplayBuffer {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BYTES = 1;
+    private static final byte TYPE_BYTE_BUFFER = 2;
+
+    private final String subject;
+    private final int maxCount;
+    private final int capacity;
+    private final long maxAge;
+
+    private ByteBuffer data;
+    private long[] sequences;
+    private long[] times;
+    private int[] offsets;
+    private int[] lengths;
+    private int head;
+    private int count;
+    private int writePosition;
+    private int usedBytes;
+    private long nextSequence = 1;
+    private long firstSequence = 1;
+    private long lastAppendTime;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param maxCount 保持する最大件数
+     * @param capacity 保持する最大バイト数
+     * @param maxAge 保持する最大時間[ms]。0以下の場合は時間による制限はしない
+     */
+    public ReplayBuffer(String subject, int maxCount, int capacity, long maxAge) {
+        this.subject = subject;
+        this.maxCount = maxCount;
+        this.capacity = capacity;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * 配信メッセージに通番を採番し、バッファに格納する。
+     * <p>
+     * 1つの配信メッセージに対して1度だけ呼び出すこと。<br>
+     * 返す{@link SequencedMessage}のオブジェクトは、再送時に復元されるオブジェクトと同じ型とする。<br>
+     *
+     * @param key キー
+     * @param object 配信メッセージのオブジェクト
+     * @return 通番を付与した配信メッセージ
+     */
+    public synchronized SequencedMessage append(String key, Object object) {
+        final long now = System.currentTimeMillis();
+        lastAppendTime = now;
+        if (!(object instanceof String) && !(object instanceof byte[]) && !(object instanceof ByteBuffer)) {
+            object = String.valueOf(object);
+        }
+        final SequencedMessage sequenced = new SequencedMessage(subject, key, nextSequence++, object);
+        removeExpired(now);
+        final byte[] entry = toBytes(key, object);
+        if (entry.length > capacity || maxCount <= 0) {
+            clear();
+            firstSequence = nextSequence;
+            return sequenced;
+        }
+        while (count == maxCount || capacity - usedBytes < entry.length) {
+            removeOldest();
+        }
+        if (data == null) {
+            data = ByteBuffer.allocateDirect(capacity);
+            sequences = new long[maxCount];
+            times = new long[maxCount];
+            offsets = new int[maxCount];
+            lengths = new int[maxCount];
+        }
+        final int index = (head + count) % maxCount;
+        sequences[index] = sequenced.getSequence();
+        times[index] = now;
+        offsets[index] = writePosition;
+        lengths[index] = entry.length;
+        final int first = Math.min(entry.length, capacity - writePosition);
+        data.position(writePosition);
+        data.put(entry, 0, first);
+        if (first < entry.length) {
+            data.position(0);
+            data.put(entry, first, entry.length - first);
+        }
+        writePosition = (writePosition + entry.length) % capacity;
+        usedBytes += entry.length;
+        if (count == 0) {
+            firstSequence = sequenced.getSequence();
+        }
+        count++;
+        return sequenced;
+    }
+
+    /**
+     * 指定された通番より後の配信メッセージを取得する。
+     * <p>
+     *
+     * @param sequence 最後に受信した通番
+     * @param keys 取得するキーの配列。nullの場合は全てのキー
+     * @return 配信メッセージのリスト。既に削除されているなど、欠落なく取得できない場合はnull
+     */
+    public synchronized List read(long sequence, String[] keys) {
+        removeExpired(System.currentTimeMillis());
+        if (sequence >= nextSequence || sequence + 1 < firstSequence) {
+            return null;
+        }
+        if (sequence == nextSequence - 1) {
+            return Collections.EMPTY_LIST;
+        }
+        final List result = new ArrayList();
+        for (int i = 0; i < count; i++) {
+            final int index = (head + i) % maxCount;
+            if (sequences[index] <= sequence) {
+                continue;
+            }
+            byte[] entry = new byte[lengths[index]];
+            final int first = Math.min(entry.length, capacity - offsets[index]);
+            data.position(offsets[index]);
+            data.get(entry, 0, first);
+            if (first < entry.length) {
+                data.position(0);
+                data.get(entry, first, entry.length - first);
+            }
+            final int keyLength = ((entry[1] & 0xFF) << 24) | ((entry[2] & 0xFF) << 16) | ((entry[3] & 0xFF) << 8) | (entry[4] & 0xFF);
+            try {
+                final String key = keyLength < 0 ? null : new String(entry, 5, keyLength, ENCODING);
+                if (keys != null && !contains(keys, key)) {
+                    continue;
+                }
+                final int objectOffset = 5 + Math.max(keyLength, 0);
+                final int objectLength = entry.length - objectOffset;
+                Object object = null;
+                switch (entry[0]) {
+                case TYPE_BYTES:
+                    object = new byte[objectLength];
+                    System.arraycopy(entry, objectOffset, object, 0, objectLength);
+                    break;
+                case TYPE_BYTE_BUFFER:
+                    object = ByteBuffer.wrap(entry, objectOffset, objectLength).slice().asReadOnlyBuffer();
+                    break;
+                default:
+                    object = new String(entry, objectOffset, objectLength, ENCODING);
+                    break;
+                }
+                result.add(new SequencedMessage(subject, key, sequences[index], object));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 最後に採番した通番を取得する。
+     * <p>
+     *
+     * @return 通番
+     */
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int getByteSize() {
+        return usedBytes;
+    }
+
+    public synchronized boolean isAllocated() {
+        return data != null;
+    }
+
+    /**
+     * 指定された時間以上追加がない場合に、格納している配信メッセージを破棄し、格納領域を解放する。
+     * <p>
+     * 通番は解放後も継続し、解放前の通番からの再送要求は再送できない通番として扱う。<br>
+     *
+     * @param now 現在時刻
+     * @param idleTime 解放するまでの時間[ms]
+     * @return 解放した場合true
+     */
+    public synchronized boolean release(long now, long idleTime) {
+        if (data == null || lastAppendTime > now - idleTime) {
+            return false;
+        }
+        clear();
+        firstSequence = nextSequence;
+        data = null;
+        sequences = null;
+        times = null;
+        offsets = null;
+        lengths = null;
+        return true;
+    }
+
+    private static boolean contains(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null ? key == null : keys[i].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] toBytes(String key, Object object) {
+        try {
+            final byte[] keyBytes = key == null ? null : key.getBytes(ENCODING);
+            byte type = TYPE_STRING;
+            byte[] objectBytes = null;
+            if (object instanceof byte[]) {
+                type = TYPE_BYTES;
+                objectBytes = (byte[]) object;
+            } else if (object instanceof ByteBuffer) {
+                type = TYPE_BYTE_BUFFER;
+                final ByteBuffer buffer = ((ByteBuffer) object).duplicate();
+                objectBytes = new byte[buffer.remaining()];
+                buffer.get(objectBytes);
+            } else {
+                objectBytes = String.valueOf(object).getBytes(ENCODING);
+            }
+            final int keyLength = keyBytes == null ? -1 : keyBytes.length;
+            final byte[] entry = new byte[5 + Math.max(keyLength, 0) + objectBytes.length];
+            entry[0] = type;
+            entry[1] = (byte) (keyLength >>> 24);
+            entry[2] = (byte) (keyLength >>> 16);
+            entry[3] = (byte) (keyLength >>> 8);
+            entry[4] = (byte) keyLength;
+            if (keyBytes != null) {
+                System.arraycopy(keyBytes, 0, entry, 5, keyBytes.length);
+            }
+            System.arraycopy(objectBytes, 0, entry, 5 + Math.max(keyLength, 0), objectBytes.length);
+            return entry;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void removeExpired(long now) {
+        if (maxAge <= 0) {
+            return;
+        }
+        while (count > 0 && times[head] < now - maxAge) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        usedBytes -= lengths[head];
+        head = (head + 1) % maxCount;
+        count--;
+        firstSequence = count == 0 ? nextSequence : sequences[head];
+    }
+
+    private void clear() {
+        head = 0;
+        count = 0;
+        writePosition = 0;
+        usedBytes = 0;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+/**
+ * サブジェクト毎の通番を付与した配信メッセージ。
+ * <p>
+ * {@link ReplayableMessageDispatcher}がメッセージ送信対象に送信する。<br>
+ *
+ * @author M.Ishida
+ */
+public class SequencedMessage {
+
+    private final String subject;
+    private final String key;
+    private final long sequence;
+    private final Object object;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param key キー
+     * @param sequence サブジェクト毎の通番
+     * @param object 配信メッセージのオブジェクト
+     */
+    public SequencedMessage(String subject, String key, long sequence, Object object) {
+        this.subject = subject;
+        this.key = key;
+        this.sequence = sequence;
+        this.object = object;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Object getObject() {
+        return object;
+    }
+
+    public String toString() {
+        return String.valueOf(object);
+    }
+}
@@ -1,11 +1,18 @@
 package jp.ossc.nimbus.service.publish.websocket;
 
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jp.ossc.nimbus.service.queue.AbstractDistributedQueueSelectorService;
+import jp.ossc.nimbus.service.queue.Queue;
 
 /**
  * メッセージを送信するためのDistributeQueueHandlerContainerのSelectorサービス。
+ * <p>
+ * セッションIDに対するキューはランデブーハッシュで決定し、同じセッションのメッセージは常に同じキューで送信する。<br>
+ * キューの数を変更した場合に別のキューに移動するセッションは、およそ増減したキューの割合分のみとなる。<br>
+ * セッションIDと所属するキューの番号を保持し、セッションの削除は所属するキューに対してのみ行う。<br>
+ * クローズされたセッションは、削除後に割り当てが残らないよう、割り当てを登録せずにキューを選択する。<br>
  *
  * @author M.Ishida
  *
@@ -15,18 +22,196 @@ public class SessionIdMessageSendDistributedQueueSelectorService extends Abstrac
 
     private static final long serialVersionUID = 9116235892276821497L;
 
+    private volatile Assignment assignment;
+
     protected Object getKey(Object obj) {
         MessageSendParameter param = (MessageSendParameter) obj;
         return param.getSender().getSession().getId();
     }
 
+    public Queue selectQueue(Object obj) {
+        final Assignment current = getAssignment();
+        if (current == null) {
+            return super.selectQueue(obj);
+        }
+        final Object key = getKey(obj);
+        if (isClosed(obj)) {
+            return current.queues[current.findIndex(key)];
+        }
+        final int index = current.getIndex(key);
+        if (isClosed(obj)) {
+            // 登録と並行してセッションが削除された場合は、登録した割り当てを削除する
+            current.remove(key);
+        }
+        return current.queues[index];
+    }
+
+    /**
+     * キューに格納するオブジェクトの送信先のセッションがクローズされているかどうかを判定する。
+     * <p>
+     * クローズされたセッションは、削除済みまたは削除される予定のため、割り当てを登録しない。<br>
+     *
+     * @param obj キューに格納するオブジェクト
+     * @return クローズされている場合true
+     */
+    protected boolean isClosed(Object obj) {
+        final MessageSendParameter param = (MessageSendParameter) obj;
+        return !param.getSender().getSession().isOpen();
+    }
+
     public void remove(String sessionId) {
-        synchronized (keyMap) {
-            keyMap.remove(sessionId);
-            for (int i = 0; i < keySets.length; i++) {
-                Set keySet = keySets[i];
-                keySet.remove(sessionId);
+        final Assignment current = assignment;
+        if (current != null) {
+            current.remove(sessionId);
+        }
+    }
+
+    /**
+     * 選択したキューでのメッセージの送信処理が完了したことを通知される。
+     * <p>
+     * デフォルトの実装では何もしない。<br>
+     *
+     * @param obj キューに格納したオブジェクト
+     * @param processTime 送信処理時間[ns]。送信に失敗した場合は-1
+     */
+    public void complete(Object obj, long processTime) {
+    }
+
+    public void clear() {
+        super.clear();
+        assignment = null;
+    }
+
+    public int getSessionCount() {
+        final Assignment current = assignment;
+        return current == null ? 0 : current.indexMap.size();
+    }
+
+    public int[] getQueueSessionCounts() {
+        final Assignment current = assignment;
+        if (current == null) {
+            return new int[0];
+        }
+        final int[] counts = new int[current.counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = current.counts[i].get();
+        }
+        return counts;
+    }
+
+    /**
+     * 現在のキューに対するセッションの割り当てを取得する。
+     * <p>
+     * キューが再生成された場合は、新しいキューに対する割り当てを生成する。<br>
+     *
+     * @return セッションの割り当て。キューが生成されていない場合はnull
+     */
+    protected Assignment getAssignment() {
+        final Queue[] currentQueues = queues;
+        if (currentQueues == null || currentQueues.length == 0) {
+            return null;
+        }
+        Assignment current = assignment;
+        if (current == null || current.queues != currentQueues) {
+            synchronized (this) {
+                current = assignment;
+                if (current == null || current.queues != currentQueues) {
+                    current = new Assignment(currentQueues);
+                    assignment = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 指定されたセッションIDに対するキューの番号を、ランデブーハッシュで決定する。
+     * <p>
+     * セッションIDとキューの番号の組み合わせのハッシュ値が最大となるキューを選択する。<br>
+     *
+     * @param key セッションID
+     * @param size キューの数
+     * @return キューの番号
+     */
+    protected int selectIndex(Object key, int size) {
+        final long keyHash = key == null ? 0 : key.hashCode() * 0x9E3779B97F4A7C15L;
+        int index = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            final long h = mix(keyHash + (i + 1) * 0xC2B2AE3D27D4EB4FL);
+            if (h > max) {
+                max = h;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * キューの配列に対するセッションの割り当て。
+     *
+     * @author M.Ishida
+     */
+    protected class Assignment {
+
+        protected final Queue[] queues;
+        protected final ConcurrentHashMap indexMap = new ConcurrentHashMap();
+        protected final AtomicInteger[] counts;
+
+        protected Assignment(Queue[] queues) {
+            this.queues = queues;
+            counts = new AtomicInteger[queues.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new AtomicInteger();
+            }
+        }
+
+        protected int getIndex(Object key) {
+            if (key == null) {
+                return 0;
+            }
+            Integer index = (Integer) indexMap.get(key);
+            if (index == null) {
+                Integer newIndex = new Integer(selectIndex(key, queues.length));
+                index = (Integer) indexMap.putIfAbsent(key, newIndex);
+                if (index == null) {
+                    index = newIndex;
+                    counts[index.intValue()].incrementAndGet();
+                }
+            }
+            return index.intValue();
+        }
+
+        /**
+         * 割り当てを登録せずに、キューの番号を取得する。
+         * <p>
+         * 割り当て済みの場合はその番号を、割り当てられていない場合はランデブーハッシュで決定した番号を返す。<br>
+         *
+         * @param key セッションID
+         * @return キューの番号
+         */
+        protected int findIndex(Object key) {
+            if (key == null) {
+                return 0;
+            }
+            final Integer index = (Integer) indexMap.get(key);
+            return index == null ? selectIndex(key, queues.length) : index.intValue();
+        }
+
+        protected void remove(Object key) {
+            Integer index = (Integer) indexMap.remove(key);
+            if (index != null) {
+                counts[index.intValue()].decrementAndGet();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -11,4 +11,17 @@ import jp.ossc.nimbus.service.queue.AbstractDistributedQueueSelectorServiceMBean
  */
 public interface SessionIdMessageSendDistributedQueueSelectorServiceMBean extends AbstractDistributedQueueSelectorServiceMBean {
 
+    /**
+     * キューに割り当てられているセッションの数を取得する。
+     *
+     * @return セッションの数
+     */
+    public int getSessionCount();
+
+    /**
+     * キュー毎に割り当てられているセッションの数を取得する。
+     *
+     * @return キュー毎のセッションの数
+     */
+    public int[] getQueueSessionCounts();
 }
@@ -0,0 +1,68 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+/**
+ * 送信が追いつかないセッションに対して、{@link AbstractPublishMessageHandlerFactoryService}のスロー・コンシューマ・ポリシーを適用した場合に、メッセージ送信例外ハンドラに通知される例外。
+ * <p>
+ * {@link AbstractPublishMessageHandlerFactoryServiceMBean#SLOW_CONSUMER_POLICY_DISCONNECT}でセッションを切断した場合に通知される。<br>
+ *
+ * @author M.Ishida
+ */
+public class SlowConsumerException extends SendQueueOverflowException {
+
+    private static final long serialVersionUID = 2385105436296171207L;
+
+    private String policy;
+
+    /**
+     * 指定されたポリシーとメッセージを持った例外インスタンスを生成する。
+     * <p>
+     *
+     * @param policy 適用したスロー・コンシューマ・ポリシー
+     * @param message メッセージ
+     */
+    public SlowConsumerException(String policy, String message) {
+        super(message);
+        this.policy = policy;
+    }
+
+    /**
+     * 適用したスロー・コンシューマ・ポリシーを取得する。
+     * <p>
+     *
+     * @return スロー・コンシューマ・ポリシー
+     */
+    public String getPolicy() {
+        return policy;
+    }
+}
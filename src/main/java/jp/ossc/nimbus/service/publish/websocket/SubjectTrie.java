@@ -0,0 +1,235 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ワイルドカードを含むサブジェクトのパターンを、区切り文字で分割したセグメント単位のトライ木で管理するクラス。
+ * <p>
+ * パターンのセグメントには、任意の1セグメントに一致する単一レベルワイルドカードと、末尾に指定して残りの0個以上のセグメントに一致する複数レベルワイルドカードを使用できる。<br>
+ * 照合の計算量は登録されたパターンの数ではなく、サブジェクトのセグメント数と一致するパターンの数に比例する。<br>
+ * 照合はロックなしで行い、登録と削除は排他する。<br>
+ *
+ * @author M.Ishida
+ */
+public class SubjectTrie {
+
+    private final String separator;
+    private final String singleLevelWildcard;
+    private final String multiLevelWildcard;
+    private final Node root = new Node(null, null);
+    private int patternCount;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param separator セグメントの区切り文字
+     * @param singleLevelWildcard 単一レベルワイルドカード
+     * @param multiLevelWildcard 複数レベルワイルドカード
+     */
+    public SubjectTrie(String separator, String singleLevelWildcard, String multiLevelWildcard) {
+        this.separator = separator;
+        this.singleLevelWildcard = singleLevelWildcard;
+        this.multiLevelWildcard = multiLevelWildcard;
+    }
+
+    /**
+     * 指定されたサブジェクトがワイルドカードを含むパターンかどうかを判定する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @return ワイルドカードを含む場合true
+     */
+    public boolean isPattern(String subject) {
+        final String[] segments = split(subject);
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].equals(singleLevelWildcard) || segments[i].equals(multiLevelWildcard)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * パターンに値を登録する。
+     * <p>
+     *
+     * @param pattern パターン
+     * @param value 値
+     * @return 新たに登録した場合true
+     */
+    public synchronized boolean add(String pattern, Object value) {
+        final String[] segments = split(pattern);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].equals(multiLevelWildcard)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("Multi level wildcard must be the last segment. pattern=" + pattern);
+                }
+                if (node.multiLevelValues.add(value)) {
+                    patternCount++;
+                    return true;
+                }
+                return false;
+            }
+            Node child = (Node) node.children.get(segments[i]);
+            if (child == null) {
+                child = new Node(node, segments[i]);
+                node.children.put(segments[i], child);
+            }
+            node = child;
+        }
+        if (node.values.add(value)) {
+            patternCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * パターンから値を削除する。
+     * <p>
+     *
+     * @param pattern パターン
+     * @param value 値
+     * @return 削除した場合true
+     */
+    public synchronized boolean remove(String pattern, Object value) {
+        final String[] segments = split(pattern);
+        Node node = root;
+        boolean isRemoved = false;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].equals(multiLevelWildcard) && i == segments.length - 1) {
+                isRemoved = node.multiLevelValues.remove(value);
+                break;
+            }
+            node = (Node) node.children.get(segments[i]);
+            if (node == null) {
+                return false;
+            }
+            if (i == segments.length - 1) {
+                isRemoved = node.values.remove(value);
+            }
+        }
+        if (!isRemoved) {
+            return false;
+        }
+        patternCount--;
+        while (node != root && node.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    /**
+     * 指定されたサブジェクトに一致するパターンに登録された値を取得する。
+     * <p>
+     *
+     * @param subject サブジェクト
+     * @param result 値を格納する集合
+     */
+    public void match(String subject, Set result) {
+        match(root, split(subject), 0, result);
+    }
+
+    private void match(Node node, String[] segments, int index, Set result) {
+        if (!node.multiLevelValues.isEmpty()) {
+            result.addAll(node.multiLevelValues);
+        }
+        if (index == segments.length) {
+            if (!node.values.isEmpty()) {
+                result.addAll(node.values);
+            }
+            return;
+        }
+        Node child = (Node) node.children.get(segments[index]);
+        if (child != null) {
+            match(child, segments, index + 1, result);
+        }
+        child = (Node) node.children.get(singleLevelWildcard);
+        if (child != null) {
+            match(child, segments, index + 1, result);
+        }
+    }
+
+    /**
+     * 登録されているパターンと値の組み合わせの数を取得する。
+     * <p>
+     *
+     * @return 組み合わせの数
+     */
+    public synchronized int size() {
+        return patternCount;
+    }
+
+    private String[] split(String subject) {
+        int count = 1;
+        int index = 0;
+        while ((index = subject.indexOf(separator, index)) != -1) {
+            count++;
+            index += separator.length();
+        }
+        final String[] segments = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            index = subject.indexOf(separator, start);
+            segments[i] = subject.substring(start, index);
+            start = index + separator.length();
+        }
+        segments[count - 1] = subject.substring(start);
+        return segments;
+    }
+
+    private static class Node {
+
+        private final Node parent;
+        private final String segment;
+        private final ConcurrentMap children = new ConcurrentHashMap();
+        private final Set values = Collections.newSetFromMap(new ConcurrentHashMap());
+        private final Set multiLevelValues = Collections.newSetFromMap(new ConcurrentHashMap());
+
+        private Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        private boolean isEmpty() {
+            return children.isEmpty() && values.isEmpty() && multiLevelValues.isEmpty();
+        }
+    }
+}
@@ -33,7 +33,11 @@ package jp.ossc.nimbus.service.websocket;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -46,12 +50,27 @@ import jp.ossc.nimbus.util.crypt.OverLimitExpiresException;
 /**
  * 認証サービス抽象クラス。
  * <p>
+ * ticketCacheTimeを指定した場合、ハンドシェイクで検証に成功したチケットを指定時間キャッシュし、同じチケットでの再接続時に復号を省略する。<br>
+ * キャッシュの有効期限は、チケットの発行時刻にoverLimitTimeを加えた時刻を超えない。発行時刻を持たないチケットはキャッシュしない。<br>
+ * また、rejectedTicketCacheTimeを指定した場合、復号に失敗したチケットを指定時間キャッシュし、即座に拒否する。<br>
+ * キャッシュが上限に達した場合は、一部のエントリを抽出して有効期限切れのエントリ、なければ最も有効期限の近いエントリを削除する。<br>
+ * compactTicketがtrueの場合、暗号化したパラメータMapの代わりに{@link CompactTicketCodec}によるHMAC署名付きのコンパクトなチケットを使用する。<br>
  *
  * @author M.Ishida
  */
 public abstract class AbstractAuthenticatorService extends ServiceBase implements Authenticator, AbstractAuthenticatorServiceMBean {
 
     private static final long serialVersionUID = -1385665087771556138L;
+
+    /**
+     * 暗号化したパラメータMapに、チケットの発行時刻を格納するキー。
+     */
+    protected static final String TICKET_ISSUE_TIME_KEY = "wsTicketIssueTime";
+
+    /**
+     * キャッシュが上限に達した際に、削除するエントリを探すために抽出するエントリ数。
+     */
+    protected static final int CACHE_EVICTION_SAMPLE_SIZE = 16;
     
     protected String idKey = DEFAULT_ID_KEY;
     protected String ticketKey = DEFAULT_TICKET_KEY;
@@ -64,7 +83,20 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
     protected String hashKey = DEFAULT_HASHKEY;
     protected long overLimitTime = -1;
 
+    protected boolean isCompactTicket;
+    protected String compactTicketMacAlgorithm = DEFAULT_COMPACT_TICKET_MAC_ALGORITHM;
+    protected byte[] compactTicketKey;
+    protected long ticketCacheTime = -1;
+    protected int maxTicketCacheSize = DEFAULT_MAX_TICKET_CACHE_SIZE;
+    protected long rejectedTicketCacheTime = -1;
+    protected int maxRejectedTicketCacheSize = DEFAULT_MAX_REJECTED_TICKET_CACHE_SIZE;
+
     protected CryptParameters wsCipher;
+    protected CompactTicketCodec compactTicketCodec;
+    protected ConcurrentMap ticketCache;
+    protected ConcurrentMap rejectedTicketCache;
+    protected final AtomicLong ticketCacheHitCount = new AtomicLong();
+    protected final AtomicLong rejectedTicketCacheHitCount = new AtomicLong();
 
     public String getIdKey() {
         return idKey;
@@ -138,8 +170,104 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
         overLimitTime = time;
     }
 
+    public boolean isCompactTicket() {
+        return isCompactTicket;
+    }
+
+    public void setCompactTicket(boolean isCompact) {
+        isCompactTicket = isCompact;
+    }
+
+    public String getCompactTicketMacAlgorithm() {
+        return compactTicketMacAlgorithm;
+    }
+
+    public void setCompactTicketMacAlgorithm(String algorithm) {
+        compactTicketMacAlgorithm = algorithm;
+    }
+
+    public byte[] getCompactTicketKey() {
+        return compactTicketKey;
+    }
+
+    public void setCompactTicketKey(byte[] keyBytes) {
+        compactTicketKey = keyBytes;
+    }
+
+    public long getTicketCacheTime() {
+        return ticketCacheTime;
+    }
+
+    public void setTicketCacheTime(long time) {
+        ticketCacheTime = time;
+    }
+
+    public int getMaxTicketCacheSize() {
+        return maxTicketCacheSize;
+    }
+
+    public void setMaxTicketCacheSize(int size) {
+        maxTicketCacheSize = size;
+    }
+
+    public long getRejectedTicketCacheTime() {
+        return rejectedTicketCacheTime;
+    }
+
+    public void setRejectedTicketCacheTime(long time) {
+        rejectedTicketCacheTime = time;
+    }
+
+    public int getMaxRejectedTicketCacheSize() {
+        return maxRejectedTicketCacheSize;
+    }
+
+    public void setMaxRejectedTicketCacheSize(int size) {
+        maxRejectedTicketCacheSize = size;
+    }
+
+    public int getTicketCacheSize() {
+        return ticketCache == null ? 0 : ticketCache.size();
+    }
+
+    public int getRejectedTicketCacheSize() {
+        return rejectedTicketCache == null ? 0 : rejectedTicketCache.size();
+    }
+
+    public long getTicketCacheHitCount() {
+        return ticketCacheHitCount.get();
+    }
+
+    public long getRejectedTicketCacheHitCount() {
+        return rejectedTicketCacheHitCount.get();
+    }
+
+    public void clearTicketCache() {
+        if (ticketCache != null) {
+            ticketCache.clear();
+        }
+        if (rejectedTicketCache != null) {
+            rejectedTicketCache.clear();
+        }
+    }
+
     public void startService() throws Exception {
         wsCipher = new CryptParameters(key, algorithm, transformation, ivLength, provider, hashKey);
+        if (isCompactTicket) {
+            compactTicketCodec = new CompactTicketCodec(compactTicketKey == null ? key : compactTicketKey, compactTicketMacAlgorithm);
+        }
+        if (ticketCacheTime > 0 && maxTicketCacheSize > 0) {
+            ticketCache = new ConcurrentHashMap();
+        }
+        if (rejectedTicketCacheTime > 0 && maxRejectedTicketCacheSize > 0) {
+            rejectedTicketCache = new ConcurrentHashMap();
+        }
+    }
+
+    public void stopService() throws Exception {
+        compactTicketCodec = null;
+        ticketCache = null;
+        rejectedTicketCache = null;
     }
 
     public AuthResult login(HttpServletRequest req, HttpServletResponse res) throws AuthenticateException {
@@ -157,11 +285,17 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
         }
         String wsTicket = null;
         boolean loginResult = false;
+        final CompactTicketCodec codec = compactTicketCodec;
         try {
-            Map map = wsCipher.createParametersMap();
-            map.put(idKey, id);
-            map.put(ticketKey, ticket);
-            wsTicket = wsCipher.encrypt(null, map);
+            if (codec != null) {
+                wsTicket = codec.encode(id, overLimitTime == -1 ? Long.MAX_VALUE : System.currentTimeMillis() + overLimitTime);
+            } else {
+                Map map = wsCipher.createParametersMap();
+                map.put(idKey, id);
+                map.put(ticketKey, ticket);
+                map.put(TICKET_ISSUE_TIME_KEY, Long.toString(System.currentTimeMillis()));
+                wsTicket = wsCipher.encrypt(null, map);
+            }
             loginResult = login(id, ticket, wsTicket);
         } catch(Exception e) {
             throw new AuthenticateException(e);
@@ -169,10 +303,12 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
         if (!loginResult) {
             throw new AuthenticateException("Could not authenticated : " + id);
         }
-        try {
-            wsTicket = URLEncoder.encode(wsTicket, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new AuthenticateException(e);
+        if (codec == null) {
+            try {
+                wsTicket = URLEncoder.encode(wsTicket, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AuthenticateException(e);
+            }
         }
         result.setTicket(wsTicket);
         result.setResult(true);
@@ -187,13 +323,49 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
             if (wsTicket == null) {
                 throw new AuthenticateException("ticket is null");
             }
-            Map map = null;
-            if (overLimitTime != -1) {
-                map = wsCipher.decrypt(null, wsTicket, overLimitTime);
+            final long now = System.currentTimeMillis();
+            final CompactTicketCodec codec = compactTicketCodec;
+            if (codec != null) {
+                codec.verify(id, wsTicket, now);
+                return true;
+            }
+            String mapId = null;
+            final TicketCacheEntry cached = getCacheEntry(ticketCache, wsTicket, now);
+            if (cached != null) {
+                ticketCacheHitCount.incrementAndGet();
+                mapId = cached.id;
             } else {
-                map = wsCipher.decrypt(null, wsTicket);
+                if (getCacheEntry(rejectedTicketCache, wsTicket, now) != null) {
+                    rejectedTicketCacheHitCount.incrementAndGet();
+                    throw new AuthenticateException("Handshake fail. Ticket is rejected recently. id:" + id + " ticket:" + wsTicket);
+                }
+                Map map = null;
+                try {
+                    if (overLimitTime != -1) {
+                        map = wsCipher.decrypt(null, wsTicket, overLimitTime);
+                    } else {
+                        map = wsCipher.decrypt(null, wsTicket);
+                    }
+                } catch (OverLimitExpiresException e) {
+                    putCacheEntry(rejectedTicketCache, maxRejectedTicketCacheSize, wsTicket, null, now + rejectedTicketCacheTime, now);
+                    throw e;
+                } catch (FalsifiedParameterException e) {
+                    putCacheEntry(rejectedTicketCache, maxRejectedTicketCacheSize, wsTicket, null, now + rejectedTicketCacheTime, now);
+                    throw e;
+                }
+                mapId = (String) map.get(idKey);
+                if (mapId != null && ticketCache != null) {
+                    long expires = now + ticketCacheTime;
+                    if (overLimitTime != -1) {
+                        // チケット自体の有効期限を超えてキャッシュしない
+                        final long issueTime = getTicketIssueTime(map);
+                        expires = issueTime < 0 ? now : Math.min(expires, issueTime + overLimitTime);
+                    }
+                    if (expires > now) {
+                        putCacheEntry(ticketCache, maxTicketCacheSize, wsTicket, mapId, expires, now);
+                    }
+                }
             }
-            String mapId = (String) map.get(idKey);
             if (!id.equals(mapId)) {
                 throw new AuthenticateException("Handshake fail. Ticket is incorrect value. id:" + id + " ticket:" + wsTicket);
             }
@@ -205,7 +377,106 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
         return true;
     }
 
+    /**
+     * 復号したパラメータMapから、チケットの発行時刻を取得する。
+     * <p>
+     *
+     * @param map 復号したパラメータMap
+     * @return 発行時刻。発行時刻を持たない場合は-1
+     */
+    protected long getTicketIssueTime(Map map) {
+        final Object time = map.get(TICKET_ISSUE_TIME_KEY);
+        if (time == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(time.toString());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 指定されたキャッシュから有効期限内のエントリを取得する。
+     * <p>
+     * 有効期限切れのエントリは削除する。<br>
+     *
+     * @param cache キャッシュ
+     * @param wsTicket WebSocket用チケット
+     * @param now 現在時刻
+     * @return キャッシュエントリ。存在しない場合や有効期限切れの場合はnull
+     */
+    protected TicketCacheEntry getCacheEntry(ConcurrentMap cache, String wsTicket, long now) {
+        if (cache == null) {
+            return null;
+        }
+        TicketCacheEntry entry = (TicketCacheEntry) cache.get(wsTicket);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= now) {
+            cache.remove(wsTicket, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 指定されたキャッシュにエントリを登録する。
+     * <p>
+     * キャッシュが上限に達している場合は{@link #evictCacheEntry(ConcurrentMap, long)}でエントリを削除してから登録する。<br>
+     *
+     * @param cache キャッシュ
+     * @param maxSize キャッシュの上限サイズ
+     * @param wsTicket WebSocket用チケット
+     * @param id ID
+     * @param expires 有効期限
+     * @param now 現在時刻
+     */
+    protected void putCacheEntry(ConcurrentMap cache, int maxSize, String wsTicket, String id, long expires, long now) {
+        if (cache == null) {
+            return;
+        }
+        if (cache.size() >= maxSize) {
+            evictCacheEntry(cache, now);
+        }
+        cache.put(wsTicket, new TicketCacheEntry(id, expires));
+    }
+
+    /**
+     * 指定されたキャッシュからエントリを削除する。
+     * <p>
+     * キャッシュ全体を走査しないよう、{@link #CACHE_EVICTION_SAMPLE_SIZE}件のエントリのみを抽出し、
+     * 有効期限切れのエントリを削除する。有効期限切れのエントリがない場合は、抽出した中で最も有効期限の近いエントリを削除する。<br>
+     *
+     * @param cache キャッシュ
+     * @param now 現在時刻
+     */
+    protected void evictCacheEntry(ConcurrentMap cache, long now) {
+        Object victimKey = null;
+        TicketCacheEntry victim = null;
+        boolean isRemoved = false;
+        final Iterator itr = cache.entrySet().iterator();
+        for (int i = 0; i < CACHE_EVICTION_SAMPLE_SIZE && itr.hasNext(); i++) {
+            final Map.Entry mapEntry = (Map.Entry) itr.next();
+            final TicketCacheEntry entry = (TicketCacheEntry) mapEntry.getValue();
+            if (entry.expires <= now) {
+                isRemoved |= cache.remove(mapEntry.getKey(), entry);
+            } else if (victim == null || entry.expires < victim.expires) {
+                victimKey = mapEntry.getKey();
+                victim = entry;
+            }
+        }
+        if (!isRemoved && victim != null) {
+            cache.remove(victimKey, victim);
+        }
+    }
+
     public void logout(String id, String wsTicket, boolean isForce) throws AuthenticateException {
+        final ConcurrentMap cache = ticketCache;
+        if (cache != null && wsTicket != null) {
+            cache.remove(wsTicket);
+        }
         try {
             logout(id,wsTicket);
         } catch (Exception e) {
@@ -217,4 +488,19 @@ public abstract class AbstractAuthenticatorService extends ServiceBase implement
     
     protected abstract void logout(String id, String wsTicket) throws Exception;
 
+    /**
+     * チケット検証結果のキャッシュエントリ。
+     * <p>
+     */
+    protected static class TicketCacheEntry {
+
+        protected final String id;
+        protected final long expires;
+
+        public TicketCacheEntry(String id, long expires) {
+            this.id = id;
+            this.expires = expires;
+        }
+    }
+
 }
@@ -50,6 +50,9 @@ public interface AbstractAuthenticatorServiceMBean extends ServiceBaseMBean {
     public static final String DEFAULT_TRANSFORMATION = "AES/CBC/PKCS5Padding";
     public static final int DEFAULT_IVLENGTH = 16;
     public static final String DEFAULT_HASHKEY = "DefaultHashKey99";
+    public static final String DEFAULT_COMPACT_TICKET_MAC_ALGORITHM = "HmacSHA256";
+    public static final int DEFAULT_MAX_TICKET_CACHE_SIZE = 10000;
+    public static final int DEFAULT_MAX_REJECTED_TICKET_CACHE_SIZE = 1000;
 
     public String getIdKey();
 
@@ -87,4 +90,42 @@ public interface AbstractAuthenticatorServiceMBean extends ServiceBaseMBean {
 
     public void setOverLimitTime(long time);
 
+    public boolean isCompactTicket();
+
+    public void setCompactTicket(boolean isCompact);
+
+    public String getCompactTicketMacAlgorithm();
+
+    public void setCompactTicketMacAlgorithm(String algorithm);
+
+    public byte[] getCompactTicketKey();
+
+    public void setCompactTicketKey(byte[] keyBytes);
+
+    public long getTicketCacheTime();
+
+    public void setTicketCacheTime(long time);
+
+    public int getMaxTicketCacheSize();
+
+    public void setMaxTicketCacheSize(int size);
+
+    public long getRejectedTicketCacheTime();
+
+    public void setRejectedTicketCacheTime(long time);
+
+    public int getMaxRejectedTicketCacheSize();
+
+    public void setMaxRejectedTicketCacheSize(int size);
+
+    public int getTicketCacheSize();
+
+    public int getRejectedTicketCacheSize();
+
+    public long getTicketCacheHitCount();
+
+    public long getRejectedTicketCacheHitCount();
+
+    public void clearTicketCache();
+
 }
@@ -86,6 +86,8 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
     protected Sequence sequence;
 
     protected String messageEncoding = DEFAULT_ENCODE;
+    protected Charset messageCharset;
+    protected byte[] clientPingMessageBytes;
 
     public ServiceName getWebSocketAccessJournalServiceName() {
         return webSocketAccessJournalServiceName;
@@ -228,6 +230,12 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
         if (!Charset.isSupported(messageEncoding)) {
             throw new IllegalArgumentException(messageEncoding + " is not supported .");
         }
+        messageCharset = Charset.forName(messageEncoding);
+        if (clientPingMessage != null && returnPongMessage != null) {
+            clientPingMessageBytes = clientPingMessage.getBytes(messageCharset);
+        } else {
+            clientPingMessageBytes = null;
+        }
         if (webSocketAccessJournalServiceName != null) {
             accessJournal = (Journal) ServiceManagerFactory.getServiceObject(webSocketAccessJournalServiceName);
             if (editorFinderServiceName != null) {
@@ -302,10 +310,8 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
                 accessJournal.addInfo(portJournalKey, prop.getPort());
             }
             try {
-                byte[] byteArray = new byte[msg.remaining()];
-                msg.get(byteArray);
-                message = new String(byteArray, messageEncoding);
-                if (clientPingMessage != null && returnPongMessage != null && clientPingMessage.equals(message)) {
+                if (isClientPingMessage(msg)) {
+                    message = clientPingMessage;
                     try {
                         session.getBasicRemote().sendBinary(
                                 ByteBuffer.wrap(returnPongMessage.getBytes(messageEncoding)));
@@ -317,7 +323,10 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
                     }
                     return;
                 }
-                onMessageProcess(message);
+                if (accessJournal != null) {
+                    message = new String(toByteArray(msg.duplicate()), messageEncoding);
+                }
+                onMessageProcess(msg);
             } catch(UnsupportedEncodingException e){
                 // Nop startService でチェックしているので発生しない
             } catch (Exception e) {
@@ -333,6 +342,26 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
             }
         }
 
+        private boolean isClientPingMessage(ByteBuffer msg) {
+            final byte[] ping = clientPingMessageBytes;
+            if (ping == null || msg.remaining() != ping.length) {
+                return false;
+            }
+            final int position = msg.position();
+            for (int i = 0; i < ping.length; i++) {
+                if (msg.get(position + i) != ping[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] toByteArray(ByteBuffer msg) {
+            byte[] byteArray = new byte[msg.remaining()];
+            msg.get(byteArray);
+            return byteArray;
+        }
+
         /**
          * セッションオープン時のイベント処理。
          * <p>
@@ -367,6 +396,18 @@ public abstract class AbstractMessageHandlerFactoryService extends ServiceFactor
          * @param message メセージ文字列
          */
         protected abstract void onMessageProcess(String message) throws Exception;
+
+        /**
+         * クライアントからのメッセージ受信時のイベント処理。
+         * <p>
+         * 受信したバイト配列を文字列に変換し、{@link #onMessageProcess(String)}を呼び出す。<br>
+         * 文字列に変換せずに処理する場合は、オーバーライドする。<br>
+         *
+         * @param msg 受信したメッセージ
+         */
+        protected void onMessageProcess(ByteBuffer msg) throws Exception {
+            onMessageProcess(new String(toByteArray(msg), messageEncoding));
+        }
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.websocket;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC署名付きのコンパクトなWebSocket用チケットを生成、検証するクラス。
+ * <p>
+ * チケットは以下の固定レイアウトのバイナリをbase64url（パディングなし）でエンコードした文字列である。<br>
+ * <pre>
+ * [バージョン(1byte)][有効期限(8byte)][ナンス(8byte)][IDのバイト長(2byte)][ID(UTF-8)][HMAC]
+ * </pre>
+ * 検証時はMapを生成せず、バイト列のまま署名、有効期限、IDを照合する。<br>
+ *
+ * @author M.Ishida
+ */
+public class CompactTicketCodec {
+
+    /**
+     * チケットのフォーマットバージョン。
+     * <p>
+     */
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_LENGTH = 1 + 8 + 8 + 2;
+
+    private static final char[] ENCODE_TABLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = -1;
+        }
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+        }
+    }
+
+    private final SecretKeySpec keySpec;
+    private final String algorithm;
+    private final int macLength;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal macs = new ThreadLocal() {
+        protected Object initialValue() {
+            try {
+                return createMac();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     *
+     * @param key 署名鍵
+     * @param algorithm HMACアルゴリズム
+     * @exception GeneralSecurityException 指定されたアルゴリズムが利用できない場合
+     */
+    public CompactTicketCodec(byte[] key, String algorithm) throws GeneralSecurityException {
+        this.algorithm = algorithm;
+        keySpec = new SecretKeySpec(key, algorithm);
+        macLength = createMac().getMacLength();
+    }
+
+    private Mac createMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(keySpec);
+        return mac;
+    }
+
+    /**
+     * チケットを生成する。
+     * <p>
+     *
+     * @param id ID
+     * @param expires 有効期限（ミリ秒）
+     * @return チケット
+     */
+    public String encode(String id, long expires) {
+        byte[] idBytes = toBytes(id);
+        if (idBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("id is too long. length=" + idBytes.length);
+        }
+        final int bodyLength = HEADER_LENGTH + idBytes.length;
+        byte[] buf = new byte[bodyLength + macLength];
+        int pos = 0;
+        buf[pos++] = VERSION;
+        pos = putLong(buf, pos, expires);
+        pos = putLong(buf, pos, random.nextLong());
+        buf[pos++] = (byte) (idBytes.length >>> 8);
+        buf[pos++] = (byte) idBytes.length;
+        System.arraycopy(idBytes, 0, buf, pos, idBytes.length);
+        Mac mac = (Mac) macs.get();
+        mac.update(buf, 0, bodyLength);
+        try {
+            mac.doFinal(buf, bodyLength);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return encodeBase64Url(buf);
+    }
+
+    /**
+     * チケットを検証する。
+     * <p>
+     *
+     * @param id ID
+     * @param ticket チケット
+     * @param now 現在時刻（ミリ秒）
+     * @exception AuthenticateException チケットが不正、有効期限切れ、またはIDが一致しない場合
+     */
+    public void verify(String id, String ticket, long now) throws AuthenticateException {
+        byte[] buf = decodeBase64Url(ticket);
+        if (buf == null || buf.length < HEADER_LENGTH + macLength || buf[0] != VERSION) {
+            throw new AuthenticateException("Handshake fail. Ticket is illegal format. id:" + id + " ticket:" + ticket);
+        }
+        final int idLength = ((buf[HEADER_LENGTH - 2] & 0xFF) << 8) | (buf[HEADER_LENGTH - 1] & 0xFF);
+        final int bodyLength = HEADER_LENGTH + idLength;
+        if (buf.length != bodyLength + macLength) {
+            throw new AuthenticateException("Handshake fail. Ticket is illegal format. id:" + id + " ticket:" + ticket);
+        }
+        Mac mac = (Mac) macs.get();
+        mac.update(buf, 0, bodyLength);
+        byte[] sign = mac.doFinal();
+        int diff = 0;
+        for (int i = 0; i < macLength; i++) {
+            diff |= sign[i] ^ buf[bodyLength + i];
+        }
+        if (diff != 0) {
+            throw new AuthenticateException("Handshake fail. Ticket is falsified. id:" + id + " ticket:" + ticket);
+        }
+        if (getLong(buf, 1) < now) {
+            throw new AuthenticateException("Handshake fail. Ticket is expired. id:" + id + " ticket:" + ticket);
+        }
+        byte[] idBytes = toBytes(id);
+        if (idBytes.length != idLength) {
+            throw new AuthenticateException("Handshake fail. Ticket is incorrect value. id:" + id + " ticket:" + ticket);
+        }
+        for (int i = 0; i < idLength; i++) {
+            if (idBytes[i] != buf[HEADER_LENGTH + i]) {
+                throw new AuthenticateException("Handshake fail. Ticket is incorrect value. id:" + id + " ticket:" + ticket);
+            }
+        }
+    }
+
+    private static byte[] toBytes(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int putLong(byte[] buf, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[pos++] = (byte) (value >>> (i * 8));
+        }
+        return pos;
+    }
+
+    private static long getLong(byte[] buf, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String encodeBase64Url(byte[] bytes) {
+        final char[] chars = new char[(bytes.length * 4 + 2) / 3];
+        int pos = 0;
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int bits = ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8) | (bytes[i + 2] & 0xFF);
+            chars[pos++] = ENCODE_TABLE[(bits >>> 18) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[(bits >>> 12) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[(bits >>> 6) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[bits & 0x3F];
+        }
+        final int remain = bytes.length - i;
+        if (remain == 1) {
+            int bits = (bytes[i] & 0xFF) << 16;
+            chars[pos++] = ENCODE_TABLE[(bits >>> 18) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[(bits >>> 12) & 0x3F];
+        } else if (remain == 2) {
+            int bits = ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8);
+            chars[pos++] = ENCODE_TABLE[(bits >>> 18) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[(bits >>> 12) & 0x3F];
+            chars[pos++] = ENCODE_TABLE[(bits >>> 6) & 0x3F];
+        }
+        return new String(chars, 0, pos);
+    }
+
+    private static byte[] decodeBase64Url(String str) {
+        final int length = str.length();
+        if (length % 4 == 1) {
+            return null;
+        }
+        final byte[] bytes = new byte[length * 3 / 4];
+        int bits = 0;
+        int bitCount = 0;
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= DECODE_TABLE.length || DECODE_TABLE[c] < 0) {
+                return null;
+            }
+            bits = (bits << 6) | DECODE_TABLE[c];
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                bytes[pos++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return bytes;
+    }
+}
@@ -50,6 +50,7 @@ public class CustomCloseReason extends CloseReason {
         MAX_CLIENT_SIZE_OVER(4000), // 最大クライアント数オーバー
         HANDSHAKE_AUTH_FAILED(4001), // ハンドシェイク認証エラー
         SERVER_ACCESS_DENIED(4002), // サーバアクセス拒否
+        SLOW_CONSUMER(4003), // 送信遅延による切断
         SYSTEM_FORCED_DISCONNECTION(4900),// システム強制切断
         SERVER_SYSTEM_ERROR(4999); //サーバ内システムエラー 
 
@@ -67,6 +68,8 @@ public class CustomCloseReason extends CloseReason {
                 return CloseCodes.HANDSHAKE_AUTH_FAILED;
             case 4002:
                 return CloseCodes.SERVER_ACCESS_DENIED;
+            case 4003:
+                return CloseCodes.SLOW_CONSUMER;
             case 4900:
                 return CloseCodes.SYSTEM_FORCED_DISCONNECTION;
             case 4999:
@@ -32,12 +32,21 @@
 package jp.ossc.nimbus.service.websocket;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import jp.ossc.nimbus.core.ServiceManagerFactory;
 import jp.ossc.nimbus.core.ServiceName;
+import jp.ossc.nimbus.daemon.Daemon;
+import jp.ossc.nimbus.daemon.DaemonControl;
+import jp.ossc.nimbus.daemon.DaemonRunnable;
 import jp.ossc.nimbus.service.connection.ConnectionFactory;
 import jp.ossc.nimbus.service.connection.PersistentManager;
 
@@ -45,6 +54,8 @@ import jp.ossc.nimbus.service.connection.PersistentManager;
  * DBを使用した認証サービス。<br>
  * 認証時にloginSelectSqlで指定したSQLで検索を実施し、結果レコード数が１件であれば認証OK<br>
  * ログアウト時にlogoutUpdateSqlで指定したSQLで更新を行う<br>
+ * logoutWriteBehindがtrueの場合、ログアウトの更新はキューに溜め、件数または時間間隔でまとめてPersistentManagerにList形式で渡して一括更新する<br>
+ * キューはlogoutQueueCapacityで上限を持ち、一杯の場合はそのログアウトのみ同期で更新する<br>
  * <p>
  *
  * @author M.Ishida
@@ -65,6 +76,26 @@ public class DatabaseAuthenticatorService extends AbstractAuthenticatorService i
     protected String loginUpdateSql;
     protected String logoutUpdateSql;
     
+    protected boolean isLogoutWriteBehind;
+    protected int logoutBatchSize = DEFAULT_LOGOUT_BATCH_SIZE;
+    protected long logoutFlushInterval = DEFAULT_LOGOUT_FLUSH_INTERVAL;
+    protected int logoutQueueCapacity = DEFAULT_LOGOUT_QUEUE_CAPACITY;
+    protected String logoutFlushErrorMessageId = DEFAULT_LOGOUT_FLUSH_ERROR_MESSAGE_ID;
+    
+    protected volatile BlockingDeque logoutQueue;
+    protected final ReadWriteLock logoutQueueLock = new ReentrantReadWriteLock();
+    protected final Object logoutSignal = new Object();
+    protected final Object logoutFlushLock = new Object();
+    protected List inflightLogout;
+    protected Daemon logoutDaemon;
+    protected final AtomicLong logoutQueueOverflowCount = new AtomicLong();
+    protected final AtomicLong logoutFlushErrorCount = new AtomicLong();
+    protected final AtomicLong logoutLostCount = new AtomicLong();
+    protected volatile long logoutFlushCount;
+    protected volatile long lastLogoutFlushTime;
+    protected volatile long maxLogoutFlushTime;
+    protected volatile long totalLogoutFlushTime;
+    
     public ServiceName getConnectionFactoryServiceName() {
         return connectionFactoryServiceName;
     }
@@ -121,6 +152,80 @@ public class DatabaseAuthenticatorService extends AbstractAuthenticatorService i
         logoutUpdateSql = sql;
     }
 
+    public boolean isLogoutWriteBehind() {
+        return isLogoutWriteBehind;
+    }
+
+    public void setLogoutWriteBehind(boolean isWriteBehind) {
+        isLogoutWriteBehind = isWriteBehind;
+    }
+
+    public int getLogoutBatchSize() {
+        return logoutBatchSize;
+    }
+
+    public void setLogoutBatchSize(int size) {
+        logoutBatchSize = size;
+    }
+
+    public long getLogoutFlushInterval() {
+        return logoutFlushInterval;
+    }
+
+    public void setLogoutFlushInterval(long interval) {
+        logoutFlushInterval = interval;
+    }
+
+    public int getLogoutQueueCapacity() {
+        return logoutQueueCapacity;
+    }
+
+    public void setLogoutQueueCapacity(int capacity) {
+        logoutQueueCapacity = capacity;
+    }
+
+    public long getLogoutQueueOverflowCount() {
+        return logoutQueueOverflowCount.get();
+    }
+
+    public long getLogoutFlushErrorCount() {
+        return logoutFlushErrorCount.get();
+    }
+
+    public long getLogoutLostCount() {
+        return logoutLostCount.get();
+    }
+
+    public String getLogoutFlushErrorMessageId() {
+        return logoutFlushErrorMessageId;
+    }
+
+    public void setLogoutFlushErrorMessageId(String id) {
+        logoutFlushErrorMessageId = id;
+    }
+
+    public int getLogoutQueueSize() {
+        final BlockingDeque queue = logoutQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getLogoutFlushCount() {
+        return logoutFlushCount;
+    }
+
+    public long getLastLogoutFlushTime() {
+        return lastLogoutFlushTime;
+    }
+
+    public long getMaxLogoutFlushTime() {
+        return maxLogoutFlushTime;
+    }
+
+    public long getAverageLogoutFlushTime() {
+        long count = logoutFlushCount;
+        return count == 0 ? 0 : totalLogoutFlushTime / count;
+    }
+
     public String getWsTicketKey() {
         return wsTicketKey;
     }
@@ -150,6 +255,56 @@ public class DatabaseAuthenticatorService extends AbstractAuthenticatorService i
         if (persistentManager == null) {
             throw new IllegalArgumentException("PersistentManager is null.");
         }
+        if (isLogoutWriteBehind && logoutUpdateSql != null) {
+            if (logoutBatchSize <= 0) {
+                throw new IllegalArgumentException("LogoutBatchSize must be greater than 0.");
+            }
+            if (logoutQueueCapacity <= 0) {
+                throw new IllegalArgumentException("LogoutQueueCapacity must be greater than 0.");
+            }
+            logoutQueue = new LinkedBlockingDeque(logoutQueueCapacity);
+            logoutDaemon = new Daemon(new LogoutWriter(logoutQueue));
+            logoutDaemon.setName("Nimbus WebSocket LogoutWriteBehindDaemon " + getServiceNameObject());
+            logoutDaemon.start();
+        }
+    }
+
+    /**
+     * サービスの停止処理を行う。
+     * <p>
+     * ログアウトの受付をキューから同期更新に切り替えた後、書き込みスレッドを停止し、
+     * 書き込みスレッドが取り出し済みの更新とキューに溜まっているログアウトの更新を全て反映してから停止する。<br>
+     *
+     * @exception Exception サービスの停止に失敗した場合
+     */
+    public void stopService() throws Exception {
+        if (logoutQueue != null) {
+            logoutQueueLock.writeLock().lock();
+            final BlockingDeque queue = logoutQueue;
+            try {
+                logoutQueue = null;
+            } finally {
+                logoutQueueLock.writeLock().unlock();
+            }
+            if (logoutDaemon != null) {
+                logoutDaemon.stop();
+                logoutDaemon = null;
+            }
+            synchronized (logoutFlushLock) {
+                List list = inflightLogout;
+                inflightLogout = null;
+                if (list == null) {
+                    list = new ArrayList();
+                }
+                do {
+                    if (!flushLogout(list)) {
+                        logoutLostCount.addAndGet(list.size());
+                    }
+                    list.clear();
+                } while (queue.drainTo(list, logoutBatchSize) > 0);
+            }
+        }
+        super.stopService();
     }
     
     
@@ -184,11 +339,30 @@ public class DatabaseAuthenticatorService extends AbstractAuthenticatorService i
         if(logoutUpdateSql == null) {
             return;
         }
+        Map param = new HashMap();
+        param.put(idKey, id);
+        param.put(wsTicketKey, wsTicket);
+        if(logoutQueue != null) {
+            // 停止処理でキューを切り離した後に投入されないよう、投入中は切り離しを待たせる
+            logoutQueueLock.readLock().lock();
+            try {
+                final BlockingDeque queue = logoutQueue;
+                if(queue != null && queue.offer(param)) {
+                    if(queue.size() >= logoutBatchSize) {
+                        synchronized(logoutSignal) {
+                            logoutSignal.notifyAll();
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                logoutQueueLock.readLock().unlock();
+            }
+            // キューが一杯の場合は同期で更新する
+            logoutQueueOverflowCount.incrementAndGet();
+        }
         Connection con = connectionFactory.getConnection();
         try {
-            Map param = new HashMap();
-            param.put(idKey, id);
-            param.put(wsTicketKey, wsTicket);
             persistentManager.persistQuery(con, logoutUpdateSql, param);
         } finally {
             if(con != null) {
@@ -200,5 +374,151 @@ public class DatabaseAuthenticatorService extends AbstractAuthenticatorService i
         
     }
 
+    /**
+     * キューに溜まったログアウトの更新をまとめて反映する。
+     * <p>
+     * 更新パラメータのListをPersistentManagerに渡し、一括で更新する。<br>
+     *
+     * @param params ログアウトの更新パラメータのList
+     * @return 更新に成功した場合、または更新するパラメータがない場合true
+     */
+    protected boolean flushLogout(List params) {
+        if(params.isEmpty()) {
+            return true;
+        }
+        final long start = System.currentTimeMillis();
+        Connection con = null;
+        try {
+            con = connectionFactory.getConnection();
+            persistentManager.persistQuery(con, logoutUpdateSql, params);
+            return true;
+        } catch(Exception e) {
+            if(logoutFlushErrorMessageId != null) {
+                getLogger().write(logoutFlushErrorMessageId, new Object[] {Integer.toString(params.size())}, e);
+            }
+            return false;
+        } finally {
+            if(con != null) {
+                try {
+                    con.close();
+                } catch(Exception e) {}
+            }
+            final long time = System.currentTimeMillis() - start;
+            lastLogoutFlushTime = time;
+            if(time > maxLogoutFlushTime) {
+                maxLogoutFlushTime = time;
+            }
+            totalLogoutFlushTime += time;
+            logoutFlushCount++;
+        }
+    }
+
+    /**
+     * 反映に失敗したログアウトの更新を、次回反映するためにキューの先頭に戻す。
+     * <p>
+     * キューに戻せなかった更新は破棄する。<br>
+     *
+     * @param queue ログアウトの更新を溜めるキュー
+     * @param params 反映に失敗したログアウトの更新パラメータのList
+     */
+    protected void requeueLogout(BlockingDeque queue, List params) {
+        int lost = 0;
+        for(int i = params.size(); --i >= 0;) {
+            if(!queue.offerFirst(params.get(i))) {
+                lost++;
+            }
+        }
+        logoutFlushErrorCount.incrementAndGet();
+        if(lost != 0) {
+            logoutLostCount.addAndGet(lost);
+            if(logoutFlushErrorMessageId != null) {
+                getLogger().write(logoutFlushErrorMessageId, new Object[] {Integer.toString(lost)});
+            }
+        }
+    }
+
+    /**
+     * キューに溜まったログアウトの更新を、件数または時間間隔でまとめて反映するDaemonRunnableクラス。
+     * <p>
+     * キューから取り出すのは待機が終わった後のみとし、取り出した更新は反映するまで{@link #inflightLogout}で保持する。<br>
+     * そのため、停止時に待機中のスレッドが割り込まれても、取り出し済みの更新は停止処理で反映される。<br>
+     * 反映に失敗した場合は、更新をキューの先頭に戻し、反映間隔だけ待ってから再度反映する。<br>
+     */
+    protected class LogoutWriter implements DaemonRunnable {
+
+        protected final BlockingDeque queue;
+        protected boolean isFailed;
+
+        public LogoutWriter(BlockingDeque queue) {
+            this.queue = queue;
+        }
+
+        public boolean onStart() {
+            return true;
+        }
+
+        public boolean onStop() {
+            return true;
+        }
+
+        public boolean onSuspend() {
+            return true;
+        }
+
+        public boolean onResume() {
+            return true;
+        }
+
+        public Object provide(DaemonControl ctrl) throws Throwable {
+            try {
+                synchronized(logoutSignal) {
+                    final long limit = System.currentTimeMillis() + logoutFlushInterval;
+                    while(isFailed || queue.size() < logoutBatchSize) {
+                        long wait = limit - System.currentTimeMillis();
+                        if(wait <= 0) {
+                            break;
+                        }
+                        logoutSignal.wait(wait);
+                    }
+                }
+            } catch(InterruptedException e) {
+                return null;
+            }
+            synchronized(logoutFlushLock) {
+                if(logoutQueue != queue) {
+                    // 停止処理で反映する
+                    return null;
+                }
+                List list = new ArrayList();
+                if(queue.drainTo(list, logoutBatchSize) == 0) {
+                    return null;
+                }
+                inflightLogout = list;
+                return list;
+            }
+        }
+
+        public void consume(Object paramObj, DaemonControl ctrl) throws Throwable {
+            if(paramObj == null) {
+                return;
+            }
+            synchronized(logoutFlushLock) {
+                if(inflightLogout != paramObj) {
+                    // 停止処理で反映済み
+                    return;
+                }
+                inflightLogout = null;
+                final List list = (List) paramObj;
+                isFailed = !flushLogout(list);
+                if(isFailed) {
+                    requeueLogout(queue, list);
+                }
+            }
+        }
+
+        public void garbage() {
+        }
+    }
+
 
 }
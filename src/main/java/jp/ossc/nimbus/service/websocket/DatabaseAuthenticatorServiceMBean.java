@@ -45,6 +45,14 @@ public interface DatabaseAuthenticatorServiceMBean extends AbstractAuthenticator
     
     public static final String DEFAULT_WS_TICKET_KEY = "wsTicket";
     
+    public static final int DEFAULT_LOGOUT_BATCH_SIZE = 100;
+    
+    public static final long DEFAULT_LOGOUT_FLUSH_INTERVAL = 1000l;
+    
+    public static final int DEFAULT_LOGOUT_QUEUE_CAPACITY = 10000;
+    
+    public static final String DEFAULT_LOGOUT_FLUSH_ERROR_MESSAGE_ID = "WS___00012";
+    
     public ServiceName getConnectionFactoryServiceName();
     
     public void setConnectionFactoryServiceName(ServiceName serviceName);
@@ -77,4 +85,40 @@ public interface DatabaseAuthenticatorServiceMBean extends AbstractAuthenticator
 
     public void setWsTicketKey(String key);
     
+    public boolean isLogoutWriteBehind();
+    
+    public void setLogoutWriteBehind(boolean isWriteBehind);
+    
+    public int getLogoutBatchSize();
+    
+    public void setLogoutBatchSize(int size);
+    
+    public long getLogoutFlushInterval();
+    
+    public void setLogoutFlushInterval(long interval);
+    
+    public int getLogoutQueueCapacity();
+    
+    public void setLogoutQueueCapacity(int capacity);
+    
+    public String getLogoutFlushErrorMessageId();
+    
+    public void setLogoutFlushErrorMessageId(String id);
+    
+    public int getLogoutQueueSize();
+    
+    public long getLogoutQueueOverflowCount();
+    
+    public long getLogoutFlushErrorCount();
+    
+    public long getLogoutLostCount();
+    
+    public long getLogoutFlushCount();
+    
+    public long getLastLogoutFlushTime();
+    
+    public long getMaxLogoutFlushTime();
+    
+    public long getAverageLogoutFlushTime();
+    
 }
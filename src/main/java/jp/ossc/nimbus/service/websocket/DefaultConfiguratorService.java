@@ -33,6 +33,7 @@ package jp.ossc.nimbus.service.websocket;
 
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.server.HandshakeRequest;
@@ -50,7 +51,9 @@ import jp.ossc.nimbus.service.context.Context;
 /**
  * {@link Configurator}を継承したConfiguratorサービスクラス。
  * <p>
- * エンドポイントクラスのインスタンス生成、セッションオープン時のハンドシェイク事前処理を行う。
+ * エンドポイントクラスのインスタンス生成、セッションオープン時のハンドシェイク事前処理を行う。<br>
+ * rejectOnHandshakeがtrueの場合、{@link jp.ossc.nimbus.servlet.WebSocketHandshakeFilter}から{@link #checkHandshake(HttpServletRequest)}を呼び出すことで、
+ * WebSocketへのアップグレード前にHTTPのエラー応答で接続を拒否する。
  *
  * @author M.Ishida
  */
@@ -64,9 +67,15 @@ public class DefaultConfiguratorService extends Configurator implements ServiceB
     protected String ticketKey = DEFAULT_HANDSHAKE_TICKET_KEY;
     protected String contextIpKey = DEFAULT_CONTEXT_IP_KEY;
     protected String contextPortKey = DEFAULT_CONTEXT_PORT_KEY;
+    protected ServiceName authenticatorServiceName;
+    protected boolean isRejectOnHandshake;
+    protected String illegalRequestMessageId = DEFAULT_ILLEGAL_REQUEST_MESSAGE_ID;
+    protected String maxClientSizeOverMessageId = DEFAULT_MAX_CLIENT_SIZE_OVER_MESSAGE_ID;
 
     protected ServiceBase service;
     protected Context threadContext;
+    protected Authenticator authenticator;
+    protected final ThreadLocal checkedHandshake = new ThreadLocal();
 
     public ServiceName getEndpointServiceName() {
         return endpointServiceName;
@@ -124,6 +133,38 @@ public class DefaultConfiguratorService extends Configurator implements ServiceB
         contextPortKey = key;
     }
 
+    public ServiceName getAuthenticatorServiceName() {
+        return authenticatorServiceName;
+    }
+
+    public void setAuthenticatorServiceName(ServiceName name) {
+        authenticatorServiceName = name;
+    }
+
+    public boolean isRejectOnHandshake() {
+        return isRejectOnHandshake;
+    }
+
+    public void setRejectOnHandshake(boolean isReject) {
+        isRejectOnHandshake = isReject;
+    }
+
+    public String getIllegalRequestMessageId() {
+        return illegalRequestMessageId;
+    }
+
+    public void setIllegalRequestMessageId(String id) {
+        illegalRequestMessageId = id;
+    }
+
+    public String getMaxClientSizeOverMessageId() {
+        return maxClientSizeOverMessageId;
+    }
+
+    public void setMaxClientSizeOverMessageId(String id) {
+        maxClientSizeOverMessageId = id;
+    }
+
     public Class getEndpointClass() throws ClassNotFoundException {
         ServiceMetaData metaData = ServiceManagerFactory.getServiceMetaData(getEndpointServiceName());
         return Utility.convertStringToClass(metaData.getCode());
@@ -147,6 +188,9 @@ public class DefaultConfiguratorService extends Configurator implements ServiceB
             throw new IllegalArgumentException("ThreadContextServiceName is null.");
         }
         threadContext = (Context) ServiceManagerFactory.getServiceObject(threadContextServiceName);
+        if (authenticatorServiceName != null) {
+            authenticator = (Authenticator) ServiceManagerFactory.getServiceObject(authenticatorServiceName);
+        }
     }
 
     public void stopService() throws Exception {
@@ -207,7 +251,117 @@ public class DefaultConfiguratorService extends Configurator implements ServiceB
         if (httpSession != null && (httpSession instanceof HttpSession)) {
             prop.setHttpSessionId(((HttpSession) httpSession).getId());
         }
+        if (isRejectOnHandshake) {
+            final SessionProperties checked = (SessionProperties) checkedHandshake.get();
+            checkedHandshake.remove();
+            if (checked != null && equals(checked.getId(), id) && equals(checked.getTicket(), ticket)) {
+                // WebSocketHandshakeFilterでチェック済みの場合は、認証結果を引き継ぐ
+                prop.setAuthenticated(checked.isAuthenticated());
+            } else {
+                // WebSocketHandshakeFilterを経由しない場合は、例外をコンテナに伝播させてアップグレードを中止させる
+                checkHandshake(prop);
+            }
+        }
         sec.getUserProperties().put(SessionProperties.SESSION_PROPERTY_KEY, prop);
     }
 
+    /**
+     * WebSocketへのアップグレード要求を、コンテナがアップグレードを行う前にチェックする。
+     * <p>
+     * {@link jp.ossc.nimbus.servlet.WebSocketHandshakeFilter}から呼び出され、チェックに失敗した場合は{@link HandshakeRejectedException}をthrowする。<br>
+     * チェックに成功した場合は、同じスレッドで続けて呼び出される{@link #modifyHandshake(ServerEndpointConfig, HandshakeRequest, HandshakeResponse) modifyHandshake}に認証結果を引き継ぐ。<br>
+     * 引き継いだ結果は、{@link #clearCheckedHandshake()}で破棄する。<br>
+     *
+     * @param request アップグレード要求
+     * @throws HandshakeRejectedException チェックに失敗した場合
+     */
+    public void checkHandshake(HttpServletRequest request) throws HandshakeRejectedException {
+        String id = null;
+        String ticket = null;
+        if (request.getHeader(idKey) != null && request.getHeader(ticketKey) != null) {
+            id = request.getHeader(idKey);
+            ticket = request.getHeader(ticketKey);
+        } else {
+            id = request.getParameter(idKey);
+            ticket = request.getParameter(ticketKey);
+        }
+        String ip = request.getRemoteAddr();
+        String port = Integer.toString(request.getRemotePort());
+        if (threadContext.containsKey(contextIpKey)) {
+            ip = (String) threadContext.get(contextIpKey);
+        }
+        if (threadContext.containsKey(contextPortKey)) {
+            port = ((Integer) threadContext.get(contextPortKey)).toString();
+        }
+        SessionProperties prop = new SessionProperties();
+        prop.setId(id);
+        prop.setTicket(ticket);
+        prop.setIp(ip);
+        prop.setPort(port);
+        prop.setPath(path);
+        checkedHandshake.remove();
+        checkHandshake(prop);
+        checkedHandshake.set(prop);
+    }
+
+    /**
+     * {@link #checkHandshake(HttpServletRequest)}でmodifyHandshakeに引き継ぐ結果を破棄する。
+     * <p>
+     * アップグレードが行われなかった場合に結果がスレッドに残らないよう、WebSocketHandshakeFilterがリクエストの処理後に呼び出す。<br>
+     */
+    public void clearCheckedHandshake() {
+        checkedHandshake.remove();
+    }
+
+    /**
+     * WebSocketへのアップグレード前に、IDとチケットの有無、クライアント数、ハンドシェイク認証をチェックする。
+     * <p>
+     * チェックに失敗した場合は{@link HandshakeRejectedException}をthrowする。<br>
+     * WebSocketHandshakeFilterから呼び出された場合は、HTTPのエラー応答で拒否する。
+     * {@link #modifyHandshake(ServerEndpointConfig, HandshakeRequest, HandshakeResponse) modifyHandshake}から呼び出された場合は、例外をコンテナに伝播させるため、HTTPのエラー応答はコンテナに依存する。<br>
+     * クライアント数のチェックは事前チェックであり、接続枠の予約はEndpointのonOpenで行われる。<br>
+     * 認証に成功した場合は、SessionPropertiesを認証済みとし、onOpenでのハンドシェイク認証を省略させる。<br>
+     *
+     * @param prop ハンドシェイク要求から生成したSessionProperties
+     * @throws HandshakeRejectedException チェックに失敗した場合
+     */
+    protected void checkHandshake(SessionProperties prop) throws HandshakeRejectedException {
+        // IDとチケットは必須
+        if (prop.getId() == null && prop.getTicket() == null) {
+            if (illegalRequestMessageId != null) {
+                service.getLogger().write(illegalRequestMessageId, prop.getIp());
+            }
+            throw new HandshakeRejectedException(CustomCloseReason.CloseCodes.SERVER_ACCESS_DENIED, "Server access denied");
+        }
+        // クライアント数チェック
+        Object endpoint = ServiceManagerFactory.getServiceObject(endpointServiceName);
+        if (endpoint instanceof DefaultEndpointServiceMBean) {
+            DefaultEndpointServiceMBean endpointMBean = (DefaultEndpointServiceMBean) endpoint;
+            int maxClientSize = endpointMBean.getMaxClientSize();
+            if (maxClientSize != -1 && endpointMBean.getClientSize() >= maxClientSize) {
+                if (maxClientSizeOverMessageId != null) {
+                    service.getLogger().write(maxClientSizeOverMessageId, prop);
+                }
+                throw new HandshakeRejectedException(CustomCloseReason.CloseCodes.MAX_CLIENT_SIZE_OVER, "MaxClientSizeOver");
+            }
+        }
+        // 認証処理
+        if (authenticator != null) {
+            boolean result = false;
+            try {
+                result = authenticator.handshake(prop.getId(), prop.getTicket());
+            } catch (AuthenticateException e) {
+                throw new HandshakeRejectedException(CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED, "handshakeAuthFailed", e);
+            }
+            if (!result) {
+                throw new HandshakeRejectedException(CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED, "handshakeAuthFailed");
+            }
+            prop.setAuthenticated(true);
+        }
+    }
+
+    private static boolean equals(String str1, String str2) {
+        return str1 == null ? str2 == null : str1.equals(str2);
+    }
+
 }
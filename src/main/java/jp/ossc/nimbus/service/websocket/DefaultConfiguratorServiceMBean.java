@@ -65,6 +65,18 @@ public interface DefaultConfiguratorServiceMBean extends NimbusConfigurator {
      */
     public static final String DEFAULT_CONTEXT_PORT_KEY = "WebSocket-Remote-Port";
 
+    /**
+     * ハンドシェイク時にリクエストが不正で拒否した際に出力するメッセージIDのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_ILLEGAL_REQUEST_MESSAGE_ID = "WS___00002";
+
+    /**
+     * ハンドシェイク時にクライアント数が最大を超えて拒否した際に出力するメッセージIDのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_MAX_CLIENT_SIZE_OVER_MESSAGE_ID = "WS___00003";
+
     /**
      * Endpointに対するパスを設定する。
      * <p>
@@ -170,4 +182,71 @@ public interface DefaultConfiguratorServiceMBean extends NimbusConfigurator {
      */
     public void setContextPortKey(String key);
 
+    /**
+     * ハンドシェイク時に使用する認証サービス{@link Authenticator}のサービス名を取得する。
+     * <p>
+     *
+     * @return サービス名
+     */
+    public ServiceName getAuthenticatorServiceName();
+
+    /**
+     * ハンドシェイク時に使用する認証サービス{@link Authenticator}のサービス名を設定する。
+     * <p>
+     * {@link #setRejectOnHandshake(boolean)}がtrueの場合に、WebSocketへのアップグレード前にハンドシェイク認証を行う。<br>
+     *
+     * @param name サービス名
+     */
+    public void setAuthenticatorServiceName(ServiceName name);
+
+    /**
+     * ハンドシェイク時に接続を拒否するかどうかを判定する。
+     * <p>
+     *
+     * @return trueの場合、ハンドシェイク時にチェックを行い接続を拒否する
+     */
+    public boolean isRejectOnHandshake();
+
+    /**
+     * ハンドシェイク時に接続を拒否するかどうかを設定する。デフォルトはfalse。
+     * <p>
+     * trueの場合、WebSocketへのアップグレード前にIDとチケットの有無、クライアント数、ハンドシェイク認証をチェックし、
+     * 失敗した場合はWebSocketセッションを生成せずに接続を拒否する。<br>
+     * {@link jp.ossc.nimbus.servlet.WebSocketHandshakeFilter}をEndpointのパスに設定した場合は、拒否理由に応じて401、403、503のHTTPのエラー応答を返す。
+     * 設定しない場合は、例外をコンテナに伝播させてアップグレードを中止させるため、HTTPのエラー応答はコンテナに依存する。<br>
+     *
+     * @param isReject ハンドシェイク時にチェックを行い接続を拒否する場合、true
+     */
+    public void setRejectOnHandshake(boolean isReject);
+
+    /**
+     * ハンドシェイク時にリクエストが不正で拒否した際に出力するメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getIllegalRequestMessageId();
+
+    /**
+     * ハンドシェイク時にリクエストが不正で拒否した際に出力するメッセージIDを設定する。デフォルトは
+     * {@link #DEFAULT_ILLEGAL_REQUEST_MESSAGE_ID}。
+     *
+     * @param id メッセージID
+     */
+    public void setIllegalRequestMessageId(String id);
+
+    /**
+     * ハンドシェイク時にクライアント数が最大を超えて拒否した際に出力するメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getMaxClientSizeOverMessageId();
+
+    /**
+     * ハンドシェイク時にクライアント数が最大を超えて拒否した際に出力するメッセージIDを設定する。デフォルトは
+     * {@link #DEFAULT_MAX_CLIENT_SIZE_OVER_MESSAGE_ID}。
+     *
+     * @param id メッセージID
+     */
+    public void setMaxClientSizeOverMessageId(String id);
+
 }
@@ -32,9 +32,23 @@
 package jp.ossc.nimbus.service.websocket;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.websocket.CloseReason;
 import javax.websocket.Endpoint;
@@ -49,6 +63,9 @@ import jp.ossc.nimbus.core.ServiceName;
 import jp.ossc.nimbus.service.journal.Journal;
 import jp.ossc.nimbus.service.journal.editorfinder.EditorFinder;
 import jp.ossc.nimbus.service.performance.ResourceUsage;
+import jp.ossc.nimbus.service.queue.QueueHandler;
+import jp.ossc.nimbus.service.queue.QueueHandlerContainer;
+import jp.ossc.nimbus.service.queue.QueueHandlerContainerService;
 import jp.ossc.nimbus.service.sequence.Sequence;
 
 /**
@@ -69,6 +86,11 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
     protected long maxIdleTimeout = -1;
     protected int maxTextMessageBufferSize = -1;
     protected int maxBinaryMessageBufferSize = -1;
+    protected boolean isAsyncAuthenticate;
+    protected ServiceName authenticateQueueHandlerContainerServiceName;
+    protected int authenticateQueueHandlerSize = DEFAULT_AUTHENTICATE_QUEUE_HANDLER_SIZE;
+    protected int maxPendingAuthenticateSize = -1;
+    protected long authenticateTimeout = -1;
 
     protected String accessJournalKey = DEFAULT_ACCESS_JOURNAL_KEY;
     protected String idJournalKey = DEFAULT_ID_JOURNAL_KEY;
@@ -88,6 +110,8 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
     protected String illegalRequestMessageId = DEFAULT_ILLEGAL_REQUEST_MESSAGE_ID;
     protected String maxClientSizeOverMessageId = DEFAULT_MAX_CLIENT_SIZE_OVER_MESSAGE_ID;
     protected String abnormalCloseMessageId = DEFAULT_ABNORMAL_CLOSE_MESSAGE_ID;
+    protected String authenticatePendingOverMessageId = DEFAULT_AUTHENTICATE_PENDING_OVER_MESSAGE_ID;
+    protected String authenticateTimeoutMessageId = DEFAULT_AUTHENTICATE_TIMEOUT_MESSAGE_ID;
 
     protected Authenticator authenticator;
     protected ExceptionHandlerMappingService exceptionHandler;
@@ -95,7 +119,13 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
     protected EditorFinder editorFinder;
     protected Sequence sequence;
 
-    protected Set sessionSet;
+    protected SessionRegistry sessionRegistry;
+    protected final AtomicInteger clientCount = new AtomicInteger();
+    protected final AtomicInteger pendingAuthenticateCount = new AtomicInteger();
+    protected final Set pendingAuthenticateRequests = Collections.newSetFromMap(new ConcurrentHashMap());
+    protected QueueHandlerContainer authenticateQueueHandlerContainer;
+    protected boolean isCreatedAuthenticateQueueHandlerContainer;
+    protected ExecutorService authenticateExecutor;
 
     protected ServiceBase service;
 
@@ -291,6 +321,50 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
         maxBinaryMessageBufferSize = size;
     }
 
+    public boolean isAsyncAuthenticate() {
+        return isAsyncAuthenticate;
+    }
+
+    public void setAsyncAuthenticate(boolean isAsync) {
+        isAsyncAuthenticate = isAsync;
+    }
+
+    public ServiceName getAuthenticateQueueHandlerContainerServiceName() {
+        return authenticateQueueHandlerContainerServiceName;
+    }
+
+    public void setAuthenticateQueueHandlerContainerServiceName(ServiceName name) {
+        authenticateQueueHandlerContainerServiceName = name;
+    }
+
+    public int getAuthenticateQueueHandlerSize() {
+        return authenticateQueueHandlerSize;
+    }
+
+    public void setAuthenticateQueueHandlerSize(int size) {
+        authenticateQueueHandlerSize = size;
+    }
+
+    public int getMaxPendingAuthenticateSize() {
+        return maxPendingAuthenticateSize;
+    }
+
+    public void setMaxPendingAuthenticateSize(int size) {
+        maxPendingAuthenticateSize = size;
+    }
+
+    public long getAuthenticateTimeout() {
+        return authenticateTimeout;
+    }
+
+    public void setAuthenticateTimeout(long timeout) {
+        authenticateTimeout = timeout;
+    }
+
+    public int getPendingAuthenticateSize() {
+        return pendingAuthenticateCount.get();
+    }
+
     public String getIllegalRequestMessageId() {
         return illegalRequestMessageId;
     }
@@ -315,126 +389,76 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
         abnormalCloseMessageId = id;
     }
 
+    public String getAuthenticatePendingOverMessageId() {
+        return authenticatePendingOverMessageId;
+    }
+
+    public void setAuthenticatePendingOverMessageId(String id) {
+        authenticatePendingOverMessageId = id;
+    }
+
+    public String getAuthenticateTimeoutMessageId() {
+        return authenticateTimeoutMessageId;
+    }
+
+    public void setAuthenticateTimeoutMessageId(String id) {
+        authenticateTimeoutMessageId = id;
+    }
+
     public int getClientSize() {
-        return sessionSet.size();
+        return clientCount.get();
     }
 
     public String getAllClientSessionProperties() {
-        Set result = new HashSet();
-        synchronized (sessionSet) {
-            Iterator it = sessionSet.iterator();
-            while (it.hasNext()) {
-                Session session = (Session) it.next();
-                result.add(SessionProperties.getSessionProperty(session));
-            }
-        }
-        return result.toString();
+        return sessionRegistry.getAllSessionProperties().toString();
     }
 
     public Set findClientSessionPropertiesFromSessionId(String sessionId) {
         Set result = new HashSet();
-        if (sessionId != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (sessionId.equals(prop.getWebSocketSessionId())) {
-                        result.add(prop);
-                    }
-                }
-            }
+        Session session = sessionRegistry.findSessionFromWebSocketSessionId(sessionId);
+        if (session != null) {
+            result.addAll(sessionRegistry.getSessionProperties(Collections.singleton(session)));
         }
         return result;
     }
 
     public void closeClientSessionFromSessionId(String id) {
-        if (id != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (id.equals(prop.getWebSocketSessionId())) {
-                        CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.SYSTEM_FORCED_DISCONNECTION, "Forced disconnection");
-                        try {
-                            session.close(reason);
-                        } catch (Exception e) {
-                        }
-                    }
-                }
-            }
+        Session session = sessionRegistry.findSessionFromWebSocketSessionId(id);
+        if (session != null) {
+            forceClose(Collections.singleton(session));
         }
     }
 
     public Set findClientSessionPropertiesFromIp(String ip) {
-        Set result = new HashSet();
-        if (ip != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (ip.equals(prop.getIp())) {
-                        result.add(prop);
-                    }
-                }
-            }
-        }
-        return result;
+        return sessionRegistry.getSessionProperties(sessionRegistry.findSessionsFromIp(ip));
     }
 
     public void closeClientSessionFromIp(String ip) {
-        if (ip != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (ip.equals(prop.getIp())) {
-                        CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.SYSTEM_FORCED_DISCONNECTION, "Forced disconnection");
-                        try {
-                            session.close(reason);
-                        } catch (Exception e) {
-                        }
-                    }
-                }
-            }
-        }
+        forceClose(sessionRegistry.findSessionsFromIp(ip));
     }
 
     public Set findClientSessionPropertiesFromId(String id) {
-        Set result = new HashSet();
-        if (id != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (id.equals(prop.getId())) {
-                        result.add(prop);
-                    }
-                }
-            }
-        }
-        return result;
+        return sessionRegistry.getSessionProperties(sessionRegistry.findSessionsFromId(id));
     }
 
     public void closeClientSessionFromId(String id) {
-        if (id != null) {
-            synchronized (sessionSet) {
-                Iterator it = sessionSet.iterator();
-                while (it.hasNext()) {
-                    Session session = (Session) it.next();
-                    SessionProperties prop = SessionProperties.getSessionProperty(session);
-                    if (id.equals(prop.getId())) {
-                        CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.SYSTEM_FORCED_DISCONNECTION, "Forced disconnection");
-                        try {
-                            session.close(reason);
-                        } catch (Exception e) {
-                        }
-                    }
-                }
+        forceClose(sessionRegistry.findSessionsFromId(id));
+    }
+
+    /**
+     * 指定されたセッションを強制切断する。
+     * <p>
+     *
+     * @param sessions 切断するセッションのSet
+     */
+    protected void forceClose(Set sessions) {
+        Iterator it = sessions.iterator();
+        while (it.hasNext()) {
+            Session session = (Session) it.next();
+            CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.SYSTEM_FORCED_DISCONNECTION, "Forced disconnection");
+            try {
+                session.close(reason);
+            } catch (Exception e) {
             }
         }
     }
@@ -444,7 +468,7 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
     }
 
     public void createService() throws Exception {
-        sessionSet = new HashSet();
+        sessionRegistry = new SessionRegistry();
     }
 
     public void startService() throws Exception {
@@ -468,14 +492,37 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                 throw new IllegalArgumentException("SequenceServiceName is null.");
             }
         }
+        if (isAsyncAuthenticate && authenticator != null) {
+            if (authenticateQueueHandlerContainerServiceName != null) {
+                authenticateQueueHandlerContainer = (QueueHandlerContainer) ServiceManagerFactory.getServiceObject(authenticateQueueHandlerContainerServiceName);
+            } else {
+                QueueHandlerContainerService qhc = new QueueHandlerContainerService();
+                qhc.create();
+                qhc.setQueueHandlerSize(authenticateQueueHandlerSize);
+                qhc.start();
+                authenticateQueueHandlerContainer = qhc;
+                isCreatedAuthenticateQueueHandlerContainer = true;
+            }
+            authenticateQueueHandlerContainer.setQueueHandler(new AuthenticateQueueHandler());
+            authenticateQueueHandlerContainer.accept();
+            if (authenticateTimeout > 0) {
+                // 応答しないハンドシェイク認証でQueueHandlerが塞がらないよう、認証処理は別スレッドで実行し、タイムアウトまでのみ待つ
+                final String threadName = "Nimbus WebSocket AuthenticateThread " + service.getServiceNameObject();
+                authenticateExecutor = new ThreadPoolExecutor(0, authenticateQueueHandlerSize * 2, 60l, TimeUnit.SECONDS,
+                        new SynchronousQueue(), new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, threadName);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+        }
     }
 
     public void stopService() throws Exception {
-        if(sessionSet != null){
-            Set tmpSet = null;
-            synchronized (sessionSet) {
-                tmpSet = new HashSet(sessionSet);
-            }
+        if(sessionRegistry != null){
+            Set tmpSet = new HashSet(sessionRegistry.sessionSet());
             Iterator it = tmpSet.iterator();
             while (it.hasNext()) {
                 Session session = (Session) it.next();
@@ -484,12 +531,50 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                 }
             }
         }
+        if (authenticateQueueHandlerContainer != null) {
+            authenticateQueueHandlerContainer.release();
+            closePendingAuthenticateRequests();
+            if (isCreatedAuthenticateQueueHandlerContainer) {
+                authenticateQueueHandlerContainer.stop();
+            }
+            authenticateQueueHandlerContainer = null;
+            isCreatedAuthenticateQueueHandlerContainer = false;
+        }
+        if (authenticateExecutor != null) {
+            authenticateExecutor.shutdown();
+            authenticateExecutor = null;
+        }
     }
 
     public void destroyService() throws Exception {
     }
 
+    /**
+     * 認証待ちのまま処理されていない認証要求のセッションを、{@link javax.websocket.CloseReason.CloseCodes#TRY_AGAIN_LATER}でクローズする。
+     * <p>
+     * サービスの停止時に呼び出し、認証待ち件数と接続枠を解放する。処理中の認証要求は、認証処理で解放する。<br>
+     */
+    protected void closePendingAuthenticateRequests() {
+        final Object[] requests = pendingAuthenticateRequests.toArray();
+        for (int i = 0; i < requests.length; i++) {
+            final AuthenticateRequest request = (AuthenticateRequest) requests[i];
+            if (!pendingAuthenticateRequests.remove(request)) {
+                continue;
+            }
+            request.finish();
+            pendingAuthenticateCount.decrementAndGet();
+            releaseClient();
+            CloseReason reason = new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "ServiceStopped");
+            try {
+                request.session.close(reason);
+            } catch (Exception e) {
+            }
+        }
+    }
+
     public void onOpen(Session session, EndpointConfig config) {
+        boolean isReserved = false;
+        boolean isRegistered = false;
         try {
             SessionProperties prop = (SessionProperties) config.getUserProperties().get(SessionProperties.SESSION_PROPERTY_KEY);
             prop.setWebSocketSessionId(session.getId());
@@ -517,8 +602,8 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                 service.getLogger().write(illegalRequestMessageId, prop.getIp());
                 return;
             }
-            // クライアント数チェック
-            if (maxClientSize != -1 && sessionSet.size() >= maxClientSize) {
+            // クライアント数チェック(認証前に接続枠を予約する)
+            if (!reserveClient()) {
                 CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.MAX_CLIENT_SIZE_OVER, "MaxClientSizeOver");
                 try {
                     session.close(reason);
@@ -527,8 +612,41 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                 service.getLogger().write(maxClientSizeOverMessageId, prop);
                 return;
             }
-            // 認証処理
-            if (authenticator != null) {
+            isReserved = true;
+            // 認証処理(Configuratorでハンドシェイク時に認証済みの場合は省略する)
+            if (authenticator != null && !prop.isAuthenticated()) {
+                if (authenticateQueueHandlerContainer != null) {
+                    // 非同期認証の場合は、認証待ちとしてキューに投入し、接続枠の解放は認証処理に委ねる
+                    int pendingCount = pendingAuthenticateCount.incrementAndGet();
+                    if (maxPendingAuthenticateSize != -1 && pendingCount > maxPendingAuthenticateSize) {
+                        pendingAuthenticateCount.decrementAndGet();
+                        CloseReason reason = new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "AuthenticatePendingOver");
+                        try {
+                            session.close(reason);
+                        } catch (Exception e) {
+                        }
+                        if (authenticatePendingOverMessageId != null) {
+                            service.getLogger().write(authenticatePendingOverMessageId, prop);
+                        }
+                        return;
+                    }
+                    SessionProperties.put(session, prop);
+                    final AuthenticateRequest request = new AuthenticateRequest(session, config, prop);
+                    pendingAuthenticateRequests.add(request);
+                    try {
+                        authenticateQueueHandlerContainer.push(request);
+                    } catch (RuntimeException e) {
+                        if (pendingAuthenticateRequests.remove(request)) {
+                            pendingAuthenticateCount.decrementAndGet();
+                            throw e;
+                        }
+                        // 停止処理で既に解放されている
+                        isReserved = false;
+                        return;
+                    }
+                    isReserved = false;
+                    return;
+                }
                 boolean result = false;
                 try {
                     result = authenticator.handshake(prop.getId(), prop.getTicket());
@@ -544,35 +662,47 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                     return;
                 }
             }
-
             SessionProperties.put(session, prop);
-
-            if (maxIdleTimeout != -1) {
-                session.setMaxIdleTimeout(maxIdleTimeout);
-            }
-            if (maxTextMessageBufferSize != -1) {
-                session.setMaxTextMessageBufferSize(maxTextMessageBufferSize);
-
+            // ハンドラのonOpen中にクローズされた場合もonCloseで解放されるよう、ハンドラ設定前に登録する
+            sessionRegistry.add(session, prop);
+            isRegistered = true;
+            setupSession(session, config);
+        } finally {
+            if (isReserved && !isRegistered) {
+                releaseClient();
             }
-            if (maxBinaryMessageBufferSize != -1) {
-                session.setMaxBinaryMessageBufferSize(maxBinaryMessageBufferSize);
+            if (accessJournal != null && accessJournal.isStartJournal()) {
+                accessJournal.endJournal();
             }
+        }
+    }
 
-            for (ServiceName handlerName : messageHandlerServiceNames) {
-                Object service = ServiceManagerFactory.getServiceObject(handlerName);
-                if (service instanceof MessageHandler) {
-                    session.addMessageHandler((MessageHandler) service);
-                }
-                if (service instanceof SessionMessageHandler) {
-                    ((SessionMessageHandler) service).onOpen(session, config);
-                }
-            }
-            synchronized (sessionSet) {
-                sessionSet.add(session);
+    /**
+     * 認証済みのセッションに対して、セッションの設定とMessageHandlerの設定を行う。
+     * <p>
+     *
+     * @param session WebSocketセッション
+     * @param config EndpointConfig
+     */
+    protected void setupSession(Session session, EndpointConfig config) {
+        if (maxIdleTimeout != -1) {
+            session.setMaxIdleTimeout(maxIdleTimeout);
+        }
+        if (maxTextMessageBufferSize != -1) {
+            session.setMaxTextMessageBufferSize(maxTextMessageBufferSize);
+
+        }
+        if (maxBinaryMessageBufferSize != -1) {
+            session.setMaxBinaryMessageBufferSize(maxBinaryMessageBufferSize);
+        }
+
+        for (ServiceName handlerName : messageHandlerServiceNames) {
+            Object service = ServiceManagerFactory.getServiceObject(handlerName);
+            if (service instanceof MessageHandler) {
+                session.addMessageHandler((MessageHandler) service);
             }
-        } finally {
-            if (accessJournal != null && accessJournal.isStartJournal()) {
-                accessJournal.endJournal();
+            if (service instanceof SessionMessageHandler) {
+                ((SessionMessageHandler) service).onOpen(session, config);
             }
         }
     }
@@ -602,19 +732,20 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
                     ((SessionMessageHandler) handler).onClose(session, closeReason);
                 }
             }
-            synchronized (sessionSet) {
-                sessionSet.remove(session);
+            boolean isRegistered = sessionRegistry.remove(session);
+            if (isRegistered) {
+                releaseClient();
             }
             boolean isNormalClose = closeReason.getCloseCode().getCode() == CloseReason.CloseCodes.NORMAL_CLOSURE.getCode();
-            if (authenticator != null && closeReason.getCloseCode().getCode() != CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED.getCode()) {
+            // 非同期認証の場合、認証が完了していないセッションはログアウトしない
+            if (authenticator != null && closeReason.getCloseCode().getCode() != CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED.getCode()
+                    && (authenticateQueueHandlerContainer == null || isRegistered)) {
                 SessionProperties prop = SessionProperties.getSessionProperty(session);
                 if (prop != null) {
-                    String id = prop.getId();
-                    String ticket = prop.getTicket();
-                    try {
-                        authenticator.logout(id, ticket, !isNormalClose);
-                    } catch (AuthenticateException e) {
-                        handleException(session, e);
+                    if (authenticateQueueHandlerContainer != null) {
+                        authenticateQueueHandlerContainer.push(new LogoutRequest(session, prop.getId(), prop.getTicket(), !isNormalClose));
+                    } else {
+                        logout(session, prop.getId(), prop.getTicket(), !isNormalClose);
                     }
                 }
             }
@@ -640,6 +771,179 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
         handleException(session, thr);
     }
 
+    /**
+     * 接続枠を予約する。
+     * <p>
+     * 最大クライアント数に達している場合は予約しない。予約した接続枠は{@link #releaseClient()}で解放する。<br>
+     *
+     * @return 予約できた場合、true
+     */
+    protected boolean reserveClient() {
+        while (true) {
+            int current = clientCount.get();
+            if (maxClientSize != -1 && current >= maxClientSize) {
+                return false;
+            }
+            if (clientCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 予約した接続枠を解放する。
+     * <p>
+     */
+    protected void releaseClient() {
+        clientCount.decrementAndGet();
+    }
+
+    /**
+     * ログアウトする。
+     * <p>
+     *
+     * @param session WebSocketセッション
+     * @param id ユーザを特定するid
+     * @param ticket 認証に使用するチケット情報
+     * @param isForce 強制、異常終了の場合は、true
+     */
+    protected void logout(Session session, String id, String ticket, boolean isForce) {
+        try {
+            authenticator.logout(id, ticket, isForce);
+        } catch (AuthenticateException e) {
+            handleException(session, e);
+        }
+    }
+
+    /**
+     * 認証待ちのセッションのハンドシェイク認証を行い、認証に成功した場合はセッションをオープンする。
+     * <p>
+     * 認証待ちの間にセッションがクローズされた場合、認証がタイムアウトした場合、認証に失敗した場合は接続枠を解放する。<br>
+     * タイムアウトした場合は、認証失敗と区別するために{@link javax.websocket.CloseReason.CloseCodes#TRY_AGAIN_LATER}でクローズする。<br>
+     * サービスの停止により既に解放された認証要求は、何もしない。<br>
+     *
+     * @param request 認証要求
+     */
+    protected void authenticate(AuthenticateRequest request) {
+        if (!pendingAuthenticateRequests.remove(request)) {
+            return;
+        }
+        Session session = request.session;
+        SessionProperties prop = request.prop;
+        boolean isRegistered = false;
+        try {
+            if (!session.isOpen()) {
+                return;
+            }
+            if (request.isTimeout() && request.finishByTimeout()) {
+                closeAuthenticateTimeout(session, prop);
+                return;
+            }
+            boolean result = false;
+            try {
+                result = handshake(request);
+            } catch (AuthenticateException e) {
+                handleException(session, e);
+            } catch (TimeoutException e) {
+                closeAuthenticateTimeout(session, prop);
+                return;
+            }
+            if (!result) {
+                CloseReason reason = new CustomCloseReason(CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED, "handshakeAuthFailed");
+                try {
+                    session.close(reason);
+                } catch (Exception e) {
+                }
+                return;
+            }
+            sessionRegistry.add(session, prop);
+            isRegistered = true;
+            // 認証待ちの間にクローズされていた場合は、onCloseで解放されないためここで解放する
+            if (!session.isOpen()) {
+                if (sessionRegistry.remove(session)) {
+                    releaseClient();
+                }
+                return;
+            }
+            setupSession(session, request.config);
+        } finally {
+            pendingAuthenticateCount.decrementAndGet();
+            if (!isRegistered) {
+                releaseClient();
+            }
+        }
+    }
+
+    /**
+     * 認証要求のハンドシェイク認証を行う。
+     * <p>
+     * タイムアウトが指定されている場合は、認証処理を別スレッドで実行し、onOpenからタイムアウトまでの残り時間だけ待つ。<br>
+     * タイムアウトでセッションをクローズした後に認証処理が成功した場合は、クライアントが同じチケットで再接続して得たログインを取り消さないよう、ログアウトしない。<br>
+     *
+     * @param request 認証要求
+     * @return 認証に成功した場合、true
+     * @exception AuthenticateException 認証処理で例外が発生した場合
+     * @exception TimeoutException タイムアウトまでに認証処理が完了しなかった場合
+     */
+    protected boolean handshake(AuthenticateRequest request) throws AuthenticateException, TimeoutException {
+        final ExecutorService executor = authenticateExecutor;
+        if (executor == null) {
+            return authenticator.handshake(request.prop.getId(), request.prop.getTicket());
+        }
+        Future future = null;
+        try {
+            future = executor.submit(new HandshakeTask(request));
+        } catch (RejectedExecutionException e) {
+            request.finishByTimeout();
+            throw new TimeoutException("Authenticate thread is exhausted.");
+        }
+        try {
+            future.get(request.getRemainingTime(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (request.finishByTimeout()) {
+                throw e;
+            }
+            // タイムアウトと同時に認証処理が完了した場合は、その結果を使用する
+        } catch (InterruptedException e) {
+            if (request.finishByTimeout()) {
+                throw new TimeoutException("Interrupted.");
+            }
+        } catch (ExecutionException e) {
+        }
+        while (true) {
+            try {
+                return ((Boolean) future.get()).booleanValue();
+            } catch (InterruptedException e) {
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new AuthenticateException(cause);
+            }
+        }
+    }
+
+    /**
+     * 認証がタイムアウトしたセッションをクローズする。
+     * <p>
+     *
+     * @param session WebSocketセッション
+     * @param prop SessionProperties
+     */
+    protected void closeAuthenticateTimeout(Session session, SessionProperties prop) {
+        CloseReason reason = new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "AuthenticateTimeout");
+        try {
+            session.close(reason);
+        } catch (Exception e) {
+        }
+        if (authenticateTimeoutMessageId != null) {
+            service.getLogger().write(authenticateTimeoutMessageId, prop);
+        }
+    }
+
     protected void handleException(Session session, Throwable thr) {
         if (exceptionHandler != null) {
             try {
@@ -653,4 +957,126 @@ public class DefaultEndpointService extends Endpoint implements ServiceBaseSuppo
         return getMaxClientSize() < 0 ? new Double(getClientSize()) : new Double((double) getClientSize() / (double) getMaxClientSize());
     }
 
+    /**
+     * 非同期認証の認証要求。
+     * <p>
+     */
+    protected class AuthenticateRequest {
+
+        protected final Session session;
+        protected final EndpointConfig config;
+        protected final SessionProperties prop;
+        protected final long requestTime;
+        protected final AtomicBoolean isFinished = new AtomicBoolean();
+        protected volatile boolean isClosedByTimeout;
+
+        protected AuthenticateRequest(Session session, EndpointConfig config, SessionProperties prop) {
+            this.session = session;
+            this.config = config;
+            this.prop = prop;
+            requestTime = System.currentTimeMillis();
+        }
+
+        protected boolean isTimeout() {
+            return authenticateTimeout > 0 && System.currentTimeMillis() - requestTime > authenticateTimeout;
+        }
+
+        protected long getRemainingTime() {
+            return Math.max(authenticateTimeout - (System.currentTimeMillis() - requestTime), 0l);
+        }
+
+        /**
+         * 認証の完了またはタイムアウトを確定させる。
+         * <p>
+         *
+         * @return 最初に確定させた場合、true
+         */
+        protected boolean finish() {
+            return isFinished.compareAndSet(false, true);
+        }
+
+        /**
+         * タイムアウトによりセッションをクローズすることを記録し、認証の完了またはタイムアウトを確定させる。
+         * <p>
+         *
+         * @return 最初に確定させた場合、true
+         */
+        protected boolean finishByTimeout() {
+            isClosedByTimeout = true;
+            return finish();
+        }
+    }
+
+    /**
+     * 認証要求のハンドシェイク認証を別スレッドで実行するタスク。
+     * <p>
+     */
+    protected class HandshakeTask implements Callable {
+
+        protected final AuthenticateRequest request;
+
+        protected HandshakeTask(AuthenticateRequest request) {
+            this.request = request;
+        }
+
+        public Object call() throws Exception {
+            boolean result = false;
+            try {
+                result = authenticator.handshake(request.prop.getId(), request.prop.getTicket());
+            } finally {
+                if (!request.finish() && result && !request.isClosedByTimeout) {
+                    // 既にクローズされているため、ログインを取り消す
+                    // タイムアウトでクローズした場合は、クライアントが同じチケットで再接続している可能性があるため取り消さない
+                    logout(request.session, request.prop.getId(), request.prop.getTicket(), true);
+                }
+            }
+            return Boolean.valueOf(result);
+        }
+    }
+
+    /**
+     * 非同期認証のログアウト要求。
+     * <p>
+     */
+    protected class LogoutRequest {
+
+        protected final Session session;
+        protected final String id;
+        protected final String ticket;
+        protected final boolean isForce;
+
+        protected LogoutRequest(Session session, String id, String ticket, boolean isForce) {
+            this.session = session;
+            this.id = id;
+            this.ticket = ticket;
+            this.isForce = isForce;
+        }
+    }
+
+    /**
+     * 認証要求及びログアウト要求を処理するQueueHandlerクラス。
+     * <p>
+     */
+    protected class AuthenticateQueueHandler implements QueueHandler {
+
+        public void handleDequeuedObject(Object obj) throws Throwable {
+            if (obj == null) {
+                return;
+            }
+            if (obj instanceof AuthenticateRequest) {
+                authenticate((AuthenticateRequest) obj);
+            } else if (obj instanceof LogoutRequest) {
+                LogoutRequest request = (LogoutRequest) obj;
+                logout(request.session, request.id, request.ticket, request.isForce);
+            }
+        }
+
+        public boolean handleError(Object obj, Throwable th) throws Throwable {
+            return false;
+        }
+
+        public void handleRetryOver(Object obj, Throwable th) throws Throwable {
+        }
+    }
+
 }
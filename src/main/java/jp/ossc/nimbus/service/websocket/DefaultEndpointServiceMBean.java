@@ -150,6 +150,24 @@ public interface DefaultEndpointServiceMBean {
      */
     public static final String DEFAULT_ABNORMAL_CLOSE_MESSAGE_ID = "WS___00004";
 
+    /**
+     * 非同期認証時にAuthenticateQueueHandlerContainerServiceが指定されなかった場合のQueueHandlerサイズのデフォルト値。
+     * <p>
+     */
+    public static final int DEFAULT_AUTHENTICATE_QUEUE_HANDLER_SIZE = 10;
+
+    /**
+     * 非同期認証で認証待ちのセッション数が最大を超えた際に出力するメッセージIDのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_AUTHENTICATE_PENDING_OVER_MESSAGE_ID = "WS___00010";
+
+    /**
+     * 非同期認証がタイムアウトした際に出力するメッセージIDのデフォルト値。
+     * <p>
+     */
+    public static final String DEFAULT_AUTHENTICATE_TIMEOUT_MESSAGE_ID = "WS___00011";
+
     /**
      * メッセージを受信する{@link MessageHandler}の実装を持つサービス名の配列を取得する。
      * <p>
@@ -549,6 +567,104 @@ public interface DefaultEndpointServiceMBean {
      */
     public void setMaxBinaryMessageBufferSize(int size);
 
+    /**
+     * ハンドシェイク認証とログアウトを非同期で行うかどうかを判定する。
+     * <p>
+     *
+     * @return trueの場合、非同期で行う
+     */
+    public boolean isAsyncAuthenticate();
+
+    /**
+     * ハンドシェイク認証とログアウトを非同期で行うかどうかを設定する。デフォルトはfalse。
+     * <p>
+     * trueの場合、onOpenではセッションを認証待ちとしてキューに投入し、コンテナのスレッドとは別のスレッドで認証を行う。<br>
+     * MessageHandlerは認証完了後に設定されるため、クライアントは認証完了まではメッセージを送信できない。<br>
+     * ログアウトも同じキューを介して非同期に行う。<br>
+     *
+     * @param isAsync 非同期で行う場合、true
+     */
+    public void setAsyncAuthenticate(boolean isAsync);
+
+    /**
+     * 非同期認証で使用するQueueHandlerContainerのサービス名を取得する。
+     * <p>
+     *
+     * @return QueueHandlerContainerのサービス名
+     */
+    public ServiceName getAuthenticateQueueHandlerContainerServiceName();
+
+    /**
+     * 非同期認証で使用するQueueHandlerContainerのサービス名を設定する。
+     * <p>
+     * 指定しない場合は、{@link #setAuthenticateQueueHandlerSize(int)}のサイズでQueueHandlerContainerを生成する。<br>
+     *
+     * @param name QueueHandlerContainerのサービス名
+     */
+    public void setAuthenticateQueueHandlerContainerServiceName(ServiceName name);
+
+    /**
+     * 非同期認証で使用するQueueHandlerContainerが指定されなかった場合のQueueHandlerのサイズを取得する。
+     * <p>
+     *
+     * @return QueueHandlerのサイズ
+     */
+    public int getAuthenticateQueueHandlerSize();
+
+    /**
+     * 非同期認証で使用するQueueHandlerContainerが指定されなかった場合のQueueHandlerのサイズを設定する。
+     * デフォルトは{@link #DEFAULT_AUTHENTICATE_QUEUE_HANDLER_SIZE}。
+     * <p>
+     * 認証処理の同時実行数となる。<br>
+     *
+     * @param size QueueHandlerのサイズ
+     */
+    public void setAuthenticateQueueHandlerSize(int size);
+
+    /**
+     * 非同期認証で認証待ちにできるセッションの最大数を取得する。
+     * <p>
+     *
+     * @return 認証待ちにできるセッションの最大数
+     */
+    public int getMaxPendingAuthenticateSize();
+
+    /**
+     * 非同期認証で認証待ちにできるセッションの最大数を設定する。デフォルトは-1で無制限。
+     * <p>
+     * 最大数を超えた場合は、{@link javax.websocket.CloseReason.CloseCodes#TRY_AGAIN_LATER}でクローズする。<br>
+     *
+     * @param size 認証待ちにできるセッションの最大数
+     */
+    public void setMaxPendingAuthenticateSize(int size);
+
+    /**
+     * 非同期認証のタイムアウト[ms]を取得する。
+     * <p>
+     *
+     * @return タイムアウト[ms]
+     */
+    public long getAuthenticateTimeout();
+
+    /**
+     * 非同期認証のタイムアウト[ms]を設定する。デフォルトは-1でタイムアウトしない。
+     * <p>
+     * onOpenから認証完了までの時間がタイムアウトを超えた場合は、{@link javax.websocket.CloseReason.CloseCodes#TRY_AGAIN_LATER}でクローズする。<br>
+     * 認証処理は{@link #setAuthenticateQueueHandlerSize(int)}の2倍を上限とする別スレッドで実行し、認証処理が応答しない場合もタイムアウトさせる。<br>
+     * タイムアウト後に認証処理が成功した場合は、ログアウトする。<br>
+     *
+     * @param timeout タイムアウト[ms]
+     */
+    public void setAuthenticateTimeout(long timeout);
+
+    /**
+     * 非同期認証で認証待ちのセッション数を取得する。
+     * <p>
+     *
+     * @return 認証待ちのセッション数
+     */
+    public int getPendingAuthenticateSize();
+
     /**
      * IPアドレスが拒否対象だった際に出力するメッセージIDを取得する。
      *
@@ -594,9 +710,40 @@ public interface DefaultEndpointServiceMBean {
      */
     public void setAbnormalCloseMessageId(String id);
 
+    /**
+     * 非同期認証で認証待ちのセッション数が最大を超えた際に出力するメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getAuthenticatePendingOverMessageId();
+
+    /**
+     * 非同期認証で認証待ちのセッション数が最大を超えた際に出力するメッセージIDを設定する。デフォルトは
+     * {@link #DEFAULT_AUTHENTICATE_PENDING_OVER_MESSAGE_ID}。
+     *
+     * @param id メッセージID
+     */
+    public void setAuthenticatePendingOverMessageId(String id);
+
+    /**
+     * 非同期認証がタイムアウトした際に出力するメッセージIDを取得する。
+     *
+     * @return メッセージID
+     */
+    public String getAuthenticateTimeoutMessageId();
+
+    /**
+     * 非同期認証がタイムアウトした際に出力するメッセージIDを設定する。デフォルトは
+     * {@link #DEFAULT_AUTHENTICATE_TIMEOUT_MESSAGE_ID}。
+     *
+     * @param id メッセージID
+     */
+    public void setAuthenticateTimeoutMessageId(String id);
+
     /**
      * 接続されているクライアント数を返却します。
      * <p>
+     * 認証処理中で接続枠を予約しているクライアントも含みます。<br>
      *
      * @return 接続されているクライアント数
      */
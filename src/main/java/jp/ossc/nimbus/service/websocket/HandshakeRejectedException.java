@@ -0,0 +1,89 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.websocket;
+
+import javax.websocket.CloseReason.CloseCode;
+
+/**
+ * ハンドシェイク時にWebSocketへのアップグレードを拒否する場合にthrowされる例外。
+ * <p>
+ * {@link DefaultConfiguratorService#checkHandshake(SessionProperties) checkHandshake}からthrowされ、
+ * {@link jp.ossc.nimbus.servlet.WebSocketHandshakeFilter}は、拒否理由の終了コードに応じたHTTPのエラー応答を返す。<br>
+ * 接続が集中した際に大量に生成されるため、スタックトレースは取得しない。<br>
+ *
+ * @author M.Ishida
+ */
+public class HandshakeRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = -4471860224125406530L;
+
+    private CloseCode closeCode;
+
+    /**
+     * 拒否理由の終了コードとメッセージを持ったインスタンスを生成する。
+     * <p>
+     *
+     * @param closeCode 拒否理由に該当する終了コード
+     * @param message メッセージ
+     */
+    public HandshakeRejectedException(CloseCode closeCode, String message) {
+        super(message);
+        this.closeCode = closeCode;
+    }
+
+    /**
+     * 拒否理由の終了コード、メッセージと、この例外の原因となった例外を持ったインスタンスを生成する。
+     * <p>
+     *
+     * @param closeCode 拒否理由に該当する終了コード
+     * @param message メッセージ
+     * @param cause 原因となった例外
+     */
+    public HandshakeRejectedException(CloseCode closeCode, String message, Throwable cause) {
+        super(message, cause);
+        this.closeCode = closeCode;
+    }
+
+    /**
+     * 拒否理由に該当する終了コードを取得する。
+     * <p>
+     *
+     * @return 終了コード
+     */
+    public CloseCode getCloseCode() {
+        return closeCode;
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -61,6 +61,9 @@ public class SessionProperties implements java.io.Serializable {
     private long pingSendTime = -1;
     private long pongReceiveTime = -1;
     private long sendMessageCount = 0;
+    private long sendErrorCount = 0;
+    private volatile int sendQueueSize = 0;
+    private boolean isAuthenticated;
 
     public String getId() {
         return id;
@@ -158,6 +161,14 @@ public class SessionProperties implements java.io.Serializable {
         pongReceiveTime = time;
     }
 
+    public boolean isAuthenticated() {
+        return isAuthenticated;
+    }
+
+    public void setAuthenticated(boolean isAuthenticated) {
+        this.isAuthenticated = isAuthenticated;
+    }
+
     public void addSendMessageCount() {
         sendMessageCount++;
     }
@@ -166,6 +177,22 @@ public class SessionProperties implements java.io.Serializable {
         return sendMessageCount;
     }
 
+    public void addSendErrorCount() {
+        sendErrorCount++;
+    }
+
+    public long getSendErrorCount() {
+        return sendErrorCount;
+    }
+
+    public int getSendQueueSize() {
+        return sendQueueSize;
+    }
+
+    public void setSendQueueSize(int size) {
+        sendQueueSize = size;
+    }
+
     public String toString() {
         return "[id:" + id + ", ticket:" + ticket + ", webSocketSessionId:" + webSocketSessionId + ", httpSessionId:"
                 + httpSessionId + ", path:" + path + ", ip:" + ip + ", port:" + port + ", sendMessageCount:"
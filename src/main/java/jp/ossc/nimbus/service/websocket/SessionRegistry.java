@@ -0,0 +1,255 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.websocket;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.websocket.Session;
+
+/**
+ * 接続中のWebSocketセッションを管理するレジストリクラス。
+ * <p>
+ * セッションを並行Mapで保持し、クライアントID、クライアントIP、WebSocketセッションIDの副インデックスを持つ。<br>
+ * 検索は該当するセッション数に比例した時間で行われ、登録/削除はキー単位のロックのみで行われるため、
+ * 検索や強制切断の処理中にセッションのオープン/クローズが待たされることはない。<br>
+ *
+ * @author M.Ishida
+ */
+public class SessionRegistry {
+
+    protected final ConcurrentMap sessionMap = new ConcurrentHashMap();
+    protected final ConcurrentMap idIndex = new ConcurrentHashMap();
+    protected final ConcurrentMap ipIndex = new ConcurrentHashMap();
+    protected final ConcurrentMap webSocketSessionIdIndex = new ConcurrentHashMap();
+
+    /**
+     * セッションを登録する。
+     * <p>
+     * インデックスのキーには、登録時点のSessionPropertiesの値を使用する。<br>
+     *
+     * @param session WebSocketセッション
+     * @param prop セッションに紐付くSessionProperties
+     * @return 新たに登録された場合、true
+     */
+    public boolean add(Session session, SessionProperties prop) {
+        if (prop == null) {
+            prop = new SessionProperties();
+        }
+        if (sessionMap.putIfAbsent(session, prop) != null) {
+            return false;
+        }
+        addIndex(idIndex, prop.getId(), session);
+        addIndex(ipIndex, prop.getIp(), session);
+        if (prop.getWebSocketSessionId() != null) {
+            webSocketSessionIdIndex.put(prop.getWebSocketSessionId(), session);
+        }
+        return true;
+    }
+
+    /**
+     * セッションを削除する。
+     * <p>
+     *
+     * @param session WebSocketセッション
+     * @return 登録されていたセッションを削除した場合、true
+     */
+    public boolean remove(Session session) {
+        SessionProperties prop = (SessionProperties) sessionMap.remove(session);
+        if (prop == null) {
+            return false;
+        }
+        removeIndex(idIndex, prop.getId(), session);
+        removeIndex(ipIndex, prop.getIp(), session);
+        if (prop.getWebSocketSessionId() != null) {
+            webSocketSessionIdIndex.remove(prop.getWebSocketSessionId(), session);
+        }
+        return true;
+    }
+
+    /**
+     * 指定されたセッションが登録されているか判定する。
+     * <p>
+     *
+     * @param session WebSocketセッション
+     * @return 登録されている場合、true
+     */
+    public boolean contains(Session session) {
+        return sessionMap.containsKey(session);
+    }
+
+    /**
+     * 登録されているセッション数を取得する。
+     * <p>
+     *
+     * @return セッション数
+     */
+    public int size() {
+        return sessionMap.size();
+    }
+
+    /**
+     * 登録されているセッションのSetを取得する。
+     * <p>
+     * 返却されるSetは変更不可のビューで、走査中の登録/削除を反映する場合がある。<br>
+     *
+     * @return セッションのSet
+     */
+    public Set sessionSet() {
+        return Collections.unmodifiableSet(sessionMap.keySet());
+    }
+
+    /**
+     * 登録されている全セッションのSessionPropertiesを取得する。
+     * <p>
+     *
+     * @return SessionPropertiesのSet
+     */
+    public Set getAllSessionProperties() {
+        return new HashSet(sessionMap.values());
+    }
+
+    /**
+     * 指定されたIDで認証されているセッションを取得する。
+     * <p>
+     *
+     * @param id ID
+     * @return セッションのSet
+     */
+    public Set findSessionsFromId(String id) {
+        return findSessions(idIndex, id);
+    }
+
+    /**
+     * 指定されたクライアントIPから接続されているセッションを取得する。
+     * <p>
+     *
+     * @param ip IPアドレス
+     * @return セッションのSet
+     */
+    public Set findSessionsFromIp(String ip) {
+        return findSessions(ipIndex, ip);
+    }
+
+    /**
+     * 指定されたWebSocketセッションIDを持つセッションを取得する。
+     * <p>
+     *
+     * @param webSocketSessionId WebSocketセッションID
+     * @return セッション。存在しない場合は、null
+     */
+    public Session findSessionFromWebSocketSessionId(String webSocketSessionId) {
+        return webSocketSessionId == null ? null : (Session) webSocketSessionIdIndex.get(webSocketSessionId);
+    }
+
+    /**
+     * 指定されたセッションのSetに対応するSessionPropertiesを取得する。
+     * <p>
+     *
+     * @param sessions セッションのSet
+     * @return SessionPropertiesのSet
+     */
+    public Set getSessionProperties(Set sessions) {
+        Set result = new HashSet();
+        Iterator it = sessions.iterator();
+        while (it.hasNext()) {
+            Object prop = sessionMap.get(it.next());
+            if (prop != null) {
+                result.add(prop);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 全てのセッションを削除する。
+     * <p>
+     */
+    public void clear() {
+        sessionMap.clear();
+        idIndex.clear();
+        ipIndex.clear();
+        webSocketSessionIdIndex.clear();
+    }
+
+    protected Set findSessions(ConcurrentMap index, String key) {
+        if (key == null) {
+            return new HashSet();
+        }
+        Set set = (Set) index.get(key);
+        return set == null ? new HashSet() : new HashSet(set);
+    }
+
+    protected void addIndex(ConcurrentMap index, Object key, Session session) {
+        if (key == null) {
+            return;
+        }
+        while (true) {
+            Set set = (Set) index.get(key);
+            if (set == null) {
+                Set newSet = Collections.newSetFromMap(new ConcurrentHashMap());
+                set = (Set) index.putIfAbsent(key, newSet);
+                if (set == null) {
+                    set = newSet;
+                }
+            }
+            synchronized (set) {
+                // 空になり削除されたSetでなければ追加する
+                if (index.get(key) == set) {
+                    set.add(session);
+                    return;
+                }
+            }
+        }
+    }
+
+    protected void removeIndex(ConcurrentMap index, Object key, Session session) {
+        if (key == null) {
+            return;
+        }
+        Set set = (Set) index.get(key);
+        if (set == null) {
+            return;
+        }
+        synchronized (set) {
+            set.remove(session);
+            if (set.isEmpty()) {
+                index.remove(key, set);
+            }
+        }
+    }
+
+}
@@ -31,12 +31,35 @@
  */
 package jp.ossc.nimbus.service.websocket;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.ossc.nimbus.daemon.Daemon;
+import jp.ossc.nimbus.daemon.DaemonControl;
+import jp.ossc.nimbus.daemon.DaemonRunnable;
 
 /**
  * 簡易認証サービス。
  * <p>
+ * IDとチケットのマッピングは、ticketFileで指定したファイル（CSVまたはプロパティ形式）から一括で読み込むことができる。<br>
+ * ファイルから読み込んだマッピングは読み取り専用の{@link TicketTable}として保持し、再読み込み時は新しいテーブルを構築してから参照を差し替える。<br>
+ * ticketFileCheckIntervalを指定した場合、ファイルの更新を定期的に確認し、更新されていれば再読み込みする。<br>
+ * setTicketMappingで設定したマッピングはファイルから読み込んだマッピングより優先され、再読み込みしても保持される。<br>
+ * getTicketMappingsは、リモートのJMXクライアントからも参照できるよう、両方のマッピングを合わせたスナップショットをHashMapに複製して返す。<br>
+ * 複製せずに参照する場合は、両方のマッピングを合わせたビューを返す{@link #getTicketMappingView()}を使用する。<br>
  *
  * @author M.Ishida
  */
@@ -44,21 +67,163 @@ public class SimpleTicketAuthenticatorService extends AbstractAuthenticatorServi
 
     private static final long serialVersionUID = -6297716161454066615L;
     
-    private Map idAndTicketMapping;
+    private final Map idAndTicketMapping = new ConcurrentHashMap();
+    private volatile TicketTable ticketTable = TicketTable.EMPTY;
+    private final Map ticketMappingView = new TicketMappingView();
+    
+    protected File ticketFile;
+    protected String ticketFileEncoding = DEFAULT_TICKET_FILE_ENCODING;
+    protected long ticketFileCheckInterval = -1;
+    protected String ticketFileReloadErrorMessageId;
+    
+    protected Daemon ticketFileCheckDaemon;
+    protected volatile long ticketFileLastModified = -1;
+    protected volatile long ticketFileLength = -1;
 
     public void setTicketMapping(String id, String ticket) {
-        if (idAndTicketMapping == null) {
-            idAndTicketMapping = new HashMap();
-        }
         idAndTicketMapping.put(id, ticket);
     }
 
     public String getTicketMapping(String id) {
-        return idAndTicketMapping == null ? null : (String)idAndTicketMapping.get(id);
+        String ticket = (String) idAndTicketMapping.get(id);
+        return ticket == null ? ticketTable.get(id) : ticket;
     }
 
     public Map getTicketMappings() {
-        return idAndTicketMapping;
+        return new HashMap(ticketMappingView);
+    }
+
+    /**
+     * setTicketMappingで設定したマッピングと、ファイルから読み込んだマッピングを合わせた、読み取り専用のビューを取得する。
+     * <p>
+     * ビューはマッピングを複製せず、再読み込みや追加の結果を反映する。シリアライズできないため、MBeanの属性としては公開しない。<br>
+     *
+     * @return IDとチケットのマッピングのビュー
+     */
+    protected Map getTicketMappingView() {
+        return ticketMappingView;
+    }
+
+    public int getTicketMappingSize() {
+        final TicketTable table = ticketTable;
+        int size = table.size();
+        final Iterator ids = idAndTicketMapping.keySet().iterator();
+        while (ids.hasNext()) {
+            if (table.get((String) ids.next()) == null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public File getTicketFile() {
+        return ticketFile;
+    }
+
+    public void setTicketFile(File file) {
+        ticketFile = file;
+    }
+
+    public String getTicketFileEncoding() {
+        return ticketFileEncoding;
+    }
+
+    public void setTicketFileEncoding(String encoding) {
+        ticketFileEncoding = encoding;
+    }
+
+    public long getTicketFileCheckInterval() {
+        return ticketFileCheckInterval;
+    }
+
+    public void setTicketFileCheckInterval(long interval) {
+        ticketFileCheckInterval = interval;
+    }
+
+    public String getTicketFileReloadErrorMessageId() {
+        return ticketFileReloadErrorMessageId;
+    }
+
+    public void setTicketFileReloadErrorMessageId(String id) {
+        ticketFileReloadErrorMessageId = id;
+    }
+
+    public void startService() throws Exception {
+        super.startService();
+        if (ticketFile != null) {
+            reloadTicketFile();
+            if (ticketFileCheckInterval > 0) {
+                ticketFileCheckDaemon = new Daemon(new TicketFileChecker());
+                ticketFileCheckDaemon.setName("Nimbus WebSocket TicketFileCheckDaemon " + getServiceNameObject());
+                ticketFileCheckDaemon.start();
+            }
+        }
+    }
+
+    public void stopService() throws Exception {
+        if (ticketFileCheckDaemon != null) {
+            ticketFileCheckDaemon.stop();
+            ticketFileCheckDaemon = null;
+        }
+        super.stopService();
+    }
+
+    public synchronized void reloadTicketFile() throws IOException {
+        if (ticketFile == null) {
+            throw new IllegalArgumentException("TicketFile is null.");
+        }
+        final long lastModified = ticketFile.lastModified();
+        final long length = ticketFile.length();
+        ticketTable = loadTicketFile(ticketFile);
+        ticketFileLastModified = lastModified;
+        ticketFileLength = length;
+    }
+
+    /**
+     * 指定されたファイルからIDとチケットのマッピングを読み込む。
+     * <p>
+     * ファイル名が".properties"で終わる場合はプロパティ形式、それ以外の場合は"ID,チケット"のCSV形式として読み込む。<br>
+     * CSV形式では、空行と"#"で始まる行は無視する。<br>
+     *
+     * @param file 読み込むファイル
+     * @return IDとチケットのマッピング
+     * @exception IOException ファイルの読み込みに失敗した場合
+     */
+    protected TicketTable loadTicketFile(File file) throws IOException {
+        final TicketTable.Builder builder = new TicketTable.Builder();
+        final Reader reader = new InputStreamReader(new FileInputStream(file), ticketFileEncoding);
+        try {
+            if (file.getName().endsWith(".properties")) {
+                Properties props = new Properties();
+                props.load(reader);
+                final Iterator entries = props.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entries.next();
+                    builder.put((String) entry.getKey(), (String) entry.getValue());
+                }
+            } else {
+                final BufferedReader br = new BufferedReader(reader);
+                String line = null;
+                int lineNo = 0;
+                while ((line = br.readLine()) != null) {
+                    lineNo++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    final int index = line.indexOf(',');
+                    if (index <= 0) {
+                        throw new IOException("Illegal ticket mapping. file=" + file + ", line=" + lineNo);
+                    }
+                    builder.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {}
+        }
+        return builder.build();
     }
 
     protected boolean login(String id, String ticket, String wsTicket) throws Exception {
@@ -69,4 +234,257 @@ public class SimpleTicketAuthenticatorService extends AbstractAuthenticatorServi
         // DoNothing
     }
 
+    /**
+     * ファイルの更新を定期的に確認し、更新されていれば再読み込みするDaemonRunnableクラス。
+     * <p>
+     */
+    protected class TicketFileChecker implements DaemonRunnable {
+
+        public boolean onStart() {
+            return true;
+        }
+
+        public boolean onStop() {
+            return true;
+        }
+
+        public boolean onSuspend() {
+            return true;
+        }
+
+        public boolean onResume() {
+            return true;
+        }
+
+        public Object provide(DaemonControl ctrl) throws Throwable {
+            try {
+                ctrl.sleep(ticketFileCheckInterval, false);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            if (getState() != STARTED) {
+                return null;
+            }
+            final File file = ticketFile;
+            if (file.lastModified() != ticketFileLastModified || file.length() != ticketFileLength) {
+                return file;
+            }
+            return null;
+        }
+
+        public void consume(Object paramObj, DaemonControl ctrl) throws Throwable {
+            if (paramObj == null) {
+                return;
+            }
+            try {
+                reloadTicketFile();
+            } catch (Exception e) {
+                if (ticketFileReloadErrorMessageId != null) {
+                    getLogger().write(ticketFileReloadErrorMessageId, paramObj, e);
+                }
+            }
+        }
+
+        public void garbage() {
+        }
+    }
+
+    /**
+     * setTicketMappingで設定したマッピングと、ファイルから読み込んだマッピングを合わせたビュー。
+     * <p>
+     * 参照は常に最新のマッピングを反映する。更新はsetTicketMappingで設定したマッピングに対して行われるため、
+     * ファイルから読み込んだマッピングを削除することはできない。<br>
+     */
+    protected class TicketMappingView extends AbstractMap {
+
+        public Object get(Object key) {
+            return key instanceof String ? getTicketMapping((String) key) : null;
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public Object put(Object key, Object value) {
+            final Object old = get(key);
+            idAndTicketMapping.put(key, value);
+            return old;
+        }
+
+        public Object remove(Object key) {
+            return idAndTicketMapping.remove(key);
+        }
+
+        public int size() {
+            return getTicketMappingSize();
+        }
+
+        public Set entrySet() {
+            return new AbstractSet() {
+                public int size() {
+                    return getTicketMappingSize();
+                }
+
+                public Iterator iterator() {
+                    return new TicketMappingIterator(ticketTable);
+                }
+            };
+        }
+    }
+
+    /**
+     * {@link TicketMappingView}のエントリを、setTicketMappingで設定したマッピング、ファイルから読み込んだマッピングの順に走査するIterator。
+     * <p>
+     * 両方に存在するIDは、setTicketMappingで設定したマッピングのみを返す。<br>
+     */
+    protected class TicketMappingIterator implements Iterator {
+
+        private final TicketTable table;
+        private final Iterator mappings = idAndTicketMapping.entrySet().iterator();
+        private int index = -1;
+        private Map.Entry next;
+
+        protected TicketMappingIterator(TicketTable table) {
+            this.table = table;
+            next = findNext();
+        }
+
+        private Map.Entry findNext() {
+            if (mappings.hasNext()) {
+                return (Map.Entry) mappings.next();
+            }
+            while (++index < table.capacity()) {
+                final String id = table.idAt(index);
+                if (id != null && !idAndTicketMapping.containsKey(id)) {
+                    return new AbstractMap.SimpleImmutableEntry(id, table.ticketAt(index));
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Object next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry result = next;
+            next = findNext();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * IDとチケットのマッピングを保持する読み取り専用のハッシュテーブル。
+     * <p>
+     * エントリ毎のオブジェクトを生成せず、IDとチケットを並列の配列にオープンアドレス法で格納する。<br>
+     * 構築後は変更されないため、ロックなしで参照できる。<br>
+     */
+    protected static class TicketTable {
+
+        public static final TicketTable EMPTY = new Builder().build();
+
+        private final String[] ids;
+        private final String[] tickets;
+        private final int mask;
+        private final int size;
+
+        private TicketTable(String[] ids, String[] tickets, int size) {
+            this.ids = ids;
+            this.tickets = tickets;
+            this.mask = ids.length - 1;
+            this.size = size;
+        }
+
+        private static int hash(Object key) {
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        public String get(String id) {
+            if (id == null) {
+                return null;
+            }
+            int index = hash(id) & mask;
+            String key = null;
+            while ((key = ids[index]) != null) {
+                if (key.equals(id)) {
+                    return tickets[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int capacity() {
+            return ids.length;
+        }
+
+        public String idAt(int index) {
+            return ids[index];
+        }
+
+        public String ticketAt(int index) {
+            return tickets[index];
+        }
+
+        /**
+         * {@link TicketTable}を構築するクラス。
+         * <p>
+         * 同じIDが複数回登録された場合は、後に登録したチケットが有効となる。<br>
+         */
+        public static class Builder {
+
+            private String[] ids = new String[16];
+            private String[] tickets = new String[16];
+            private int count;
+
+            public void put(String id, String ticket) {
+                if (count == ids.length) {
+                    String[] newIds = new String[ids.length * 2];
+                    String[] newTickets = new String[tickets.length * 2];
+                    System.arraycopy(ids, 0, newIds, 0, count);
+                    System.arraycopy(tickets, 0, newTickets, 0, count);
+                    ids = newIds;
+                    tickets = newTickets;
+                }
+                ids[count] = id;
+                tickets[count] = ticket;
+                count++;
+            }
+
+            public TicketTable build() {
+                int capacity = 2;
+                while (capacity < count * 2) {
+                    capacity <<= 1;
+                }
+                final String[] tableIds = new String[capacity];
+                final String[] tableTickets = new String[capacity];
+                final int mask = capacity - 1;
+                int size = 0;
+                for (int i = 0; i < count; i++) {
+                    int index = hash(ids[i]) & mask;
+                    while (tableIds[index] != null && !tableIds[index].equals(ids[i])) {
+                        index = (index + 1) & mask;
+                    }
+                    if (tableIds[index] == null) {
+                        tableIds[index] = ids[i];
+                        size++;
+                    }
+                    tableTickets[index] = tickets[i];
+                }
+                return new TicketTable(tableIds, tableTickets, size);
+            }
+        }
+    }
 }
@@ -31,6 +31,8 @@
  */
 package jp.ossc.nimbus.service.websocket;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -41,9 +43,31 @@ import java.util.Map;
  */
 public interface SimpleTicketAuthenticatorServiceMBean extends AbstractAuthenticatorServiceMBean {
 
+    public static final String DEFAULT_TICKET_FILE_ENCODING = "UTF-8";
+
     public void setTicketMapping(String id, String ticket);
 
     public String getTicketMapping(String id);
 
     public Map getTicketMappings();
+
+    public int getTicketMappingSize();
+
+    public File getTicketFile();
+
+    public void setTicketFile(File file);
+
+    public String getTicketFileEncoding();
+
+    public void setTicketFileEncoding(String encoding);
+
+    public long getTicketFileCheckInterval();
+
+    public void setTicketFileCheckInterval(long interval);
+
+    public String getTicketFileReloadErrorMessageId();
+
+    public void setTicketFileReloadErrorMessageId(String id);
+
+    public void reloadTicketFile() throws IOException;
 }
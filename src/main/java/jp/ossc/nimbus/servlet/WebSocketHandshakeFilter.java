@@ -0,0 +1,157 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2009 The Nimbus2 Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus2 Project.
+ */
+package jp.ossc.nimbus.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jp.ossc.nimbus.beans.ServiceNameEditor;
+import jp.ossc.nimbus.core.ServiceManagerFactory;
+import jp.ossc.nimbus.core.ServiceName;
+import jp.ossc.nimbus.service.websocket.CustomCloseReason;
+import jp.ossc.nimbus.service.websocket.DefaultConfiguratorService;
+import jp.ossc.nimbus.service.websocket.HandshakeRejectedException;
+
+/**
+ * WebSocketへのアップグレード要求を、コンテナがアップグレードを行う前にチェックするフィルタ。
+ * <p>
+ * {@link DefaultConfiguratorService#checkHandshake(HttpServletRequest)}を呼び出し、チェックに失敗した場合はWebSocketセッションを生成せずにHTTPのエラー応答を返す。<br>
+ * エラー応答のステータスは、IDとチケットがない場合は403、クライアント数が上限に達している場合は503、ハンドシェイク認証に失敗した場合は401とする。<br>
+ * DefaultConfiguratorServiceのrejectOnHandshakeがfalseの場合は、チェックを行わない。<br>
+ * コンテナのWebSocketのアップグレード処理より前に実行されるよう、Endpointのパスにマッピングすること。<br>
+ * <p>
+ * 以下に、フィルタのweb.xml定義例を示す。<br>
+ *
+ * <pre>
+ * &lt;filter&gt;
+ *     &lt;filter-name&gt;WebSocketHandshakeFilter&lt;/filter-name&gt;
+ *     &lt;filter-class&gt;jp.ossc.nimbus.servlet.WebSocketHandshakeFilter&lt;/filter-class&gt;
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;ConfiguratorServiceName&lt;/param-name&gt;
+ *         &lt;param-value&gt;PublishScribeServer.WebSocketPublish#DefaultConfiguratorService&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ * &lt;/filter&gt;
+ * &lt;filter-mapping&gt;
+ *     &lt;filter-name&gt;WebSocketHandshakeFilter&lt;/filter-name&gt;
+ *     &lt;url-pattern&gt;/websocket&lt;/url-pattern&gt;
+ * &lt;/filter-mapping&gt;
+ * </pre>
+ *
+ * @author M.Ishida
+ */
+public class WebSocketHandshakeFilter implements Filter {
+
+    /**
+     * {@link DefaultConfiguratorService}サービス名の初期化パラメータ名。
+     * <p>
+     */
+    protected static final String INIT_PARAM_NAME_CONFIGURATOR_SERVICE_NAME = "ConfiguratorServiceName";
+
+    protected ServiceName configuratorServiceName;
+
+    /**
+     * 初期化処理
+     */
+    public void init(FilterConfig config) throws ServletException {
+        final String serviceNameStr = config.getInitParameter(INIT_PARAM_NAME_CONFIGURATOR_SERVICE_NAME);
+        if (serviceNameStr == null) {
+            throw new ServletException("ConfiguratorServiceName is null.");
+        }
+        final ServiceNameEditor editor = new ServiceNameEditor();
+        editor.setAsText(serviceNameStr);
+        configuratorServiceName = (ServiceName) editor.getValue();
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        if (!(request instanceof HttpServletRequest) || !isUpgradeRequest((HttpServletRequest) request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final DefaultConfiguratorService configurator = (DefaultConfiguratorService) ServiceManagerFactory
+                .getServiceObject(configuratorServiceName);
+        if (!configurator.isRejectOnHandshake()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        try {
+            try {
+                configurator.checkHandshake((HttpServletRequest) request);
+            } catch (HandshakeRejectedException e) {
+                ((HttpServletResponse) response).sendError(getStatus(e), e.getMessage());
+                return;
+            }
+            chain.doFilter(request, response);
+        } finally {
+            configurator.clearCheckedHandshake();
+        }
+    }
+
+    public void destroy() {
+    }
+
+    /**
+     * WebSocketへのアップグレード要求かどうかを判定する。
+     * <p>
+     *
+     * @param request HTTPリクエスト
+     * @return アップグレード要求の場合true
+     */
+    protected boolean isUpgradeRequest(HttpServletRequest request) {
+        return "websocket".equalsIgnoreCase(request.getHeader("Upgrade"));
+    }
+
+    /**
+     * 拒否理由の終了コードから、エラー応答のHTTPステータスを取得する。
+     * <p>
+     *
+     * @param e 拒否理由
+     * @return HTTPステータス
+     */
+    protected int getStatus(HandshakeRejectedException e) {
+        final int code = e.getCloseCode() == null ? -1 : e.getCloseCode().getCode();
+        if (code == CustomCloseReason.CloseCodes.MAX_CLIENT_SIZE_OVER.getCode()) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } else if (code == CustomCloseReason.CloseCodes.HANDSHAKE_AUTH_FAILED.getCode()) {
+            return HttpServletResponse.SC_UNAUTHORIZED;
+        }
+        return HttpServletResponse.SC_FORBIDDEN;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**
+ * {@link CommandTokenizer}のテスト。
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public class CommandTokenizerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testTokens() {
+        CommandTokenizer tokenizer = createTokenizer(",", "ADD,subject,key1");
+        assertEquals(3, tokenizer.countTokens());
+        assertTrue(tokenizer.nextTokenEquals(tokenizer.toBytes("ADD")));
+        assertEquals("subject", tokenizer.nextToken());
+        assertEquals("key1", tokenizer.nextToken());
+        assertFalse(tokenizer.hasMoreTokens());
+        assertNull(tokenizer.nextToken());
+    }
+
+    @Test
+    public void testEmptyFields() {
+        CommandTokenizer tokenizer = createTokenizer(",", ",a,,b,");
+        assertEquals(4, tokenizer.countTokens());
+        assertEquals("", tokenizer.nextToken());
+        assertEquals("a", tokenizer.nextToken());
+        assertEquals("", tokenizer.nextToken());
+        assertEquals("b", tokenizer.nextToken());
+        assertFalse(tokenizer.hasMoreTokens());
+
+        tokenizer = createTokenizer(",", "");
+        assertEquals(0, tokenizer.countTokens());
+        assertFalse(tokenizer.hasMoreTokens());
+    }
+
+    @Test
+    public void testRegexMetaCharacterIsLiteral() {
+        CommandTokenizer tokenizer = createTokenizer("|", "a|b.c|d");
+        assertEquals(3, tokenizer.countTokens());
+        assertEquals("a", tokenizer.nextToken());
+        assertEquals("b.c", tokenizer.nextToken());
+        assertEquals("d", tokenizer.nextToken());
+
+        tokenizer = createTokenizer("\\,", "a\\,b,c\\,");
+        assertEquals("a", tokenizer.nextToken());
+        assertEquals("b,c", tokenizer.nextToken());
+        assertFalse(tokenizer.hasMoreTokens());
+    }
+
+    @Test
+    public void testMultiByte() {
+        CommandTokenizer tokenizer = createTokenizer("、", "追加、件名、キー");
+        assertEquals(3, tokenizer.countTokens());
+        assertTrue(tokenizer.nextTokenEquals(tokenizer.toBytes("追加")));
+        assertFalse(tokenizer.nextTokenEquals(tokenizer.toBytes("キー")));
+        assertEquals("件名", tokenizer.nextToken());
+        assertEquals("キー", tokenizer.nextToken());
+    }
+
+    @Test
+    public void testEntries() {
+        CommandTokenizer tokenizer = createTokenizer(",", "ADDALL,s1,k1;;s2;s3,k2,k3");
+        assertTrue(tokenizer.nextTokenEquals(tokenizer.toBytes("ADDALL")));
+        tokenizer.beginEntries(tokenizer.toBytes(";"));
+        assertEquals(2, tokenizer.countTokens());
+        assertEquals("s1", tokenizer.nextToken());
+        assertTrue(tokenizer.nextEntry());
+        assertFalse(tokenizer.hasMoreTokens());
+        assertTrue(tokenizer.nextEntry());
+        assertEquals("s2", tokenizer.nextToken());
+        assertTrue(tokenizer.nextEntry());
+        assertEquals(3, tokenizer.countTokens());
+        assertEquals("s3", tokenizer.nextToken());
+        assertFalse(tokenizer.nextEntry());
+        assertFalse(tokenizer.hasMoreTokens());
+    }
+
+    @Test
+    public void testNextLong() {
+        CommandTokenizer tokenizer = createTokenizer(",", "RESUME,123,-45,+6,x,,9223372036854775808");
+        tokenizer.nextToken();
+        assertEquals(123L, tokenizer.nextLong());
+        assertEquals(-45L, tokenizer.nextLong());
+        assertEquals(6L, tokenizer.nextLong());
+        try {
+            tokenizer.nextLong();
+            fail();
+        } catch(NumberFormatException e) {
+        }
+        assertEquals("x", tokenizer.nextToken());
+        try {
+            tokenizer.nextLong();
+            fail();
+        } catch(NumberFormatException e) {
+        }
+        assertEquals("", tokenizer.nextToken());
+        try {
+            tokenizer.nextLong();
+            fail();
+        } catch(NumberFormatException e) {
+        }
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        CommandTokenizer tokenizer = new CommandTokenizer(",", UTF8);
+        byte[] bytes = "xxADD,subject".getBytes(UTF8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.position(2);
+        tokenizer.reset(buffer);
+        assertEquals("ADD", tokenizer.nextToken());
+        assertEquals("subject", tokenizer.nextToken());
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void testUnsupportedCharset() {
+        try {
+            new CommandTokenizer(",", Charset.forName("UTF-16"));
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+        try {
+            new CommandTokenizer("", UTF8);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    private static CommandTokenizer createTokenizer(String separator, String command) {
+        CommandTokenizer tokenizer = new CommandTokenizer(separator, UTF8);
+        tokenizer.reset(ByteBuffer.wrap(command.getBytes(UTF8)));
+        return tokenizer;
+    }
+}
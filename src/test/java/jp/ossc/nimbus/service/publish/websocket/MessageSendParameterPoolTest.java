@@ -0,0 +1,143 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * {@link MessageSendParameterPool}のテスト。
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public class MessageSendParameterPoolTest {
+
+    @Test
+    public void testGetReturnsObjectRecycledOnAnotherThread() throws Exception {
+        final MessageSendParameterPool pool = new MessageSendParameterPool(64);
+        final AtomicReference<MessageSendParameter> recycled = new AtomicReference<MessageSendParameter>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    MessageSendParameter param = new MessageSendParameter();
+                    assertTrue(pool.recycle(param));
+                    recycled.set(param);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(error.get());
+        assertEquals(1, pool.size());
+        assertSame(recycled.get(), pool.get());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testCapacity() {
+        MessageSendParameterPool pool = new MessageSendParameterPool(3);
+        assertEquals(4, pool.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(pool.recycle(new MessageSendParameter()));
+        }
+        assertFalse(pool.recycle(new MessageSendParameter()));
+        assertEquals(4, pool.size());
+        for (int i = 0; i < 4; i++) {
+            pool.get();
+        }
+        assertEquals(0, pool.size());
+        assertTrue(pool.recycle(new MessageSendParameter()));
+    }
+
+    @Test
+    public void testGetFromEmptyPool() {
+        MessageSendParameterPool pool = new MessageSendParameterPool(1);
+        MessageSendParameter param1 = pool.get();
+        MessageSendParameter param2 = pool.get();
+        assertNotSame(param1, param2);
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        try {
+            new MessageSendParameterPool(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentGetAndRecycle() throws Exception {
+        final MessageSendParameterPool pool = new MessageSendParameterPool(16);
+        final Map<MessageSendParameter, Boolean> inUse = Collections.synchronizedMap(new IdentityHashMap<MessageSendParameter, Boolean>());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20000; j++) {
+                            MessageSendParameter param = pool.get();
+                            assertNull(inUse.put(param, Boolean.TRUE));
+                            inUse.remove(param);
+                            pool.recycle(param);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertNull(error.get());
+        assertTrue(pool.size() <= pool.capacity());
+    }
+}
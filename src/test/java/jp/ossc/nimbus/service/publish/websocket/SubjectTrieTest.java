@@ -0,0 +1,151 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.publish.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * {@link SubjectTrie}のテスト。
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public class SubjectTrieTest {
+
+    @Test
+    public void testIsPattern() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        assertTrue(trie.isPattern("a.*.c"));
+        assertTrue(trie.isPattern("a.#"));
+        assertTrue(trie.isPattern("*"));
+        assertFalse(trie.isPattern("a.b.c"));
+        assertFalse(trie.isPattern("a.b*.c"));
+    }
+
+    @Test
+    public void testSingleLevelWildcard() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        trie.add("a.*.c", "v1");
+        assertEquals(set(new Object[] {"v1"}), match(trie, "a.b.c"));
+        assertEquals(set(new Object[] {"v1"}), match(trie, "a.x.c"));
+        assertEquals(set(new Object[0]), match(trie, "a.c"));
+        assertEquals(set(new Object[0]), match(trie, "a.b.x.c"));
+        assertEquals(set(new Object[0]), match(trie, "a.b.c.d"));
+    }
+
+    @Test
+    public void testMultiLevelWildcard() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        trie.add("a.#", "v1");
+        assertEquals(set(new Object[] {"v1"}), match(trie, "a"));
+        assertEquals(set(new Object[] {"v1"}), match(trie, "a.b"));
+        assertEquals(set(new Object[] {"v1"}), match(trie, "a.b.c.d"));
+        assertEquals(set(new Object[0]), match(trie, "b.a"));
+    }
+
+    @Test
+    public void testMultiLevelWildcardMustBeLast() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        try {
+            trie.add("a.#.c", "v1");
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+        assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        trie.add("a.*.c", "v1");
+        trie.add("a.#", "v2");
+        trie.add("*.b.*", "v3");
+        trie.add("#", "v4");
+        trie.add("a.b.#", "v1");
+        assertEquals(set(new Object[] {"v1", "v2", "v3", "v4"}), match(trie, "a.b.c"));
+        assertEquals(set(new Object[] {"v1", "v2", "v4"}), match(trie, "a.b.d.e"));
+        assertEquals(set(new Object[] {"v3", "v4"}), match(trie, "x.b.y"));
+        assertEquals(set(new Object[] {"v4"}), match(trie, "x"));
+        assertEquals(5, trie.size());
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        SubjectTrie trie = new SubjectTrie(".", "*", "#");
+        assertTrue(trie.add("a.*.c", "v1"));
+        assertFalse(trie.add("a.*.c", "v1"));
+        assertTrue(trie.add("a.*.c", "v2"));
+        assertTrue(trie.add("a.#", "v1"));
+        assertEquals(3, trie.size());
+
+        assertTrue(trie.remove("a.*.c", "v1"));
+        assertFalse(trie.remove("a.*.c", "v1"));
+        assertFalse(trie.remove("x.*.c", "v1"));
+        assertEquals(set(new Object[] {"v1", "v2"}), match(trie, "a.b.c"));
+
+        assertTrue(trie.remove("a.#", "v1"));
+        assertTrue(trie.remove("a.*.c", "v2"));
+        assertEquals(0, trie.size());
+        assertEquals(set(new Object[0]), match(trie, "a.b.c"));
+    }
+
+    @Test
+    public void testMultiCharacterSeparator() {
+        SubjectTrie trie = new SubjectTrie("::", "+", "**");
+        trie.add("a::+::c", "v1");
+        trie.add("a::**", "v2");
+        assertEquals(set(new Object[] {"v1", "v2"}), match(trie, "a::b::c"));
+        assertEquals(set(new Object[] {"v2"}), match(trie, "a::b.c"));
+    }
+
+    private static Set match(SubjectTrie trie, String subject) {
+        Set result = new HashSet();
+        trie.match(subject, result);
+        return result;
+    }
+
+    private static Set set(Object[] values) {
+        Set result = new HashSet();
+        for(int i = 0; i < values.length; i++) {
+            result.add(values[i]);
+        }
+        return result;
+    }
+}
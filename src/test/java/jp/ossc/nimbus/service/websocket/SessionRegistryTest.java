@@ -0,0 +1,219 @@
+/*
+ * This software is distributed under following license based on modified BSD
+ * style license.
+ * ----------------------------------------------------------------------
+ *
+ * Copyright 2003 The Nimbus Project. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE NIMBUS PROJECT ``AS IS'' AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE NIMBUS PROJECT OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of the Nimbus Project.
+ */
+package jp.ossc.nimbus.service.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.websocket.Session;
+
+import org.junit.Test;
+
+/**
+ * {@link SessionRegistry}のテスト。
+ * <p>
+ *
+ * @author M.Ishida
+ */
+public class SessionRegistryTest {
+
+    @Test
+    public void testAddAndFind() {
+        SessionRegistry registry = new SessionRegistry();
+        Session session1 = createSession("s1");
+        Session session2 = createSession("s2");
+        assertTrue(registry.add(session1, createProperties("user1", "10.0.0.1", "ws1")));
+        assertTrue(registry.add(session2, createProperties("user1", "10.0.0.2", "ws2")));
+        assertEquals(2, registry.size());
+        assertTrue(registry.contains(session1));
+
+        Set sessions = registry.findSessionsFromId("user1");
+        assertEquals(2, sessions.size());
+        assertTrue(sessions.contains(session1));
+        assertTrue(sessions.contains(session2));
+        assertEquals(1, registry.findSessionsFromIp("10.0.0.2").size());
+        assertTrue(registry.findSessionsFromIp("10.0.0.2").contains(session2));
+        assertSame(session1, registry.findSessionFromWebSocketSessionId("ws1"));
+        assertEquals(2, registry.getAllSessionProperties().size());
+    }
+
+    @Test
+    public void testAddDuplicate() {
+        SessionRegistry registry = new SessionRegistry();
+        Session session = createSession("s1");
+        assertTrue(registry.add(session, createProperties("user1", "10.0.0.1", "ws1")));
+        assertFalse(registry.add(session, createProperties("user2", "10.0.0.2", "ws2")));
+        assertEquals(1, registry.size());
+        assertTrue(registry.findSessionsFromId("user2").isEmpty());
+        assertNull(registry.findSessionFromWebSocketSessionId("ws2"));
+    }
+
+    @Test
+    public void testRemove() {
+        SessionRegistry registry = new SessionRegistry();
+        Session session1 = createSession("s1");
+        Session session2 = createSession("s2");
+        registry.add(session1, createProperties("user1", "10.0.0.1", "ws1"));
+        registry.add(session2, createProperties("user1", "10.0.0.1", "ws2"));
+
+        assertTrue(registry.remove(session1));
+        assertFalse(registry.remove(session1));
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.findSessionsFromId("user1").size());
+        assertNull(registry.findSessionFromWebSocketSessionId("ws1"));
+
+        assertTrue(registry.remove(session2));
+        assertTrue(registry.findSessionsFromId("user1").isEmpty());
+        assertTrue(registry.findSessionsFromIp("10.0.0.1").isEmpty());
+        assertTrue(registry.idIndex.isEmpty());
+        assertTrue(registry.ipIndex.isEmpty());
+        assertTrue(registry.webSocketSessionIdIndex.isEmpty());
+    }
+
+    @Test
+    public void testNullKeys() {
+        SessionRegistry registry = new SessionRegistry();
+        Session session = createSession("s1");
+        assertTrue(registry.add(session, null));
+        assertEquals(1, registry.size());
+        assertTrue(registry.findSessionsFromId(null).isEmpty());
+        assertNull(registry.findSessionFromWebSocketSessionId(null));
+        assertTrue(registry.remove(session));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testFindReturnsCopy() {
+        SessionRegistry registry = new SessionRegistry();
+        Session session1 = createSession("s1");
+        registry.add(session1, createProperties("user1", "10.0.0.1", "ws1"));
+        Set sessions = registry.findSessionsFromId("user1");
+        registry.add(createSession("s2"), createProperties("user1", "10.0.0.1", "ws2"));
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception {
+        final SessionRegistry registry = new SessionRegistry();
+        final int threadCount = 8;
+        final int sessionCount = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference error = new AtomicReference();
+        final List threads = new ArrayList();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadNo = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        List sessions = new ArrayList();
+                        for (int i = 0; i < sessionCount; i++) {
+                            Session session = createSession(threadNo + "-" + i);
+                            // 全スレッドで同じID、IPのインデックスを奪い合う
+                            registry.add(session, createProperties("user" + (i % 4), "10.0.0." + (i % 2), threadNo + "-" + i));
+                            sessions.add(session);
+                            if (i % 2 == 0) {
+                                registry.remove((Session) sessions.remove(0));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads.size(); i++) {
+            ((Thread) threads.get(i)).join();
+        }
+        assertNull(error.get());
+
+        int expected = threadCount * sessionCount / 2;
+        assertEquals(expected, registry.size());
+        int idTotal = 0;
+        for (int i = 0; i < 4; i++) {
+            idTotal += registry.findSessionsFromId("user" + i).size();
+        }
+        assertEquals(expected, idTotal);
+        assertEquals(expected, registry.findSessionsFromIp("10.0.0.0").size() + registry.findSessionsFromIp("10.0.0.1").size());
+        assertEquals(expected, registry.webSocketSessionIdIndex.size());
+
+        Object[] sessions = registry.sessionSet().toArray();
+        for (int i = 0; i < sessions.length; i++) {
+            assertTrue(registry.remove((Session) sessions[i]));
+        }
+        assertEquals(0, registry.size());
+        assertTrue(registry.idIndex.isEmpty());
+        assertTrue(registry.ipIndex.isEmpty());
+        assertTrue(registry.webSocketSessionIdIndex.isEmpty());
+    }
+
+    private static SessionProperties createProperties(String id, String ip, String webSocketSessionId) {
+        SessionProperties prop = new SessionProperties();
+        prop.setId(id);
+        prop.setIp(ip);
+        prop.setWebSocketSessionId(webSocketSessionId);
+        return prop;
+    }
+
+    private static Session createSession(final String id) {
+        return (Session) Proxy.newProxyInstance(SessionRegistryTest.class.getClassLoader(),
+                new Class[] { Session.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getId".equals(method.getName())) {
+                            return id;
+                        } else if ("hashCode".equals(method.getName())) {
+                            return new Integer(System.identityHashCode(proxy));
+                        } else if ("equals".equals(method.getName())) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if ("toString".equals(method.getName())) {
+                            return "Session[" + id + "]";
+                        }
+                        return null;
+                    }
+                });
+    }
+}